@@ -0,0 +1,109 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accept counters for the acceptor threads of a single listener. Each
+ * acceptor registers itself to get an index, counts its own accepts, and
+ * periodically logs (and records) its accept rate.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class AcceptorStatistics {
+    private static final long REPORT_PERIOD = 60000L;
+
+    private String connectorName;
+    private AtomicLongArray acceptCounts;
+    private AtomicLongArray acceptRates;
+    private long lastReportTimes[];
+    private long lastReportCounts[];
+    private AtomicInteger nextIndex;
+    private AtomicInteger liveAcceptors;
+
+    public AcceptorStatistics(String connectorName, int acceptorCount) {
+        this.connectorName = connectorName;
+        this.acceptCounts = new AtomicLongArray(acceptorCount);
+        this.acceptRates = new AtomicLongArray(acceptorCount);
+        this.lastReportTimes = new long[acceptorCount];
+        this.lastReportCounts = new long[acceptorCount];
+        this.nextIndex = new AtomicInteger(0);
+        this.liveAcceptors = new AtomicInteger(acceptorCount);
+    }
+
+    public int getAcceptorCount() {
+        return this.acceptCounts.length();
+    }
+
+    /**
+     * Called by each acceptor thread as it starts. Returns its index.
+     */
+    public int registerAcceptor() {
+        int index = this.nextIndex.getAndIncrement();
+        this.lastReportTimes[index] = System.currentTimeMillis();
+        return index;
+    }
+
+    /**
+     * Called by each acceptor thread as it exits. Returns true for the last
+     * one out, which should close the shared server socket.
+     */
+    public boolean unregisterAcceptor() {
+        return this.liveAcceptors.decrementAndGet() == 0;
+    }
+
+    public void recordAccept(int index) {
+        this.acceptCounts.incrementAndGet(index);
+    }
+
+    /**
+     * Called from the acceptor's loop. Once per report period, this works out
+     * the acceptor's rate over the period and logs it.
+     */
+    public void checkReport(int index) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - this.lastReportTimes[index];
+        if (elapsed < REPORT_PERIOD) {
+            return;
+        }
+        long count = this.acceptCounts.get(index);
+        long accepted = count - this.lastReportCounts[index];
+        long rate = (accepted * 1000L) / elapsed;
+        this.acceptRates.set(index, rate);
+        this.lastReportTimes[index] = now;
+        this.lastReportCounts[index] = count;
+        Logger.log(Logger.DEBUG, Launcher.RESOURCES, "AcceptorStatistics.Report",
+                new String[] { this.connectorName, "" + index, "" + accepted,
+                        "" + (elapsed / 1000), "" + rate, "" + count });
+    }
+
+    /**
+     * Total connections accepted by this acceptor
+     */
+    public long getAcceptCount(int index) {
+        return this.acceptCounts.get(index);
+    }
+
+    /**
+     * Connections accepted per second by this acceptor, over the last
+     * complete report period
+     */
+    public long getAcceptRate(int index) {
+        return this.acceptRates.get(index);
+    }
+
+    public long getTotalAcceptCount() {
+        long total = 0;
+        for (int n = 0; n < this.acceptCounts.length(); n++) {
+            total += this.acceptCounts.get(n);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the requests in progress on a webapp or a listener, from when the
+ * request is matched to a webapp until its response is finished (including
+ * any time spent suspended by an async request). Shutdown and webapp reload
+ * use it to wait for the requests to drain.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class ActiveRequests {
+    private AtomicInteger count = new AtomicInteger(0);
+
+    public void requestStarted() {
+        this.count.incrementAndGet();
+    }
+
+    public void requestFinished() {
+        if (this.count.decrementAndGet() <= 0) {
+            synchronized (this) {
+                this.notifyAll();
+            }
+        }
+    }
+
+    public int getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Waits up to the timeout in ms for the requests in progress to finish.
+     * Returns true if there are none left.
+     */
+    public synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (this.count.get() > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            this.wait(remaining);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
+
+/**
+ * Lets a servlet finish a request later, from any thread, without holding a
+ * request handler thread in the meantime (shaped like the servlet 3.0
+ * AsyncContext).
+ *
+ * A servlet calls startAsync() on the request and returns from service().
+ * The handler thread then suspends the request: the connection, request and
+ * response are kept here, and the handler goes back to the pool. Calling
+ * complete() or dispatch() (or reaching the timeout) hands the request to a
+ * pooled handler, which finishes the response and carries on with the
+ * connection's keep-alive loop. If complete() or dispatch() is called before
+ * service() returns, the original handler just carries on.
+ *
+ * Setting a ReadListener or WriteListener on the request's streams switches
+ * them to non-blocking io while the request is suspended (see AsyncIo).
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class AsyncContext {
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    // Life cycle: STARTED -> SUSPENDED -> RESUMING -> DONE, with dispatches
+    // going back to IDLE until the next startAsync()
+    private static final int IDLE = 0;
+    private static final int STARTED = 1;
+    private static final int SUSPENDED = 2;
+    private static final int RESUMING = 3;
+    private static final int DONE = 4;
+
+    private WinstoneRequest request;
+    private WinstoneResponse response;
+    private List listeners;
+    private long timeout;
+    private int state;
+    private boolean dispatching;
+    private String dispatchPath;
+    private boolean timedOut;
+    private TimerWheel.Timeout timeoutTask;
+    private AsyncIo asyncIo;
+
+    // The connection state held while suspended
+    private ObjectPool objectPool;
+    private Socket socket;
+    private Listener listener;
+    private String servletURI;
+    private WebAppConfiguration webAppConfig;
+    private long requestStartTime;
+    private ConnectionInputBuffer inputBuffer;
+    private ResponseBuffer commitBuffer;
+    private ConnectionTimeouts connectionTimeouts;
+
+    AsyncContext(WinstoneRequest request, WinstoneResponse response) {
+        this.request = request;
+        this.response = response;
+        this.listeners = new ArrayList();
+        this.timeout = DEFAULT_TIMEOUT;
+        this.state = STARTED;
+        this.asyncIo = newAsyncIo();
+    }
+
+    private AsyncIo newAsyncIo() {
+        return new AsyncIo(this, this.request.getWinstoneInputStream(),
+                this.response == null ? null : this.response.getWinstoneOutputStream());
+    }
+
+    /**
+     * Starts async processing on the container's request underneath any
+     * wrappers
+     */
+    public static AsyncContext startAsync(ServletRequest request) {
+        ServletRequest workingRequest = request;
+        while (workingRequest instanceof ServletRequestWrapper) {
+            workingRequest = ((ServletRequestWrapper) workingRequest).getRequest();
+        }
+        return ((WinstoneRequest) workingRequest).startAsync();
+    }
+
+    public WinstoneRequest getRequest() {
+        return this.request;
+    }
+
+    public WinstoneResponse getResponse() {
+        return this.response;
+    }
+
+    public void addListener(AsyncListener listener) {
+        synchronized (this.listeners) {
+            this.listeners.add(listener);
+        }
+    }
+
+    /**
+     * The timeout in milliseconds, counted from when the request is suspended.
+     * Zero or less means never time out.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return this.timeout;
+    }
+
+    /**
+     * Finishes the response and releases the request.
+     */
+    public void complete() {
+        synchronized (this) {
+            if ((this.state != STARTED) && (this.state != SUSPENDED)) {
+                return;
+            }
+            this.dispatching = false;
+        }
+        resume();
+    }
+
+    /**
+     * Runs the request through the servlet it was originally sent to again.
+     */
+    public void dispatch() {
+        dispatch(null);
+    }
+
+    /**
+     * Runs the request through the servlet mapped to the path supplied
+     * (relative to the webapp).
+     */
+    public void dispatch(String path) {
+        synchronized (this) {
+            if ((this.state != STARTED) && (this.state != SUSPENDED)) {
+                throw new IllegalStateException(Launcher.RESOURCES.getString(
+                        "AsyncContext.NotStarted"));
+            }
+            this.dispatching = true;
+            this.dispatchPath = path;
+        }
+        resume();
+    }
+
+    /**
+     * True if the request timed out before it was completed
+     */
+    public boolean isTimedOut() {
+        return this.timedOut;
+    }
+
+    /**
+     * True from startAsync() until the request is dispatched or completed
+     */
+    public synchronized boolean isStarted() {
+        return (this.state == STARTED) || (this.state == SUSPENDED);
+    }
+
+    /**
+     * True if the handler thread still has to deal with the request, ie it
+     * hasn't been suspended yet, or a complete or dispatch is waiting
+     */
+    synchronized boolean isPending() {
+        return (this.state == STARTED) || (this.state == RESUMING);
+    }
+
+    /**
+     * Starts again after a dispatch
+     */
+    synchronized void restart() {
+        if (this.state == STARTED) {
+            throw new IllegalStateException(Launcher.RESOURCES.getString(
+                    "AsyncContext.AlreadyStarted"));
+        } else if (this.state != IDLE) {
+            throw new IllegalStateException(Launcher.RESOURCES.getString(
+                    "AsyncContext.NotStarted"));
+        }
+        this.state = STARTED;
+        this.timedOut = false;
+        this.asyncIo = newAsyncIo();
+    }
+
+    /**
+     * Called by the handler thread once service() has returned. If nothing
+     * has been asked for yet, this keeps the connection's state and returns
+     * true, and the handler lets go of the request. Otherwise it returns
+     * false, and the handler deals with the request straight away.
+     */
+    boolean suspend(ObjectPool objectPool, Socket socket, Listener listener,
+            String servletURI, WebAppConfiguration webAppConfig,
+            long requestStartTime, ConnectionInputBuffer inputBuffer,
+            ResponseBuffer commitBuffer, ConnectionTimeouts connectionTimeouts) {
+        synchronized (this) {
+            if (this.state != STARTED) {
+                return false;
+            }
+            this.objectPool = objectPool;
+            this.socket = socket;
+            this.listener = listener;
+            this.servletURI = servletURI;
+            this.webAppConfig = webAppConfig;
+            this.requestStartTime = requestStartTime;
+            this.inputBuffer = inputBuffer;
+            this.commitBuffer = commitBuffer;
+            this.connectionTimeouts = connectionTimeouts;
+            this.state = SUSPENDED;
+            if (this.timeout > 0) {
+                // The listeners get called off the wheel's thread, as they
+                // may take a while
+                this.timeoutTask = objectPool.getTimerWheel().newTimeout(
+                        TimerWheel.ASYNC, new Runnable() {
+                    public void run() {
+                        runCallback(new Runnable() {
+                            public void run() {
+                                timeout();
+                            }
+                        });
+                    }
+                });
+                this.timeoutTask.start(this.timeout);
+            }
+        }
+        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "AsyncContext.Suspended",
+                this.servletURI);
+        this.asyncIo.start(socket, listener);
+        return true;
+    }
+
+    /**
+     * Called by the handler thread once a dispatch or complete has been asked
+     * for. Returns the path to dispatch to (the original one if none was
+     * given), or null if the request should be completed.
+     */
+    synchronized String takeDispatch(String originalPath) {
+        if (this.dispatching) {
+            this.state = IDLE;
+            this.dispatching = false;
+            return this.dispatchPath == null ? originalPath : this.dispatchPath;
+        } else {
+            this.state = DONE;
+            return null;
+        }
+    }
+
+    Socket getSocket() {
+        return this.socket;
+    }
+
+    Listener getListener() {
+        return this.listener;
+    }
+
+    String getServletURI() {
+        return this.servletURI;
+    }
+
+    WebAppConfiguration getWebAppConfig() {
+        return this.webAppConfig;
+    }
+
+    long getRequestStartTime() {
+        return this.requestStartTime;
+    }
+
+    ConnectionInputBuffer getInputBuffer() {
+        return this.inputBuffer;
+    }
+
+    ResponseBuffer getCommitBuffer() {
+        return this.commitBuffer;
+    }
+
+    ConnectionTimeouts getConnectionTimeouts() {
+        return this.connectionTimeouts;
+    }
+
+    /**
+     * Runs a callback for the request on the pool's callback threads
+     */
+    void runCallback(Runnable task) {
+        this.objectPool.runAsyncCallback(task);
+    }
+
+    /**
+     * Ends any non-blocking io, once the socket is back in blocking mode
+     */
+    void finishAsyncIo() throws IOException {
+        this.asyncIo.finish();
+    }
+
+    /**
+     * Notifies the listeners that the response is finished
+     */
+    void fireComplete() {
+        for (Iterator i = copyListeners().iterator(); i.hasNext(); ) {
+            try {
+                ((AsyncListener) i.next()).onComplete(this);
+            } catch (Throwable err) {
+                Logger.log(Logger.ERROR, Launcher.RESOURCES,
+                        "AsyncContext.ListenerError", err);
+            }
+        }
+    }
+
+    /**
+     * Hands a suspended request back to a handler thread. If service() is
+     * still running, its handler picks the request up when it returns.
+     */
+    private void resume() {
+        boolean wasSuspended = false;
+        synchronized (this) {
+            wasSuspended = (this.state == SUSPENDED);
+            this.state = RESUMING;
+            this.asyncIo.stop();
+            if (this.timeoutTask != null) {
+                this.timeoutTask.cancel();
+                this.timeoutTask = null;
+            }
+        }
+        if (wasSuspended) {
+            try {
+                this.objectPool.resumeRequest(this);
+            } catch (Throwable err) {
+                Logger.log(Logger.ERROR, Launcher.RESOURCES,
+                        "AsyncContext.ResumeError", err);
+                closeSocket();
+                this.webAppConfig.getActiveRequests().requestFinished();
+                this.listener.getActiveRequests().requestFinished();
+            }
+        }
+    }
+
+    private void timeout() {
+        synchronized (this) {
+            if (this.state != SUSPENDED) {
+                return;
+            }
+            this.timeoutTask = null;
+        }
+        Logger.log(Logger.DEBUG, Launcher.RESOURCES, "AsyncContext.TimedOut",
+                this.servletURI);
+        for (Iterator i = copyListeners().iterator(); i.hasNext(); ) {
+            try {
+                ((AsyncListener) i.next()).onTimeout(this);
+            } catch (Throwable err) {
+                Logger.log(Logger.ERROR, Launcher.RESOURCES,
+                        "AsyncContext.ListenerError", err);
+            }
+        }
+
+        // Complete it ourselves if the listeners didn't
+        synchronized (this) {
+            if (this.state != SUSPENDED) {
+                return;
+            }
+            this.timedOut = true;
+            this.dispatching = false;
+        }
+        resume();
+    }
+
+    private List copyListeners() {
+        synchronized (this.listeners) {
+            return new ArrayList(this.listeners);
+        }
+    }
+
+    /**
+     * Closes the connection of a request that can't be resumed (eg because
+     * the server is shutting down)
+     */
+    void closeSocket() {
+        try {
+            if (this.socket != null) {
+                this.socket.close();
+            }
+        } catch (IOException err) {
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The non-blocking io of an async request: runs the ReadListener and
+ * WriteListener callbacks set on its streams.
+ *
+ * Once the request is suspended, the listener that owns the connection is
+ * asked to switch the socket to non-blocking mode. If it can (ie the nio
+ * connector), reads only take bytes that have already arrived, writes the
+ * socket can't take straight away wait in memory, and the listener's selector
+ * says when the socket is readable or writable again, so no thread waits on a
+ * slow client. Once too much is waiting though (ie the servlet keeps writing
+ * without checking isReady(), or has no WriteListener), writes block until
+ * the socket has taken it. The callbacks run on the object pool's bounded
+ * pool of callback threads. With the blocking connectors the callbacks are
+ * still made, but isReady() is always true, so the callback thread blocks
+ * instead.
+ *
+ * Non-blocking mode ends when the request is completed, dispatched or times
+ * out: the handler thread that picks it up sends any writes still waiting,
+ * with the socket back in blocking mode.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+class AsyncIo {
+    private static final int MAX_PENDING_WRITE = 65536;
+    private static final long WRITE_WAIT_PERIOD = 1000;
+
+    private AsyncContext async;
+    private WinstoneInputStream input;
+    private WinstoneOutputStream output;
+    private ReadListener readListener;
+    private WriteListener writeListener;
+
+    private Socket socket;
+    private Listener listener;
+    private boolean started;
+    private boolean nonBlockingChecked;
+    private volatile boolean nonBlocking;
+    private volatile boolean stopped;
+    private SocketChannel channel;
+    private ConnectionInputBuffer inputBuffer;
+    private OutputStream blockingOutput;
+    private ChannelOutputStream channelOutput;
+
+    private boolean readWatched;
+    private boolean writeWatched;
+    private boolean allDataRead;
+    private Throwable readError;
+    private Throwable writeError;
+    private Object readLock = new Boolean(true);
+    private Object writeLock = new Boolean(true);
+
+    private Runnable readTask = new Runnable() {
+        public void run() {
+            runReadCallback();
+        }
+    };
+    private Runnable writeTask = new Runnable() {
+        public void run() {
+            runWriteCallback();
+        }
+    };
+
+    // Run by the listener's selector thread, so they just pass the work on
+    private Runnable readReady = new Runnable() {
+        public void run() {
+            synchronized (AsyncIo.this) {
+                readWatched = false;
+            }
+            async.runCallback(readTask);
+        }
+    };
+    private Runnable writeReady = new Runnable() {
+        public void run() {
+            synchronized (AsyncIo.this) {
+                writeWatched = false;
+            }
+
+            // A writer waiting for room in the channel's buffer can go on
+            channelOutput.wakeWriters();
+            async.runCallback(writeTask);
+        }
+    };
+
+    AsyncIo(AsyncContext async, WinstoneInputStream input, WinstoneOutputStream output) {
+        this.async = async;
+        this.input = input;
+        this.output = output;
+        if (input != null) {
+            input.setAsyncIo(this);
+        }
+        if (output != null) {
+            output.setAsyncIo(this);
+        }
+    }
+
+    void setReadListener(ReadListener readListener) {
+        boolean startNow = false;
+        synchronized (this) {
+            checkListener(readListener, this.readListener);
+            this.readListener = readListener;
+            startNow = this.started;
+        }
+        if (startNow) {
+            startNonBlocking();
+            this.async.runCallback(this.readTask);
+        }
+    }
+
+    void setWriteListener(WriteListener writeListener) {
+        boolean startNow = false;
+        synchronized (this) {
+            checkListener(writeListener, this.writeListener);
+            this.writeListener = writeListener;
+            startNow = this.started;
+        }
+        if (startNow) {
+            startNonBlocking();
+            this.async.runCallback(this.writeTask);
+        }
+    }
+
+    private void checkListener(Object newListener, Object oldListener) {
+        if (newListener == null) {
+            throw new NullPointerException();
+        } else if (this.stopped) {
+            throw new IllegalStateException(Launcher.RESOURCES.getString(
+                    "AsyncContext.NotStarted"));
+        } else if (oldListener != null) {
+            throw new IllegalStateException(Launcher.RESOURCES.getString(
+                    "AsyncIo.ListenerAlreadySet"));
+        }
+    }
+
+    /**
+     * Called once the request has been suspended: starts the callbacks for
+     * any listeners already set.
+     */
+    void start(Socket socket, Listener listener) {
+        boolean read = false;
+        boolean write = false;
+        synchronized (this) {
+            if (this.stopped) {
+                return;
+            }
+            this.socket = socket;
+            this.listener = listener;
+            this.started = true;
+            read = (this.readListener != null);
+            write = (this.writeListener != null);
+        }
+        if (read || write) {
+            startNonBlocking();
+        }
+        if (read) {
+            this.async.runCallback(this.readTask);
+        }
+        if (write) {
+            this.async.runCallback(this.writeTask);
+        }
+    }
+
+    /**
+     * Asks the listener to put the socket in non-blocking mode, and if it
+     * does, sends the response's writes through the channel from now on
+     */
+    private void startNonBlocking() {
+        synchronized (this) {
+            if (this.nonBlockingChecked || this.stopped) {
+                return;
+            }
+            this.nonBlockingChecked = true;
+            if ((this.socket.getChannel() == null) || (this.input == null)
+                    || (this.output == null)
+                    || !(this.input.getRawInputStream() instanceof ConnectionInputBuffer)
+                    || !this.listener.startNonBlocking(this.socket)) {
+                return;
+            }
+            this.channel = this.socket.getChannel();
+            this.inputBuffer = (ConnectionInputBuffer) this.input.getRawInputStream();
+            this.channelOutput = new ChannelOutputStream();
+        }
+
+        // Outside our lock, since writers take the stream's lock and then ours
+        synchronized (this.output) {
+            this.blockingOutput = this.output.getRawOutputStream();
+            this.output.setRawOutputStream(this.channelOutput);
+        }
+        this.nonBlocking = true;
+        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "AsyncIo.NonBlocking",
+                "" + this.channel);
+    }
+
+    boolean isNonBlocking() {
+        return this.nonBlocking && !this.stopped;
+    }
+
+    /**
+     * True if the body can be read without blocking. If not, the read
+     * listener is called back when it can.
+     */
+    boolean isReadReady() {
+        if (!isNonBlocking()) {
+            return true;
+        }
+        try {
+            if (this.input.isReadBuffered()) {
+                return true;
+            } else if (this.inputBuffer.isFull()) {
+                throw new IOException(Launcher.RESOURCES.getString(
+                        "AsyncIo.BufferFull"));
+            }
+            int count = this.inputBuffer.fill(this.channel);
+            if (count == -1) {
+                throw new EOFException(Launcher.RESOURCES.getString(
+                        "WinstoneInputStream.EndOfStream"));
+            } else if ((count > 0) && this.input.isReadBuffered()) {
+                return true;
+            }
+            watchRead();
+        } catch (IOException err) {
+            synchronized (this) {
+                this.readError = err;
+            }
+            this.async.runCallback(this.readTask);
+        }
+        return false;
+    }
+
+    /**
+     * True if everything written so far has gone to the socket. If not, the
+     * write listener is called back once it has.
+     */
+    boolean isWriteReady() {
+        if (!isNonBlocking()) {
+            return true;
+        }
+        try {
+            if (this.channelOutput.drain()) {
+                return true;
+            }
+            watchWrite();
+        } catch (IOException err) {
+            synchronized (this) {
+                this.writeError = err;
+            }
+            this.async.runCallback(this.writeTask);
+        }
+        return false;
+    }
+
+    private void watchRead() {
+        synchronized (this) {
+            if (this.readWatched || this.stopped) {
+                return;
+            }
+            this.readWatched = true;
+        }
+        this.listener.watchSocket(this.socket, false, this.readReady);
+    }
+
+    private void watchWrite() {
+        synchronized (this) {
+            if (this.writeWatched || this.stopped) {
+                return;
+            }
+            this.writeWatched = true;
+        }
+        this.listener.watchSocket(this.socket, true, this.writeReady);
+    }
+
+    private void runReadCallback() {
+        synchronized (this.readLock) {
+            Throwable error = null;
+            synchronized (this) {
+                error = this.readError;
+                this.readError = null;
+            }
+            if (this.stopped) {
+                return;
+            }
+            try {
+                if ((error == null) && (this.readListener != null)) {
+                    if (!this.input.isFinished()) {
+                        if (!isReadReady()) {
+                            return;
+                        }
+                        this.readListener.onDataAvailable();
+                    }
+                    if (this.input.isFinished() && !this.allDataRead) {
+                        this.allDataRead = true;
+                        this.readListener.onAllDataRead();
+                    }
+                    return;
+                } else if (error == null) {
+                    return;
+                }
+            } catch (Throwable err) {
+                error = err;
+            }
+            Logger.log(Logger.DEBUG, Launcher.RESOURCES, "AsyncIo.Error", error);
+            if (this.readListener != null) {
+                this.readListener.onError(error);
+            }
+            this.async.complete();
+        }
+    }
+
+    /**
+     * Without a write listener this just keeps the waiting writes moving
+     */
+    private void runWriteCallback() {
+        synchronized (this.writeLock) {
+            Throwable error = null;
+            synchronized (this) {
+                error = this.writeError;
+                this.writeError = null;
+            }
+            if (this.stopped) {
+                return;
+            }
+            try {
+                if (error == null) {
+                    if (isWriteReady() && (this.writeListener != null)) {
+                        this.writeListener.onWritePossible();
+                    }
+                    return;
+                }
+            } catch (Throwable err) {
+                error = err;
+            }
+            Logger.log(Logger.DEBUG, Launcher.RESOURCES, "AsyncIo.Error", error);
+            if (this.writeListener != null) {
+                this.writeListener.onError(error);
+            }
+            this.async.complete();
+        }
+    }
+
+    /**
+     * Called when the request is completed or dispatched, from any thread.
+     * No more callbacks are made after this.
+     */
+    void stop() {
+        this.stopped = true;
+    }
+
+    /**
+     * Called by the handler thread that picks the request up, once the socket
+     * is back in blocking mode: sends any writes still waiting, and points the
+     * response at the socket stream again
+     */
+    void finish() throws IOException {
+        synchronized (this) {
+            this.stopped = true;
+            if (!this.nonBlocking) {
+                return;
+            }
+            this.nonBlocking = false;
+        }
+        synchronized (this.output) {
+            this.output.setRawOutputStream(this.blockingOutput);
+        }
+        if (!this.channelOutput.drain()) {
+            throw new IOException(Launcher.RESOURCES.getString(
+                    "AsyncIo.StillNonBlocking"));
+        }
+    }
+
+    /**
+     * Writes straight to the non-blocking channel, keeping whatever it won't
+     * take until it is writable again. Once the bytes kept reach the limit,
+     * writes wait for the channel to take them all.
+     */
+    private class ChannelOutputStream extends OutputStream {
+        private ResponseBuffer pending = new ResponseBuffer();
+        private int pendingPos;
+
+        public void write(int data) throws IOException {
+            write(new byte[] { (byte) data }, 0, 1);
+        }
+
+        public synchronized void write(byte b[], int off, int len) throws IOException {
+            if (this.pending.size() >= MAX_PENDING_WRITE) {
+                awaitDrained();
+            }
+            if (this.pendingPos == this.pending.size()) {
+                ByteBuffer direct = ByteBuffer.wrap(b, off, len);
+                channel.write(direct);
+                off = direct.position();
+                len = direct.remaining();
+            }
+            if (len > 0) {
+                this.pending.write(b, off, len);
+            }
+        }
+
+        public void flush() throws IOException {
+            if (!drain()) {
+                watchWrite();
+            }
+        }
+
+        /**
+         * Writes as much of the waiting bytes as the channel takes. Returns
+         * true if there's nothing left waiting.
+         */
+        synchronized boolean drain() throws IOException {
+            if (this.pendingPos < this.pending.size()) {
+                int written = this.pending.writeTo(channel, this.pendingPos);
+                this.pendingPos += written;
+                if (this.pendingPos < this.pending.size()) {
+                    return false;
+                }
+                this.pending.reset();
+                this.pendingPos = 0;
+            }
+            return true;
+        }
+
+        /**
+         * Waits for the channel to take all the waiting bytes, giving up after
+         * the connection's write timeout without any progress, or if the
+         * request is completed in the meantime
+         */
+        private void awaitDrained() throws IOException {
+            int writeTimeout = async.getConnectionTimeouts().getWriteTimeout();
+            long lastProgress = System.currentTimeMillis();
+            int lastPos = this.pendingPos;
+            while (!drain()) {
+                if (stopped) {
+                    throw new IOException(Launcher.RESOURCES.getString(
+                            "AsyncIo.StillNonBlocking"));
+                } else if (this.pendingPos != lastPos) {
+                    lastPos = this.pendingPos;
+                    lastProgress = System.currentTimeMillis();
+                } else if ((writeTimeout > 0)
+                        && (System.currentTimeMillis() - lastProgress > writeTimeout)) {
+                    throw new SocketTimeoutException(Launcher.RESOURCES.getString(
+                            "AsyncIo.WriteTimeout"));
+                }
+                watchWrite();
+                try {
+                    this.wait(WRITE_WAIT_PERIOD);
+                } catch (InterruptedException err) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        synchronized void wakeWriters() {
+            this.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.IOException;
+
+/**
+ * Notified of the outcome of an asynchronous request (see AsyncContext).
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public interface AsyncListener {
+    /**
+     * Called once the response has been finished, on the thread finishing it.
+     */
+    public void onComplete(AsyncContext async) throws IOException;
+
+    /**
+     * Called when a suspended request reaches its timeout. If the listener
+     * doesn't complete or dispatch the request itself, the container
+     * completes it (with a 500 error if nothing has been sent yet).
+     */
+    public void onTimeout(AsyncContext async) throws IOException;
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * One range of bytes from a Range header, resolved against the length of the
+ * resource (so suffix and open ended ranges become absolute positions). Uses
+ * longs throughout, so files over 2GB work.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class ByteRange {
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * More ranges than this in one header is more likely an attack than a
+     * download manager, so the whole resource is sent instead
+     */
+    public static final int MAX_RANGES = 64;
+
+    private long start;
+    private long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return this.start;
+    }
+
+    /**
+     * The last byte in the range (inclusive, as in the header)
+     */
+    public long getEnd() {
+        return this.end;
+    }
+
+    public long getLength() {
+        return this.end - this.start + 1;
+    }
+
+    /**
+     * The value for the Content-Range header of this range
+     */
+    public String getContentRange(long resourceLength) {
+        return "bytes " + this.start + "-" + this.end + "/" + resourceLength;
+    }
+
+    public String toString() {
+        return this.start + "-" + this.end;
+    }
+
+    /**
+     * Parses a Range header (rfc 2616, 14.35) against the resource length.
+     * Returns null if the header should be ignored and the whole resource
+     * sent: an unknown unit, bad syntax or too many ranges. Returns an empty
+     * list if none of the ranges can be satisfied. Otherwise the ranges are
+     * returned sorted, with overlapping and adjacent ones merged.
+     */
+    public static List parseRanges(String header, long length) {
+        if ((header == null) || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+        List ranges = new ArrayList();
+        StringTokenizer st = new StringTokenizer(header.substring(BYTES_UNIT.length()), ",", false);
+        int specCount = 0;
+        while (st.hasMoreTokens()) {
+            String rangeSpec = st.nextToken().trim();
+            if (rangeSpec.equals("")) {
+                continue;
+            } else if (++specCount > MAX_RANGES) {
+                return null;
+            }
+            int delim = rangeSpec.indexOf('-');
+            if (delim == -1) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (delim == 0) {
+                    // Suffix range, ie the last n bytes
+                    long suffix = parseNumber(rangeSpec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = parseNumber(rangeSpec.substring(0, delim));
+                    String lastText = rangeSpec.substring(delim + 1).trim();
+                    if (lastText.equals("")) {
+                        last = length - 1;
+                    } else {
+                        last = parseNumber(lastText);
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, length - 1);
+                    }
+                }
+            } catch (NumberFormatException err) {
+                return null;
+            }
+            if ((first < length) && (last >= first)) {
+                ranges.add(new ByteRange(first, last));
+            }
+        }
+        if (specCount == 0) {
+            return null;
+        }
+        return coalesce(ranges);
+    }
+
+    private static long parseNumber(String text) {
+        String trimmed = text.trim();
+        if ((trimmed.length() == 0) || (trimmed.charAt(0) < '0') || (trimmed.charAt(0) > '9')) {
+            throw new NumberFormatException(text);
+        }
+        return Long.parseLong(trimmed);
+    }
+
+    private static List coalesce(List ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        Collections.sort(ranges, new Comparator() {
+            public int compare(Object one, Object two) {
+                long diff = ((ByteRange) one).start - ((ByteRange) two).start;
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        List merged = new ArrayList();
+        ByteRange current = (ByteRange) ranges.get(0);
+        for (int n = 1; n < ranges.size(); n++) {
+            ByteRange next = (ByteRange) ranges.get(n);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+}
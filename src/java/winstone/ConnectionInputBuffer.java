@@ -0,0 +1,296 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A read-ahead buffer that lives as long as a connection (or, for the pooled
+ * listeners, as long as a request handler thread). The request head is parsed
+ * in place from this buffer, and any bytes read past the end of the head are
+ * kept for the request body or the next pipelined request.
+ *
+ * Unread bytes are always the range [pos, limit) of the backing array.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class ConnectionInputBuffer extends InputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int MAX_HEAD_SIZE = 65536;
+
+    private InputStream inSocket;
+    private byte buffer[];
+    private int pos;
+    private int limit;
+    private int initialSize;
+
+    // How far findHeadEnd() has already looked, so it never rescans, and
+    // the end of the head it found (until consumed)
+    private int scanPos;
+    private int headEnd = -1;
+
+    public ConnectionInputBuffer(int size) {
+        this.initialSize = size;
+        this.buffer = new byte[size];
+    }
+
+    /**
+     * Starts a new connection: drops anything left over from the previous one.
+     */
+    public void reset(InputStream inSocket) {
+        this.inSocket = inSocket;
+        this.pos = 0;
+        this.limit = 0;
+        this.scanPos = 0;
+        this.headEnd = -1;
+        if (this.buffer.length != this.initialSize) {
+            this.buffer = new byte[this.initialSize];
+        }
+    }
+
+    /**
+     * Swaps the underlying stream, keeping any buffered bytes.
+     */
+    public void setInputStream(InputStream inSocket) {
+        this.inSocket = inSocket;
+    }
+
+    public byte[] getBuffer() {
+        return this.buffer;
+    }
+
+    public int getPosition() {
+        return this.pos;
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public int getBufferedCount() {
+        return this.limit - this.pos;
+    }
+
+    public boolean isFull() {
+        return (this.pos == 0) && (this.limit == this.buffer.length);
+    }
+
+    /**
+     * Marks the bytes up to the index supplied as consumed.
+     */
+    public void consume(int newPos) {
+        this.pos = newPos;
+        this.headEnd = -1;
+        if (this.scanPos < newPos) {
+            this.scanPos = newPos;
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the array to make room.
+     */
+    private void compact() {
+        if (this.pos > 0) {
+            int remaining = this.limit - this.pos;
+            System.arraycopy(this.buffer, this.pos, this.buffer, 0, remaining);
+            this.scanPos -= this.pos;
+            this.limit = remaining;
+            this.pos = 0;
+        }
+    }
+
+    /**
+     * Doubles the buffer (up to MAX_HEAD_SIZE), for request heads that don't
+     * fit in the default size. Returns false if it is already at the maximum.
+     */
+    private boolean grow() {
+        if (this.buffer.length >= MAX_HEAD_SIZE) {
+            return false;
+        }
+        byte newBuffer[] = new byte[Math.min(MAX_HEAD_SIZE, this.buffer.length * 2)];
+        System.arraycopy(this.buffer, this.pos, newBuffer, 0, this.limit - this.pos);
+        this.scanPos -= this.pos;
+        this.limit -= this.pos;
+        this.pos = 0;
+        this.buffer = newBuffer;
+        return true;
+    }
+
+    /**
+     * Blocking read of whatever the socket has available into the free space
+     * at the end of the buffer. Returns -1 at end of stream.
+     */
+    public int fill() throws IOException {
+        if (this.limit == this.buffer.length) {
+            compact();
+        }
+        int count = this.inSocket.read(this.buffer, this.limit,
+                this.buffer.length - this.limit);
+        if (count > 0) {
+            this.limit += count;
+        }
+        return count;
+    }
+
+    /**
+     * Non-blocking read from a channel into the free space at the end of the
+     * buffer. Returns -1 at end of stream.
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        if (this.limit == this.buffer.length) {
+            compact();
+        }
+        int count = channel.read(ByteBuffer.wrap(this.buffer, this.limit,
+                this.buffer.length - this.limit));
+        if (count > 0) {
+            this.limit += count;
+        }
+        return count;
+    }
+
+    /**
+     * Reads from the socket until the buffer holds a complete request head,
+     * growing the buffer if needed. Returns the index just past the blank
+     * line that ends the head, or -1 if the stream ended first. Throws a
+     * RequestHeadTooLargeException if the head won't fit in MAX_HEAD_SIZE.
+     */
+    public int readHead() throws IOException {
+        int headEnd = findHeadEnd();
+        while (headEnd == -1) {
+            if (isFull() && !grow()) {
+                throw new RequestHeadTooLargeException(Launcher.RESOURCES.getString(
+                        "ConnectionInputBuffer.HeadTooLarge", "" + MAX_HEAD_SIZE));
+            }
+            if (fill() == -1) {
+                return -1;
+            }
+            headEnd = findHeadEnd();
+        }
+        return headEnd;
+    }
+
+    /**
+     * Looks for the end of the request head in the buffered bytes, ie the
+     * blank line after the headers. Blank lines before the request line are
+     * skipped. HTTP/0.9 style request lines (no protocol) have no headers, so
+     * the end of the first line is the end of the head. Returns -1 if the head
+     * is not complete yet.
+     */
+    public int findHeadEnd() {
+        if (this.headEnd != -1) {
+            return this.headEnd;
+        }
+        byte buf[] = this.buffer;
+        int n = this.scanPos;
+
+        // Skip leading blank lines
+        if (n <= this.pos) {
+            n = this.pos;
+            while ((n < this.limit) && ((buf[n] == '\r') || (buf[n] == '\n'))) {
+                n++;
+            }
+            this.pos = n;
+            this.scanPos = n;
+        }
+
+        for (; n < this.limit; n++) {
+            if (buf[n] != '\n') {
+                continue;
+            }
+            int lineStart = previousLineStart(n);
+            if (lineStart == this.pos) {
+                // End of the request line: count the spaces to spot HTTP/0.9
+                if (isSimpleRequestLine(lineStart, n)) {
+                    return foundHeadEnd(n + 1);
+                }
+            } else if ((lineStart == n) || ((lineStart == n - 1) && (buf[n - 1] == '\r'))) {
+                return foundHeadEnd(n + 1);
+            }
+        }
+        // Resume from the start of the incomplete line next time
+        this.scanPos = previousLineStart(this.limit);
+        return -1;
+    }
+
+    private int foundHeadEnd(int index) {
+        this.scanPos = index;
+        this.headEnd = index;
+        return index;
+    }
+
+    private int previousLineStart(int index) {
+        int n = index - 1;
+        while ((n >= this.pos) && (this.buffer[n] != '\n')) {
+            n--;
+        }
+        return n + 1;
+    }
+
+    private boolean isSimpleRequestLine(int start, int end) {
+        int spaces = 0;
+        for (int n = start + 1; n < end; n++) {
+            if ((this.buffer[n] == ' ') && (this.buffer[n - 1] != ' ')) {
+                spaces++;
+            }
+        }
+        return spaces < 2;
+    }
+
+    public int read() throws IOException {
+        if ((this.pos == this.limit) && (fill() <= 0)) {
+            return -1;
+        }
+        return this.buffer[this.pos++] & 0xFF;
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int buffered = this.limit - this.pos;
+        if (buffered == 0) {
+            // Big reads go straight to the socket, rather than via the buffer
+            if (len >= this.buffer.length) {
+                return this.inSocket.read(b, off, len);
+            }
+            this.pos = 0;
+            this.limit = 0;
+            this.scanPos = 0;
+            this.headEnd = -1;
+            if (fill() <= 0) {
+                return -1;
+            }
+            buffered = this.limit;
+        }
+        int count = Math.min(len, buffered);
+        System.arraycopy(this.buffer, this.pos, b, off, count);
+        this.pos += count;
+        return count;
+    }
+
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int buffered = this.limit - this.pos;
+        if (buffered > 0) {
+            int count = (int) Math.min(n, buffered);
+            this.pos += count;
+            return count;
+        }
+        return this.inSocket.skip(n);
+    }
+
+    public int available() throws IOException {
+        return (this.limit - this.pos)
+                + (this.inSocket == null ? 0 : this.inSocket.available());
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The read, write and keep-alive deadlines of one blocking connection, kept
+ * on the object pool's timer wheel rather than as socket timeouts. The
+ * connection's streams are wrapped so that each blocking read or write starts
+ * a deadline and cancels it when it returns. If the deadline expires first,
+ * the socket is closed to unblock the thread, and the read or write throws a
+ * SocketTimeoutException (so the handler treats it as before).
+ *
+ * Listeners set the timeouts for each request, and switch the read deadline
+ * to the keep-alive timeout while waiting for the next request. Changing them
+ * is just a field write, so it costs nothing per request. A timeout of zero
+ * or less means no deadline.
+ *
+ * This belongs to the connection rather than the handler, so it travels with
+ * a suspended async request. It also sends file regions straight to the
+ * socket's channel (see transferFile()), under the same write deadline.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class ConnectionTimeouts {
+    private Socket socket;
+    private TimerWheel.Timeout readTimeout;
+    private TimerWheel.Timeout writeTimeout;
+    private TimerWheel.Timeout keepAliveTimeout;
+    private int readMillis;
+    private int writeMillis;
+    private int keepAliveMillis;
+    private boolean keepAlive;
+    private InputStream inSocket;
+    private OutputStream outSocket;
+
+    public ConnectionTimeouts(TimerWheel timerWheel, Socket socket) throws IOException {
+        this.socket = socket;
+        Runnable closer = new Runnable() {
+            public void run() {
+                closeSocket();
+            }
+        };
+        this.readTimeout = timerWheel.newTimeout(TimerWheel.READ, closer);
+        this.writeTimeout = timerWheel.newTimeout(TimerWheel.WRITE, closer);
+        this.keepAliveTimeout = timerWheel.newTimeout(TimerWheel.KEEP_ALIVE, closer);
+        this.inSocket = new TimedInputStream(socket.getInputStream());
+        this.outSocket = new TimedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * The socket's input stream, with read deadlines
+     */
+    public InputStream getInputStream() {
+        return this.inSocket;
+    }
+
+    /**
+     * The socket's output stream, with write deadlines
+     */
+    public OutputStream getOutputStream() {
+        return this.outSocket;
+    }
+
+    public void setTimeouts(int readMillis, int writeMillis) {
+        this.readMillis = readMillis;
+        this.writeMillis = writeMillis;
+    }
+
+    public int getWriteTimeout() {
+        return this.writeMillis;
+    }
+
+    /**
+     * Applies the keep-alive timeout to reads until endKeepAlive() is called
+     */
+    public void startKeepAlive(int keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+        this.keepAlive = true;
+    }
+
+    public void endKeepAlive() {
+        this.keepAlive = false;
+    }
+
+    /**
+     * True if transferFile() can be used, ie the socket has a channel (plain
+     * http, not ssl) and it is in blocking mode
+     */
+    public boolean canTransferFiles() {
+        SocketChannel channel = this.socket.getChannel();
+        return (channel != null) && channel.isBlocking();
+    }
+
+    /**
+     * Sends part of a file straight to the socket with FileChannel.transferTo,
+     * which lets the OS copy it without passing it through the heap (sendfile
+     * on most platforms). Anything written to the output stream must have
+     * been flushed first. Returns the bytes sent, which is less than the
+     * count if the file ends first.
+     */
+    public long transferFile(FileChannel file, long position, long count) throws IOException {
+        SocketChannel channel = this.socket.getChannel();
+        long sent = 0;
+        while (sent < count) {
+            TimerWheel.Timeout timeout = start(this.writeTimeout, this.writeMillis);
+            long written;
+            try {
+                written = file.transferTo(position + sent, count - sent, channel);
+            } catch (IOException err) {
+                throw checkExpired(timeout, err);
+            } finally {
+                cancel(timeout);
+            }
+            if (written <= 0) {
+                break;
+            }
+            sent += written;
+        }
+        return sent;
+    }
+
+    private void closeSocket() {
+        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
+                "ConnectionTimeouts.Closing", "" + this.socket);
+        try {
+            this.socket.close();
+        } catch (IOException err) {
+        }
+    }
+
+    private TimerWheel.Timeout startRead() {
+        TimerWheel.Timeout timeout = this.keepAlive ? this.keepAliveTimeout : this.readTimeout;
+        int millis = this.keepAlive ? this.keepAliveMillis : this.readMillis;
+        return start(timeout, millis);
+    }
+
+    private static TimerWheel.Timeout start(TimerWheel.Timeout timeout, int millis) {
+        if (millis <= 0) {
+            return null;
+        }
+        timeout.start(millis);
+        return timeout;
+    }
+
+    private static void cancel(TimerWheel.Timeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Swaps the exception caused by closing the socket for a timeout
+     */
+    private static IOException checkExpired(TimerWheel.Timeout timeout, IOException err) {
+        if ((timeout == null) || !timeout.isExpired()) {
+            return err;
+        }
+        SocketTimeoutException timedOut = new SocketTimeoutException(
+                Launcher.RESOURCES.getString("ConnectionTimeouts.TimedOut"));
+        timedOut.initCause(err);
+        return timedOut;
+    }
+
+    private class TimedInputStream extends FilterInputStream {
+        TimedInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            TimerWheel.Timeout timeout = startRead();
+            try {
+                return this.in.read();
+            } catch (IOException err) {
+                throw checkExpired(timeout, err);
+            } finally {
+                cancel(timeout);
+            }
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            TimerWheel.Timeout timeout = startRead();
+            try {
+                return this.in.read(b, off, len);
+            } catch (IOException err) {
+                throw checkExpired(timeout, err);
+            } finally {
+                cancel(timeout);
+            }
+        }
+
+        public long skip(long n) throws IOException {
+            TimerWheel.Timeout timeout = startRead();
+            try {
+                return this.in.skip(n);
+            } catch (IOException err) {
+                throw checkExpired(timeout, err);
+            } finally {
+                cancel(timeout);
+            }
+        }
+    }
+
+    private class TimedOutputStream extends FilterOutputStream {
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            TimerWheel.Timeout timeout = start(writeTimeout, writeMillis);
+            try {
+                this.out.write(b);
+            } catch (IOException err) {
+                throw checkExpired(timeout, err);
+            } finally {
+                cancel(timeout);
+            }
+        }
+
+        public void write(byte b[], int off, int len) throws IOException {
+            TimerWheel.Timeout timeout = start(writeTimeout, writeMillis);
+            try {
+                this.out.write(b, off, len);
+            } catch (IOException err) {
+                throw checkExpired(timeout, err);
+            } finally {
+                cancel(timeout);
+            }
+        }
+
+        public void flush() throws IOException {
+            TimerWheel.Timeout timeout = start(writeTimeout, writeMillis);
+            try {
+                this.out.flush();
+            } catch (IOException err) {
+                throw checkExpired(timeout, err);
+            } finally {
+                cancel(timeout);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
+
+/**
+ * Shared date formatting and parsing. The current time's http date (plus
+ * the log and access log timestamps) is formatted at most once per second
+ * and shared by every thread. Other dates use immutable (so thread-safe)
+ * formatters, so no caller has to lock.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class DateService {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern(
+            "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter COOKIE_DATE = DateTimeFormatter.ofPattern(
+            "EEE, dd-MMM-yy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter LOG_DATE = DateTimeFormatter.ofPattern(
+            "yyyy/MM/dd HH:mm:ss");
+    private static final DateTimeFormatter ACCESS_LOG_DATE = DateTimeFormatter.ofPattern(
+            "dd/MMM/yyyy:HH:mm:ss Z");
+
+    // The obsolete formats http/1.1 still requires us to accept (rfc 850 and asctime)
+    private static final DateTimeFormatter RFC850_DATE = new DateTimeFormatterBuilder()
+            .appendPattern("EEEE, dd-MMM-")
+            .appendValueReduced(ChronoField.YEAR, 2, 2, 1970)
+            .appendPattern(" HH:mm:ss 'GMT'").toFormatter(Locale.US);
+    private static final DateTimeFormatter ASCTIME_DATE = DateTimeFormatter.ofPattern(
+            "EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+
+    private static volatile CurrentDates current = new CurrentDates(System.currentTimeMillis() / 1000L);
+
+    /**
+     * The dates for one second, formatted together
+     */
+    static class CurrentDates {
+        final long second;
+        final String httpDate;
+        final byte httpDateBytes[];
+        final String logDate;
+        final String accessLogDate;
+
+        CurrentDates(long second) {
+            this.second = second;
+            Instant instant = Instant.ofEpochSecond(second);
+            ZonedDateTime local = ZonedDateTime.ofInstant(instant, ZoneId.systemDefault());
+            this.httpDate = HTTP_DATE.format(instant);
+            this.httpDateBytes = new byte[this.httpDate.length()];
+            for (int n = 0; n < this.httpDateBytes.length; n++) {
+                this.httpDateBytes[n] = (byte) this.httpDate.charAt(n);
+            }
+            this.logDate = LOG_DATE.format(local);
+            this.accessLogDate = ACCESS_LOG_DATE.format(local);
+        }
+    }
+
+    private static CurrentDates getCurrentDates() {
+        long second = System.currentTimeMillis() / 1000L;
+        CurrentDates dates = current;
+        if (dates.second != second) {
+            // Racing threads may both format, but they produce the same thing
+            dates = new CurrentDates(second);
+            current = dates;
+        }
+        return dates;
+    }
+
+    /**
+     * The current time as an http date, eg for the Date header
+     */
+    public static String getCurrentHttpDate() {
+        return getCurrentDates().httpDate;
+    }
+
+    /**
+     * The current http date as ISO-8859-1 bytes. Shared, so don't modify it.
+     */
+    public static byte[] getCurrentHttpDateBytes() {
+        return getCurrentDates().httpDateBytes;
+    }
+
+    /**
+     * The current time for the server log (local time zone)
+     */
+    public static String getCurrentLogDate() {
+        return getCurrentDates().logDate;
+    }
+
+    /**
+     * The current time in common log format (local time zone)
+     */
+    public static String getCurrentAccessLogDate() {
+        return getCurrentDates().accessLogDate;
+    }
+
+    public static String formatHttpDate(long date) {
+        CurrentDates dates = current;
+        if (dates.second == Math.floorDiv(date, 1000L)) {
+            return dates.httpDate;
+        }
+        return HTTP_DATE.format(Instant.ofEpochMilli(date));
+    }
+
+    /**
+     * Formats a date for a version 0 (netscape style) cookie's Expires field
+     */
+    public static String formatCookieDate(long date) {
+        return COOKIE_DATE.format(Instant.ofEpochMilli(date));
+    }
+
+    /**
+     * Parses an http date in any of the three formats allowed by http/1.1.
+     * Returns -1 if the date can't be parsed.
+     */
+    public static long parseHttpDate(String date) {
+        String trimmed = date.trim();
+        try {
+            return ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+        } catch (DateTimeParseException err) {
+        }
+        try {
+            return LocalDateTime.parse(trimmed, RFC850_DATE)
+                    .toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException err) {
+        }
+        try {
+            return LocalDateTime.parse(trimmed, ASCTIME_DATE)
+                    .toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException err) {
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzips a response body as it is committed. Works like GZIPOutputStream,
+ * but takes its Deflater from a pool instead of allocating a new one (and its
+ * native memory) for every response, and flush() sends everything written
+ * so far (a sync flush), so streamed responses still arrive as they are
+ * flushed.
+ *
+ * release() must be called once the body is done, to give the Deflater back.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class GzipEncoder extends DeflaterOutputStream {
+    private static final int MAX_POOLED_DEFLATERS = 32;
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final byte HEADER[] = new byte[] { 0x1f, (byte) 0x8b,
+            Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static List deflaterPool = new ArrayList();
+
+    private CRC32 crc;
+    private boolean finished;
+
+    public GzipEncoder(OutputStream out) throws IOException {
+        super(out, getDeflater(), DEFAULT_BUFFER_SIZE, true);
+        this.crc = new CRC32();
+        out.write(HEADER);
+    }
+
+    private static Deflater getDeflater() {
+        synchronized (deflaterPool) {
+            if (!deflaterPool.isEmpty()) {
+                return (Deflater) deflaterPool.remove(deflaterPool.size() - 1);
+            }
+        }
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    public synchronized void write(byte b[], int off, int len) throws IOException {
+        super.write(b, off, len);
+        this.crc.update(b, off, len);
+    }
+
+    /**
+     * Compresses anything left, then writes the gzip trailer
+     */
+    public synchronized void finish() throws IOException {
+        if (this.finished) {
+            return;
+        }
+        super.finish();
+        writeInt((int) this.crc.getValue());
+        writeInt((int) this.def.getBytesRead());
+        this.finished = true;
+    }
+
+    public boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Gives the Deflater back to the pool. Nothing more can be written.
+     */
+    public synchronized void release() {
+        if (this.def == null) {
+            return;
+        }
+        Deflater deflater = this.def;
+        this.def = null;
+        this.finished = true;
+        deflater.reset();
+        synchronized (deflaterPool) {
+            if (deflaterPool.size() < MAX_POOLED_DEFLATERS) {
+                deflaterPool.add(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    private void writeInt(int value) throws IOException {
+        this.out.write(value & 0xff);
+        this.out.write((value >> 8) & 0xff);
+        this.out.write((value >> 16) & 0xff);
+        this.out.write((value >> 24) & 0xff);
+    }
+}
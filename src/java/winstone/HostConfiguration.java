@@ -35,6 +35,7 @@ import org.w3c.dom.Node;
 public class HostConfiguration implements Runnable {
     
     private static final long FLUSH_PERIOD = 60000L;
+    private static final int DEFAULT_DRAIN_TIMEOUT = 30;
     
     private static final String WEB_INF = "WEB-INF";
     private static final String WEB_XML = "web.xml";
@@ -48,6 +49,7 @@ public class HostConfiguration implements Runnable {
     private File commonLibCLPaths[];
     
     private Thread thread;
+    private Object reloadSemaphore = new Boolean(true);
     
     public HostConfiguration(String hostname, Cluster cluster, ObjectPool objectPool, ClassLoader commonLibCL, 
             File commonLibCLPaths[], Map args, String webappsDirName) throws IOException {
@@ -182,22 +184,80 @@ public class HostConfiguration implements Runnable {
         this.thread = null;
     }
     
+    /**
+     * Builds a new instance of the webapp while the old one carries on
+     * serving, then swaps it in. The sessions are copied across first (where
+     * they are serializable), and the old instance is destroyed once its
+     * requests in progress have drained. If the new instance can't be built,
+     * the old one is left in place.
+     */
     public void reloadWebApp(String prefix) throws IOException {
-        WebAppConfiguration webAppConfig = (WebAppConfiguration) this.webapps.get(prefix);
-        if (webAppConfig != null) {
-            String webRoot = webAppConfig.getWebroot();
-            String contextName = webAppConfig.getContextName();
-            destroyWebApp(prefix);
+        synchronized (this.reloadSemaphore) {
+            WebAppConfiguration oldWebApp = (WebAppConfiguration) this.webapps.get(prefix);
+            if (oldWebApp == null) {
+                throw new WinstoneException(Launcher.RESOURCES.getString("HostConfig.PrefixUnknown", prefix));
+            }
+            WebAppConfiguration newWebApp = null;
             try {
-                this.webapps.put(prefix, initWebApp(prefix, new File(webRoot), contextName));
+                newWebApp = initWebApp(prefix, new File(oldWebApp.getWebroot()), 
+                        oldWebApp.getContextName());
             } catch (Throwable err) {
                 Logger.log(Logger.ERROR, Launcher.RESOURCES, "HostConfig.WebappInitError", prefix, err);
+                return;
             }
-        } else {
+            Map copiedSessions = newWebApp.copySessions(oldWebApp);
+            this.webapps.put(prefix, newWebApp);
+            Logger.log(Logger.INFO, Launcher.RESOURCES, "HostConfig.WebAppSwapped", 
+                    oldWebApp.getContextName());
+
+            drainWebApp(oldWebApp);
+            newWebApp.takeOverSessions(oldWebApp, copiedSessions);
+            oldWebApp.destroy();
+        }
+    }
+
+    /**
+     * Reloads the webapp on a thread of its own, so that the caller (eg the
+     * control port) isn't held up while the new instance is built
+     */
+    public void reloadWebAppInBackground(final String prefix) {
+        if (this.webapps.get(prefix) == null) {
             throw new WinstoneException(Launcher.RESOURCES.getString("HostConfig.PrefixUnknown", prefix));
         }
-    }    
+        Thread reloader = new Thread("WinstoneWebAppReload:" + prefix) {
+            public void run() {
+                try {
+                    reloadWebApp(prefix);
+                } catch (Throwable err) {
+                    Logger.log(Logger.ERROR, Launcher.RESOURCES, "HostConfig.WebappInitError", prefix, err);
+                }
+            }
+        };
+        reloader.setDaemon(true);
+        reloader.start();
+    }
     
+    /**
+     * Waits up to the drain timeout for the webapp's requests in progress to
+     * finish, so that destroying it doesn't break them
+     */
+    private void drainWebApp(WebAppConfiguration webAppConfig) {
+        ActiveRequests active = webAppConfig.getActiveRequests();
+        if (active.getCount() == 0) {
+            return;
+        }
+        Logger.log(Logger.INFO, Launcher.RESOURCES, "HostConfig.DrainingWebApp", 
+                new String[] { webAppConfig.getContextName(), "" + active.getCount() });
+        int timeout = WebAppConfiguration.intArg(this.args, "drainTimeout", DEFAULT_DRAIN_TIMEOUT);
+        try {
+            if (!active.awaitIdle(timeout * 1000L)) {
+                Logger.log(Logger.WARNING, Launcher.RESOURCES, "HostConfig.DrainTimedOut", 
+                        new String[] { webAppConfig.getContextName(), "" + active.getCount() });
+            }
+        } catch (InterruptedException err) {
+        }
+    }
+
     /**
      * Setup the webroot. If a warfile is supplied, extract any files that the
      * war file is newer than. If none is supplied, use the default temp
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+/**
+ * Parses an http request head (request line plus headers) in place, straight
+ * out of a connection's read buffer. A single pass over the bytes drives a
+ * small state machine. Methods, protocols and the common header names are
+ * matched against constants, so the only strings created are the URI, header
+ * values and any unusual names. Bytes are decoded as ISO-8859-1.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class HttpHeadParser {
+    static final String METHODS[] = { "GET", "POST", "HEAD", "PUT", "DELETE",
+            "OPTIONS", "TRACE" };
+    static final String PROTOCOLS[] = { "HTTP/1.1", "HTTP/1.0", "HTTP/0.9" };
+    static final String HEADER_NAMES[] = { "Host", "User-Agent", "Accept",
+            "Accept-Language", "Accept-Encoding", "Accept-Charset",
+            "Connection", "Keep-Alive", "Content-Length", "Content-Type",
+            "Content-Encoding", "Transfer-Encoding", "Cookie", "Cookie2",
+            "Authorization", "Referer", "Cache-Control", "Pragma",
+            "If-Modified-Since", "If-Unmodified-Since", "If-None-Match",
+            "If-Match", "If-Range", "Range", "Expect", "Upgrade", "Origin",
+            "Date", "Via", "TE", "X-Forwarded-For", "X-Requested-With" };
+    static final String SIMPLE_PROTOCOL = "HTTP/0.9";
+
+    // Constants grouped by length, so a lookup only compares same-sized names
+    private static final String METHODS_BY_LENGTH[][] = groupByLength(METHODS);
+    private static final String PROTOCOLS_BY_LENGTH[][] = groupByLength(PROTOCOLS);
+    private static final String HEADER_NAMES_BY_LENGTH[][] = groupByLength(HEADER_NAMES);
+
+    private static final int STATE_METHOD = 0;
+    private static final int STATE_URI_START = 1;
+    private static final int STATE_URI = 2;
+    private static final int STATE_PROTOCOL_START = 3;
+    private static final int STATE_PROTOCOL = 4;
+    private static final int STATE_LINE_START = 5;
+    private static final int STATE_NAME = 6;
+    private static final int STATE_VALUE_START = 7;
+    private static final int STATE_VALUE = 8;
+    private static final int STATE_IGNORED_LINE = 9;
+    private static final int STATE_DONE = 10;
+
+    /**
+     * Parses the head held in buf[start, end) into the request. The method,
+     * protocol and headers are set on the request, and the (untrimmed) request
+     * URI is returned.
+     */
+    public static String parseHead(byte buf[], int start, int end,
+            WinstoneRequest req) {
+        int state = STATE_METHOD;
+        int tokenStart = start;
+        int tokenEnd = start;
+        String method = null;
+        String uri = null;
+        String protocol = null;
+        String headerName = null;
+        String headerValue = null;
+        boolean continuation = false;
+
+        for (int n = start; (n < end) && (state != STATE_DONE); n++) {
+            byte b = buf[n];
+            switch (state) {
+            case STATE_METHOD:
+                if (b == ' ') {
+                    method = lookup(METHODS_BY_LENGTH, buf, tokenStart, n, true);
+                    state = STATE_URI_START;
+                } else if ((b == '\r') || (b == '\n')) {
+                    throw new WinstoneException(Launcher.RESOURCES.getString(
+                            "HttpListener.ErrorUriLine", decode(buf, start, n)));
+                }
+                break;
+
+            case STATE_URI_START:
+                if ((b == '\r') || (b == '\n')) {
+                    throw new WinstoneException(Launcher.RESOURCES.getString(
+                            "HttpListener.ErrorUriLine", decode(buf, start, n)));
+                } else if (b != ' ') {
+                    tokenStart = n;
+                    state = STATE_URI;
+                }
+                break;
+
+            case STATE_URI:
+                if (b == ' ') {
+                    uri = decode(buf, tokenStart, n);
+                    state = STATE_PROTOCOL_START;
+                } else if ((b == '\r') || (b == '\n')) {
+                    uri = decode(buf, tokenStart, n);
+                    protocol = SIMPLE_PROTOCOL;
+                    state = STATE_DONE;
+                }
+                break;
+
+            case STATE_PROTOCOL_START:
+                if ((b == '\r') || (b == '\n')) {
+                    protocol = SIMPLE_PROTOCOL;
+                    state = STATE_DONE;
+                } else if (b != ' ') {
+                    tokenStart = n;
+                    tokenEnd = n + 1;
+                    state = STATE_PROTOCOL;
+                }
+                break;
+
+            case STATE_PROTOCOL:
+                if (b == '\n') {
+                    protocol = lookup(PROTOCOLS_BY_LENGTH, buf, tokenStart, tokenEnd, true);
+                    state = STATE_LINE_START;
+                } else if ((b != ' ') && (b != '\r')) {
+                    tokenEnd = n + 1;
+                }
+                break;
+
+            case STATE_LINE_START:
+                if ((b == ' ') || (b == '\t')) {
+                    // Folded continuation of the previous header's value
+                    if (headerName == null) {
+                        state = STATE_IGNORED_LINE;
+                    } else {
+                        continuation = true;
+                        state = STATE_VALUE_START;
+                    }
+                    break;
+                }
+                if (headerName != null) {
+                    req.addHeader(headerName, headerValue);
+                    headerName = null;
+                }
+                if (b == '\n') {
+                    state = STATE_DONE;
+                } else if (b != '\r') {
+                    tokenStart = n;
+                    tokenEnd = n + 1;
+                    state = STATE_NAME;
+                }
+                break;
+
+            case STATE_NAME:
+                if (b == ':') {
+                    headerName = lookup(HEADER_NAMES_BY_LENGTH, buf, tokenStart, tokenEnd, false);
+                    continuation = false;
+                    state = STATE_VALUE_START;
+                } else if (b == '\n') {
+                    // Not a header line (no colon), so ignore it
+                    state = STATE_LINE_START;
+                } else if ((b != ' ') && (b != '\t') && (b != '\r')) {
+                    tokenEnd = n + 1;
+                }
+                break;
+
+            case STATE_VALUE_START:
+                if (b == '\n') {
+                    if (!continuation) {
+                        headerValue = "";
+                    }
+                    state = STATE_LINE_START;
+                } else if ((b != ' ') && (b != '\t') && (b != '\r')) {
+                    tokenStart = n;
+                    tokenEnd = n + 1;
+                    state = STATE_VALUE;
+                }
+                break;
+
+            case STATE_VALUE:
+                if (b == '\n') {
+                    String value = decode(buf, tokenStart, tokenEnd);
+                    headerValue = continuation ? headerValue + ' ' + value : value;
+                    state = STATE_LINE_START;
+                } else if ((b != ' ') && (b != '\t') && (b != '\r')) {
+                    tokenEnd = n + 1;
+                }
+                break;
+
+            case STATE_IGNORED_LINE:
+                if (b == '\n') {
+                    state = STATE_LINE_START;
+                }
+                break;
+            }
+        }
+
+        // Flush the last header, if the head ended without a blank line
+        if (headerName != null) {
+            if (state == STATE_VALUE) {
+                String value = decode(buf, tokenStart, tokenEnd);
+                headerValue = continuation ? headerValue + ' ' + value : value;
+            } else if ((state == STATE_VALUE_START) && !continuation) {
+                headerValue = "";
+            }
+            req.addHeader(headerName, headerValue);
+        }
+        if (method == null) {
+            throw new WinstoneException(Launcher.RESOURCES.getString(
+                    "HttpListener.ErrorUriLine", decode(buf, start, end).trim()));
+        } else if (uri == null) {
+            uri = decode(buf, tokenStart, end).trim();
+            protocol = SIMPLE_PROTOCOL;
+        } else if (protocol == null) {
+            protocol = (state == STATE_PROTOCOL)
+                    ? lookup(PROTOCOLS_BY_LENGTH, buf, tokenStart, tokenEnd, true)
+                    : SIMPLE_PROTOCOL;
+        }
+
+        req.setMethod(method);
+        req.setProtocol(protocol);
+        return uri;
+    }
+
+    /**
+     * Returns the matching constant for the bytes in buf[start, end), compared
+     * case-insensitively. If there is no match, a new string is decoded (and
+     * upper-cased if requested, as for methods and protocols).
+     */
+    static String lookup(String constantsByLength[][], byte buf[], int start,
+            int end, boolean upperCase) {
+        int length = end - start;
+        if (length < constantsByLength.length) {
+            String candidates[] = constantsByLength[length];
+            for (int n = 0; n < candidates.length; n++) {
+                if (matchesIgnoreCase(candidates[n], buf, start)) {
+                    return candidates[n];
+                }
+            }
+        }
+        String value = decode(buf, start, end);
+        return upperCase ? value.toUpperCase() : value;
+    }
+
+    private static boolean matchesIgnoreCase(String constant, byte buf[], int start) {
+        for (int n = 0; n < constant.length(); n++) {
+            int c = buf[start + n];
+            int k = constant.charAt(n);
+            if ((c != k) && (toLowerCase(c) != toLowerCase(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int toLowerCase(int c) {
+        return ((c >= 'A') && (c <= 'Z')) ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * ISO-8859-1 decode. The hibyte constructor maps each byte to one char
+     * without going through a charset decoder.
+     */
+    static String decode(byte buf[], int start, int end) {
+        return new String(buf, 0, start, end - start);
+    }
+
+    private static String[][] groupByLength(String constants[]) {
+        int maxLength = 0;
+        for (int n = 0; n < constants.length; n++) {
+            maxLength = Math.max(maxLength, constants[n].length());
+        }
+        String grouped[][] = new String[maxLength + 1][];
+        for (int length = 0; length <= maxLength; length++) {
+            int count = 0;
+            for (int n = 0; n < constants.length; n++) {
+                if (constants[n].length() == length) {
+                    count++;
+                }
+            }
+            grouped[length] = new String[count];
+            count = 0;
+            for (int n = 0; n < constants.length; n++) {
+                if (constants[n].length() == length) {
+                    grouped[length][count++] = constants[n];
+                }
+            }
+        }
+        return grouped;
+    }
+}
@@ -11,11 +11,12 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Map;
 
 /**
@@ -40,7 +41,13 @@ public class HttpListener implements Listener, Runnable {
     protected boolean doHostnameLookups;
     protected int listenPort;
     protected String listenAddress;
-    protected boolean interrupted;
+    protected volatile boolean interrupted;
+    protected int acceptorThreads;
+    protected AcceptorStatistics acceptorStatistics;
+    private ActiveRequests activeRequests = new ActiveRequests();
+    private ServerSocket serverSocket;
+    private byte overloadResponse[];
+    private byte headTooLargeResponse[];
 
     protected HttpListener() {
     }
@@ -58,18 +65,68 @@ public class HttpListener implements Listener, Runnable {
                 getConnectorName() + "ListenAddress", null);
         this.doHostnameLookups = WebAppConfiguration.booleanArg(args,
                 getConnectorName() + "DoHostnameLookups", DEFAULT_HNL);
+        this.acceptorThreads = Math.max(1, WebAppConfiguration.intArg(args,
+                getConnectorName() + "AcceptorThreads", 1));
+        this.overloadResponse = buildOverloadResponse(objectPool.getRetryAfter());
+        this.headTooLargeResponse = buildHeadTooLargeResponse();
+    }
+
+    /**
+     * Pre-encodes the 503 response sent when the handler pool is saturated,
+     * so rejecting a socket costs nothing more than a write.
+     */
+    private static byte[] buildOverloadResponse(int retryAfter) throws IOException {
+        StringBuffer out = new StringBuffer();
+        out.append("HTTP/1.1 503 ").append(Launcher.RESOURCES.getString(
+                "WinstoneOutputStream.reasonPhrase.503")).append("\r\n");
+        out.append("Server: ").append(Launcher.RESOURCES.getString("ServerVersion")).append("\r\n");
+        out.append("Retry-After: ").append(retryAfter).append("\r\n");
+        out.append("Content-Length: 0\r\n");
+        out.append("Connection: close\r\n\r\n");
+        return out.toString().getBytes("8859_1");
+    }
+
+    /**
+     * Pre-encodes the 431 response sent when a request head is bigger than
+     * the read buffer allows
+     */
+    private static byte[] buildHeadTooLargeResponse() throws IOException {
+        StringBuffer out = new StringBuffer();
+        out.append("HTTP/1.1 431 ").append(Launcher.RESOURCES.getString(
+                "WinstoneOutputStream.reasonPhrase.431")).append("\r\n");
+        out.append("Server: ").append(Launcher.RESOURCES.getString("ServerVersion")).append("\r\n");
+        out.append("Content-Length: 0\r\n");
+        out.append("Connection: close\r\n\r\n");
+        return out.toString().getBytes("8859_1");
     }
 
     public boolean start() {
         if (this.listenPort < 0) {
             return false;
         } else {
+            // Bind here rather than in the thread, so we are listening
+            // (or have failed) by the time the launcher carries on
+            try {
+                this.serverSocket = getServerSocket();
+                this.serverSocket.setSoTimeout(LISTENER_TIMEOUT);
+            } catch (IOException err) {
+                Logger.log(Logger.ERROR, Launcher.RESOURCES, "HttpListener.ShutdownError",
+                        getConnectorName().toUpperCase(), err);
+                return false;
+            }
             this.interrupted = false;
-            Thread thread = new Thread(this, Launcher.RESOURCES.getString(
-                    "Listener.ThreadName", new String[] { getConnectorName(),
-                            "" + this.listenPort }));
-            thread.setDaemon(true);
-            thread.start();
+            this.acceptorStatistics = new AcceptorStatistics(
+                    getConnectorName(), this.acceptorThreads);
+            for (int n = 0; n < this.acceptorThreads; n++) {
+                String threadName = this.acceptorThreads == 1 
+                        ? Launcher.RESOURCES.getString("Listener.ThreadName", 
+                                new String[] { getConnectorName(), "" + this.listenPort })
+                        : Launcher.RESOURCES.getString("Listener.AcceptorThreadName",
+                                new String[] { getConnectorName(), "" + this.listenPort, "" + n });
+                Thread thread = new Thread(this, threadName);
+                thread.setDaemon(true);
+                thread.start();
+            }
             return true;
         }
     }
@@ -99,25 +156,35 @@ public class HttpListener implements Listener, Runnable {
      * override in the SSL connector.
      */
     protected ServerSocket getServerSocket() throws IOException {
-        ServerSocket ss = this.listenAddress == null ? new ServerSocket(
-                this.listenPort, BACKLOG_COUNT) : new ServerSocket(
-                this.listenPort, BACKLOG_COUNT, InetAddress
-                        .getByName(this.listenAddress));
+        // Opened through a (blocking) channel, so the accepted sockets have
+        // channels too, and static files can be sent to them with transferTo
+        ServerSocket ss = ServerSocketChannel.open().socket();
+        try {
+            ss.bind(this.listenAddress == null ? new InetSocketAddress(
+                    this.listenPort) : new InetSocketAddress(InetAddress
+                    .getByName(this.listenAddress), this.listenPort), BACKLOG_COUNT);
+        } catch (IOException err) {
+            ss.close();
+            throw err;
+        }
         return ss;
     }
 
     /**
      * The main run method. This continually listens for incoming connections,
      * and allocates any that it finds to a request handler thread, before going
-     * back to listen again.
+     * back to listen again. Each acceptor thread runs this loop on the shared
+     * server socket.
      */
     public void run() {
+        int acceptor = this.acceptorStatistics.registerAcceptor();
+        ServerSocket ss = this.serverSocket;
         try {
-            ServerSocket ss = getServerSocket();
-            ss.setSoTimeout(LISTENER_TIMEOUT);
-            Logger.log(Logger.INFO, Launcher.RESOURCES, "HttpListener.StartupOK",
-                    new String[] { getConnectorName().toUpperCase(),
-                            this.listenPort + "" });
+            if (acceptor == 0) {
+                Logger.log(Logger.INFO, Launcher.RESOURCES, "HttpListener.StartupOK",
+                        new String[] { getConnectorName().toUpperCase(),
+                                this.listenPort + "" });
+            }
 
             // Enter the main loop
             while (!interrupted) {
@@ -127,31 +194,68 @@ public class HttpListener implements Listener, Runnable {
                     s = ss.accept();
                 } catch (java.io.InterruptedIOException err) {
                     s = null;
+                } catch (SocketException err) {
+                    // closed by destroy()
+                    if (this.interrupted) {
+                        break;
+                    }
+                    throw err;
+                } catch (ClosedChannelException err) {
+                    // closed by destroy() - the channel backed socket throws
+                    // this (or AsynchronousCloseException) instead
+                    if (this.interrupted) {
+                        break;
+                    }
+                    throw err;
                 }
 
                 // if we actually got a socket, process it. Otherwise go around
                 // again
-                if (s != null)
+                if (s != null) {
+                    this.acceptorStatistics.recordAccept(acceptor);
                     this.objectPool.handleRequest(s, this);
+                }
+                this.acceptorStatistics.checkReport(acceptor);
             }
-
-            // Close server socket
-            ss.close();
         } catch (Throwable err) {
             Logger.log(Logger.ERROR, Launcher.RESOURCES, "HttpListener.ShutdownError",
                     getConnectorName().toUpperCase(), err);
         }
 
-        Logger.log(Logger.INFO, Launcher.RESOURCES, "HttpListener.ShutdownOK",
-                getConnectorName().toUpperCase());
+        // Close server socket once the last acceptor is out
+        if (this.acceptorStatistics.unregisterAcceptor()) {
+            try {
+                ss.close();
+            } catch (IOException err) {
+            }
+            Logger.log(Logger.INFO, Launcher.RESOURCES, "HttpListener.ShutdownOK",
+                    getConnectorName().toUpperCase());
+        }
+    }
+
+    /**
+     * Per-acceptor accept counts and rates for this listener
+     */
+    public AcceptorStatistics getAcceptorStatistics() {
+        return this.acceptorStatistics;
+    }
+
+    public ActiveRequests getActiveRequests() {
+        return this.activeRequests;
     }
 
     /**
-     * Interrupts the listener thread. This will trigger a listener shutdown
-     * once the so timeout has passed.
+     * Interrupts the listener threads, and closes the server socket so that
+     * no more connections are accepted.
      */
     public void destroy() {
         this.interrupted = true;
+        try {
+            if (this.serverSocket != null) {
+                this.serverSocket.close();
+            }
+        } catch (IOException err) {
+        }
     }
 
     /**
@@ -169,17 +273,21 @@ public class HttpListener implements Listener, Runnable {
         Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                 "HttpListener.AllocatingRequest", Thread.currentThread()
                         .getName());
-        socket.setSoTimeout(CONNECTION_TIMEOUT);
+        handler.getConnectionTimeouts().setTimeouts(CONNECTION_TIMEOUT, CONNECTION_TIMEOUT);
 
         // Build input/output streams, plus request/response
-        WinstoneInputStream inData = new WinstoneInputStream(inSocket);
+        WinstoneInputStream inData = new WinstoneInputStream(getInputBuffer(
+                socket, inSocket, handler, iAmFirst));
         WinstoneOutputStream outData = new WinstoneOutputStream(outSocket, false);
+        outData.setCommitBuffer(handler.getCommitBuffer());
+        outData.setConnectionTimeouts(handler.getConnectionTimeouts());
         WinstoneRequest req = this.objectPool.getRequestFromPool();
         WinstoneResponse rsp = this.objectPool.getResponseFromPool();
         outData.setResponse(rsp);
         req.setInputStream(inData);
         rsp.setOutputStream(outData);
         rsp.setRequest(req);
+        req.setResponse(rsp);
         // rsp.updateContentTypeHeader("text/html");
         req.setHostGroup(this.hostGroup);
 
@@ -189,12 +297,25 @@ public class HttpListener implements Listener, Runnable {
         handler.setInStream(inData);
         handler.setOutStream(outData);
         
-        // If using this listener, we must set the server header now, because it
-        // must be the first header. Ajp13 listener can defer to the Apache Server
-        // header
+        // If using this listener, we set the server header ourselves (the
+        // Ajp13 listener defers to the Apache Server header). It has the first
+        // header slot, so it is written first whenever it is set.
         rsp.setHeader("Server", Launcher.RESOURCES.getString("ServerVersion"));
     }
 
+    /**
+     * Returns the read buffer for this connection. The handler's own buffer is
+     * reused, and is reset at the start of each new connection.
+     */
+    protected ConnectionInputBuffer getInputBuffer(Socket socket,
+            InputStream inSocket, RequestHandlerThread handler, boolean iAmFirst) {
+        ConnectionInputBuffer inBuffer = handler.getInputBuffer();
+        if (iAmFirst) {
+            inBuffer.reset(inSocket);
+        }
+        return inBuffer;
+    }
+
     /**
      * Called by the request handler thread, because it needs specific shutdown
      * code for this connection's protocol (ie releasing input/output streams,
@@ -214,21 +335,51 @@ public class HttpListener implements Listener, Runnable {
             this.objectPool.releaseResponseToPool(rsp);
     }
 
+    /**
+     * The keep-alive timeout for the request being read, in ms, or zero if
+     * the connection should be closed after it. Worked out once per request,
+     * so the head's read timeout and the Connection header agree.
+     */
+    protected int getKeepAliveTimeout() {
+        return this.objectPool.getKeepAliveTimeout(KEEP_ALIVE_TIMEOUT);
+    }
+
     public String parseURI(RequestHandlerThread handler, WinstoneRequest req,
             WinstoneResponse rsp, WinstoneInputStream inData, Socket socket,
             boolean iAmFirst) throws IOException {
         parseSocketInfo(socket, req);
-
-        // Read the header line (because this is the first line of the request,
-        // apply keep-alive timeouts to it if we are not the first request)
+        ConnectionInputBuffer inBuffer = (ConnectionInputBuffer) inData.getRawInputStream();
+
+        // Read the request head (because this is the start of the request,
+        // apply keep-alive timeouts to it if we are not the first request).
+        // The timeout shrinks as the handler pool fills up, and if it is full
+        // only a request that is already on its way gets read
+        ConnectionTimeouts timeouts = handler.getConnectionTimeouts();
+        int keepAliveTimeout = getKeepAliveTimeout();
         if (!iAmFirst) {
-            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            timeouts.startKeepAlive(Math.max(1, keepAliveTimeout));
         }
         
-        byte uriBuffer[] = null;
+        int headEnd = -1;
         try {
             Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "HttpListener.WaitingForURILine");
-            uriBuffer = inData.readLine();
+            headEnd = inBuffer.readHead();
+        } catch (RequestHeadTooLargeException err) {
+            // The client's fault, so answer it and close the connection,
+            // rather than failing the handler. As for a rejected socket, what
+            // has arrived of the rest is skipped, so the close doesn't reset
+            // the connection before the client reads the response.
+            Logger.log(Logger.DEBUG, Launcher.RESOURCES, "HttpListener.HeadTooLarge",
+                    err.getMessage());
+            OutputStream out = timeouts.getOutputStream();
+            out.write(this.headTooLargeResponse);
+            out.flush();
+            socket.shutdownOutput();
+            int available = socket.getInputStream().available();
+            if (available > 0) {
+                socket.getInputStream().skip(available);
+            }
+            return null;
         } catch (InterruptedIOException err) {
             // keep alive timeout ? ignore if not first
             if (iAmFirst) {
@@ -237,20 +388,35 @@ public class HttpListener implements Listener, Runnable {
                 return null;
             }
         } finally {
-            try {socket.setSoTimeout(CONNECTION_TIMEOUT);} catch (Throwable err) {}
+            timeouts.endKeepAlive();
         }
+        if (headEnd == -1)
+            throw new SocketException("Empty URI Line");
         handler.setRequestStartTime();
 
-        // Get header data (eg protocol, method, uri, headers, etc)
-        String uriLine = new String(uriBuffer);
-        if (uriLine.trim().equals(""))
-            throw new SocketException("Empty URI Line");
-        String servletURI = parseURILine(uriLine, req, rsp);
-        parseHeaders(req, inData);
+        // Get header data (eg protocol, method, uri, headers, etc), straight
+        // from the buffer
+        String servletURI = trimHostName(HttpHeadParser.parseHead(
+                inBuffer.getBuffer(), inBuffer.getPosition(), headEnd, req));
+        inBuffer.consume(headEnd);
+        rsp.setProtocol(req.getProtocol());
+        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "HttpListener.UriLine",
+                new String[] { req.getMethod(), servletURI, req.getProtocol() });
+        req.processHeaders();
         rsp.extractRequestKeepAliveHeader(req);
+        if (keepAliveTimeout == 0) {
+            // Near saturation, free the handler once this request is done
+            rsp.setHeader("Connection", "close");
+        }
         int contentLength = req.getContentLength();
-        if (contentLength != -1)
+        if (req.isChunkedBody())
+            inData.setChunked();
+        else if (contentLength != -1)
             inData.setContentLength(contentLength);
+        else
+            // No length and not chunked means no body, so never read into the
+            // next request on the connection
+            inData.setContentLength(0);
         return servletURI;
     }
 
@@ -270,6 +436,44 @@ public class HttpListener implements Listener, Runnable {
         socket.close();
     }
 
+    /**
+     * Writes the pre-encoded 503 response and closes the socket. Any request
+     * bytes that have already arrived are skipped, so the close doesn't reset
+     * the connection before the client reads the response.
+     */
+    public void rejectSocket(Socket socket) throws IOException {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(this.overloadResponse);
+            out.flush();
+            socket.shutdownOutput();
+            InputStream in = socket.getInputStream();
+            int available = in.available();
+            if (available > 0) {
+                in.skip(available);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Nothing to restore: the connection's state travels with the request.
+     */
+    public void resumeSocket(Socket socket, RequestHandlerThread handler) {
+    }
+
+    /**
+     * Blocking sockets only, so non-blocking io falls back to blocking the
+     * callback thread
+     */
+    public boolean startNonBlocking(Socket socket) {
+        return false;
+    }
+
+    public void watchSocket(Socket socket, boolean forWrite, Runnable callback) {
+    }
+
     protected void parseSocketInfo(Socket socket, WinstoneRequest req)
             throws IOException {
         Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "HttpListener.ParsingSocketInfo");
@@ -306,41 +510,6 @@ public class HttpListener implements Listener, Runnable {
         return continueFlag;
     }
 
-    /**
-     * Processes the uri line into it's component parts, determining protocol,
-     * method and uri
-     */
-    private String parseURILine(String uriLine, WinstoneRequest req,
-            WinstoneResponse rsp) {
-        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "HttpListener.UriLine", uriLine.trim());
-        
-        // Method
-        int spacePos = uriLine.indexOf(' ');
-        if (spacePos == -1)
-            throw new WinstoneException(Launcher.RESOURCES.getString(
-                    "HttpListener.ErrorUriLine", uriLine));
-        String method = uriLine.substring(0, spacePos).toUpperCase();
-        String fullURI = null;
-
-        // URI
-        String remainder = uriLine.substring(spacePos + 1);
-        spacePos = remainder.indexOf(' ');
-        if (spacePos == -1) {
-            fullURI = trimHostName(remainder.trim());
-            req.setProtocol("HTTP/0.9");
-            rsp.setProtocol("HTTP/0.9");
-        } else {
-            fullURI = trimHostName(remainder.substring(0, spacePos).trim());
-            String protocol = remainder.substring(spacePos + 1).trim().toUpperCase();
-            req.setProtocol(protocol);
-            rsp.setProtocol(protocol);
-        }
-
-        req.setMethod(method);
-        // req.setRequestURI(fullURI);
-        return fullURI;
-    }
-
     private String trimHostName(String input) {
         if (input == null)
             return null;
@@ -357,32 +526,4 @@ public class HttpListener implements Listener, Runnable {
         else
             return hostName.substring(pathStart);
     }
-
-    /**
-     * Parse the incoming stream into a list of headers (stopping at the first
-     * blank line), then call the parseHeaders(req, list) method on that list.
-     */
-    public void parseHeaders(WinstoneRequest req, WinstoneInputStream inData)
-            throws IOException {
-        List headerList = new ArrayList();
-
-        if (!req.getProtocol().startsWith("HTTP/0")) {
-            // Loop to get headers
-            byte headerBuffer[] = inData.readLine();
-            String headerLine = new String(headerBuffer);
-
-            while (headerLine.trim().length() > 0) {
-                if (headerLine.indexOf(':') != -1) {
-                    headerList.add(headerLine.trim());
-                    Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
-                            "HttpListener.Header", headerLine.trim());
-                }
-                headerBuffer = inData.readLine();
-                headerLine = new String(headerBuffer);
-            }
-        }
-
-        // If no headers available, parse an empty list
-        req.parseHeaders(headerList);
-    }
 }
@@ -36,6 +36,7 @@ import java.util.Properties;
 public class Launcher implements Runnable {
     
     static final String HTTP_LISTENER_CLASS = "winstone.HttpListener";
+    static final String NIO_HTTP_LISTENER_CLASS = "winstone.nio.NioHttpListener";
     static final String HTTPS_LISTENER_CLASS = "winstone.ssl.HttpsListener";
     static final String AJP_LISTENER_CLASS = "winstone.ajp13.Ajp13Listener";
     static final String CLUSTER_CLASS = "winstone.cluster.SimpleCluster";
@@ -46,10 +47,12 @@ public class Launcher implements Runnable {
     
     private int CONTROL_TIMEOUT = 2000; // wait 2s for control connection
     private int DEFAULT_CONTROL_PORT = -1;
+    private int DEFAULT_DRAIN_TIMEOUT = 30;
     
     private Thread controlThread;
     public final static WinstoneResourceBundle RESOURCES = new WinstoneResourceBundle("winstone.LocalStrings");
     private int controlPort;
+    private int drainTimeout;
     private HostGroup hostGroup;
     private ObjectPool objectPool;
     private List listeners;
@@ -81,6 +84,8 @@ public class Launcher implements Runnable {
         this.args = args;
         this.controlPort = (args.get("controlPort") == null ? DEFAULT_CONTROL_PORT
                 : Integer.parseInt((String) args.get("controlPort")));
+        this.drainTimeout = WebAppConfiguration.intArg(args, "drainTimeout", 
+                DEFAULT_DRAIN_TIMEOUT);
 
         // Check for java home
         List jars = new ArrayList();
@@ -196,9 +201,10 @@ public class Launcher implements Runnable {
         this.hostGroup = new HostGroup(this.cluster, this.objectPool, commonLibCL, 
                 (File []) commonLibCLPaths.toArray(new File[0]), args);
 
-        // Create connectors (http, https and ajp)
+        // Create connectors (http, nio http, https and ajp)
         this.listeners = new ArrayList();
         spawnListener(HTTP_LISTENER_CLASS);
+        spawnListener(NIO_HTTP_LISTENER_CLASS);
         spawnListener(AJP_LISTENER_CLASS);
         try {
             Class.forName("javax.net.ServerSocketFactory");
@@ -321,7 +327,7 @@ public class Launcher implements Runnable {
                 String prefix = inControl.readUTF();
                 Logger.log(Logger.INFO, RESOURCES, "Launcher.ReloadRequestReceived", host + prefix);
                 HostConfiguration hostConfig = this.hostGroup.getHostByName(host);
-                hostConfig.reloadWebApp(prefix);
+                hostConfig.reloadWebAppInBackground(prefix);
             } else if (this.cluster != null) {
                 outSocket = csAccepted.getOutputStream();
                 this.cluster.clusterRequest((byte) reqType,
@@ -342,9 +348,12 @@ public class Launcher implements Runnable {
     }
     
     public void shutdown() {
-        // Release all listeners/pools/webapps
+        // Stop accepting, and let the requests in progress finish (closing
+        // their connections afterwards) before releasing pools/webapps
         for (Iterator i = this.listeners.iterator(); i.hasNext();)
             ((Listener) i.next()).destroy();
+        this.objectPool.setDraining(true);
+        drainRequests();
         this.objectPool.destroy();
         if (this.cluster != null)
             this.cluster.destroy();
@@ -361,6 +370,29 @@ public class Launcher implements Runnable {
         Logger.log(Logger.INFO, RESOURCES, "Launcher.ShutdownOK");
     }
 
+    /**
+     * Waits up to the drain timeout for the requests in progress on all the
+     * listeners to finish
+     */
+    private void drainRequests() {
+        long deadline = System.currentTimeMillis() + (this.drainTimeout * 1000L);
+        try {
+            for (Iterator i = this.listeners.iterator(); i.hasNext();) {
+                ActiveRequests active = ((Listener) i.next()).getActiveRequests();
+                if (active.getCount() == 0) {
+                    continue;
+                }
+                Logger.log(Logger.INFO, RESOURCES, "Launcher.Draining", "" + active.getCount());
+                if (!active.awaitIdle(deadline - System.currentTimeMillis())) {
+                    Logger.log(Logger.WARNING, RESOURCES, "Launcher.DrainTimedOut", 
+                            "" + active.getCount());
+                    return;
+                }
+            }
+        } catch (InterruptedException err) {
+        }
+    }
+
     public boolean isRunning() {
         return (this.controlThread != null) && this.controlThread.isAlive();
     }
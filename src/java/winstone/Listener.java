@@ -20,8 +20,8 @@ import java.net.SocketException;
  */
 public interface Listener {
     /**
-     * Interrupts the listener thread. This will trigger a listener shutdown
-     * once the so timeout has passed.
+     * Stops the listener accepting connections, and shuts it down. Requests
+     * already in progress carry on.
      */
     public void destroy();
     
@@ -79,4 +79,39 @@ public interface Listener {
     public boolean processKeepAlive(WinstoneRequest request,
             WinstoneResponse response, InputStream inSocket)
             throws IOException, InterruptedException;
+
+    /**
+     * Called from the accept path when the object pool has no handler for
+     * this socket. Implementations should send whatever minimal "overloaded"
+     * response the protocol allows (without blocking), then close the socket.
+     */
+    public void rejectSocket(Socket socket) throws IOException;
+
+    /**
+     * Called by a request handler thread when it picks up a suspended async
+     * request on this socket (see AsyncContext), before it finishes the
+     * request and carries on with the connection.
+     */
+    public void resumeSocket(Socket socket, RequestHandlerThread handler);
+
+    /**
+     * Called when a suspended async request starts non-blocking io (see
+     * AsyncIo). Returns true if the socket's channel has been switched to
+     * non-blocking mode, or false if this listener only has blocking sockets.
+     * resumeSocket() switches the channel back.
+     */
+    public boolean startNonBlocking(Socket socket);
+
+    /**
+     * Runs the callback once the non-blocking socket is readable (or
+     * writable, if forWrite is true), without a thread waiting on it. Each
+     * call gets at most one callback, made on the listener's own thread, so
+     * it must not block.
+     */
+    public void watchSocket(Socket socket, boolean forWrite, Runnable callback);
+
+    /**
+     * The requests in progress on this listener's connections
+     */
+    public ActiveRequests getActiveRequests();
 }
@@ -12,9 +12,6 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -45,7 +42,6 @@ public class Logger {
     protected static Map namedStreams;
 //    protected static Collection nullStreams;
     protected static int currentDebugLevel;
-    protected final static DateFormat sdfLog = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
     protected static boolean showThrowingThread;
 
     /**
@@ -139,6 +135,14 @@ public class Logger {
         }
     }
 
+    /**
+     * True if messages at this level are being logged, for callers that need
+     * to build an expensive parameter
+     */
+    public static boolean isLogging(int level) {
+        return currentDebugLevel >= level;
+    }
+
     /**
      * Writes a log message to the requested stream, and immediately flushes
      * the contents of the stream.
@@ -152,10 +156,7 @@ public class Logger {
         Writer stream = getStreamByName(streamName);
         if (stream != null) {
             Writer fullMessage = new StringWriter();
-            String date = null;
-            synchronized (sdfLog) {
-                date = sdfLog.format(new Date());
-            }
+            String date = DateService.getCurrentLogDate();
             try {
                 fullMessage.write("[");
                 fullMessage.write(streamName);
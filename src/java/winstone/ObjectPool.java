@@ -13,6 +13,17 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Holds the object pooling code for Winstone. Presently this is only responses
@@ -23,27 +34,53 @@ import java.util.Map;
  */
 public class ObjectPool implements Runnable {
     private static final long FLUSH_PERIOD = 60000L;
+    private static final long ASYNC_IO_THREAD_IDLE_TIME = 60000L;
     
+    static final String REJECT_CLOSE = "close";
+    static final String REJECT_BLOCK = "block";
+    static final String REJECT_503 = "503";
+    static final String MODE_POOLED = "pooled";
+    static final String MODE_VIRTUAL = "virtual";
+
     private int STARTUP_REQUEST_HANDLERS_IN_POOL = 5;
     private int MAX_IDLE_REQUEST_HANDLERS_IN_POOL = 50;
     private int MAX_REQUEST_HANDLERS_IN_POOL = 1000;
-    private long RETRY_PERIOD = 1000;
+    private int MAX_VIRTUAL_REQUEST_HANDLERS = 10000;
+    private int MAX_ASYNC_IO_THREADS = 10;
+    private int MAX_QUEUED_REQUESTS = 100;
+    private long QUEUE_TIMEOUT = 1000;
+    private int RETRY_AFTER = 5;
+    private int KEEP_ALIVE_SHRINK_LOAD = 50;
+    private int KEEP_ALIVE_CLOSE_LOAD = 90;
+    private int MIN_KEEP_ALIVE_TIMEOUT = 1000;
     private int START_REQUESTS_IN_POOL = 10;
     private int MAX_REQUESTS_IN_POOL = 1000;
     private int START_RESPONSES_IN_POOL = 10;
     private int MAX_RESPONSES_IN_POOL = 1000;
-    private List unusedRequestHandlerThreads;
-    private List usedRequestHandlerThreads;
-    private List usedRequestPool;
+    private Queue unusedRequestHandlerThreads;
+    private Map allRequestHandlerThreads;
+    private BlockingQueue queuedRequests;
+    private Queue resumedRequests;
+    private AtomicInteger handlerCount;
+    private AtomicInteger unusedHandlerCount;
+    private ThreadFactory virtualThreadFactory;
+    private int usedRequestCount;
     private List unusedRequestPool;
-    private List usedResponsePool;
+    private int usedResponseCount;
     private List unusedResponsePool;
-    private Object requestHandlerSemaphore = new Boolean(true);
     private Object requestPoolSemaphore = new Boolean(true);
     private Object responsePoolSemaphore = new Boolean(true);
-    private int threadIndex = 0;
+    private AtomicInteger threadIndex;
+    private AtomicLong rejectedCount;
+    private long rejectedCountLogged;
+    private String rejectPolicy;
     private boolean simulateModUniqueId;
     private boolean saveSessions;
+    private TimerWheel timerWheel;
+    private ThreadPoolExecutor asyncIoThreads;
+    private volatile int effectiveKeepAliveTimeout;
+    private volatile boolean draining;
+    private int effectiveKeepAliveTimeoutLogged;
 
     private Thread thread;
     
@@ -55,36 +92,93 @@ public class ObjectPool implements Runnable {
         this.simulateModUniqueId = WebAppConfiguration.booleanArg(args, "simulateModUniqueId", false);
         this.saveSessions = WebAppConfiguration.useSavedSessions(args);
 
-        // Build the initial pool of handler threads
-        this.unusedRequestHandlerThreads = new ArrayList();
-        this.usedRequestHandlerThreads = new ArrayList();
-
         // Build the request/response pools
-        this.usedRequestPool = new ArrayList();
-        this.usedResponsePool = new ArrayList();
         this.unusedRequestPool = new ArrayList();
         this.unusedResponsePool = new ArrayList();
 
         // Get handler pool options
-        if (args.get("handlerCountStartup") != null) {
-            STARTUP_REQUEST_HANDLERS_IN_POOL = Integer.parseInt((String) args
-                    .get("handlerCountStartup"));
+        STARTUP_REQUEST_HANDLERS_IN_POOL = WebAppConfiguration.intArg(args, 
+                "handlerCountStartup", STARTUP_REQUEST_HANDLERS_IN_POOL);
+        MAX_REQUEST_HANDLERS_IN_POOL = WebAppConfiguration.intArg(args, 
+                "handlerCountMax", MAX_REQUEST_HANDLERS_IN_POOL);
+        MAX_IDLE_REQUEST_HANDLERS_IN_POOL = WebAppConfiguration.intArg(args, 
+                "handlerCountMaxIdle", MAX_IDLE_REQUEST_HANDLERS_IN_POOL);
+        MAX_QUEUED_REQUESTS = WebAppConfiguration.intArg(args, 
+                "handlerQueueSize", MAX_QUEUED_REQUESTS);
+        QUEUE_TIMEOUT = WebAppConfiguration.intArg(args, 
+                "handlerQueueTimeout", (int) QUEUE_TIMEOUT);
+        this.rejectPolicy = WebAppConfiguration.stringArg(args, 
+                "handlerRejectPolicy", REJECT_CLOSE).toLowerCase();
+        RETRY_AFTER = WebAppConfiguration.intArg(args, 
+                "handlerRetryAfter", RETRY_AFTER);
+        MAX_ASYNC_IO_THREADS = Math.max(1, WebAppConfiguration.intArg(args, 
+                "handlerCountMaxAsyncIo", MAX_ASYNC_IO_THREADS));
+        KEEP_ALIVE_SHRINK_LOAD = WebAppConfiguration.intArg(args, 
+                "handlerKeepAliveShrinkLoad", KEEP_ALIVE_SHRINK_LOAD);
+        KEEP_ALIVE_CLOSE_LOAD = Math.max(KEEP_ALIVE_SHRINK_LOAD, WebAppConfiguration.intArg(args, 
+                "handlerKeepAliveCloseLoad", KEEP_ALIVE_CLOSE_LOAD));
+        if (!this.rejectPolicy.equals(REJECT_CLOSE) && !this.rejectPolicy.equals(REJECT_BLOCK)
+                && !this.rejectPolicy.equals(REJECT_503)) {
+            Logger.log(Logger.WARNING, Launcher.RESOURCES, 
+                    "ObjectPool.UnknownRejectPolicy", this.rejectPolicy);
+            this.rejectPolicy = REJECT_CLOSE;
         }
-        if (args.get("handlerCountMax") != null) {
-            MAX_IDLE_REQUEST_HANDLERS_IN_POOL = Integer.parseInt((String) args
-                    .get("handlerCountMax"));
-        }
-        if (args.get("handlerCountMaxIdle") != null) {
-            MAX_IDLE_REQUEST_HANDLERS_IN_POOL = Integer.parseInt((String) args
-                    .get("handlerCountMaxIdle"));
+
+        // In virtual mode, each connection gets its own unpooled handler on a
+        // virtual thread, so the handler limit is much higher
+        String handlerMode = WebAppConfiguration.stringArg(args, 
+                "handlerMode", MODE_POOLED).toLowerCase();
+        if (handlerMode.equals(MODE_VIRTUAL)) {
+            this.virtualThreadFactory = getVirtualThreadFactory();
+            if (this.virtualThreadFactory == null) {
+                Logger.log(Logger.WARNING, Launcher.RESOURCES, 
+                        "ObjectPool.VirtualThreadsUnavailable");
+            } else {
+                MAX_REQUEST_HANDLERS_IN_POOL = WebAppConfiguration.intArg(args, 
+                        "handlerCountMaxVirtual", MAX_VIRTUAL_REQUEST_HANDLERS);
+                STARTUP_REQUEST_HANDLERS_IN_POOL = 0;
+                Logger.log(Logger.DEBUG, Launcher.RESOURCES, 
+                        "ObjectPool.UsingVirtualThreads", "" + MAX_REQUEST_HANDLERS_IN_POOL);
+            }
+        } else if (!handlerMode.equals(MODE_POOLED)) {
+            Logger.log(Logger.WARNING, Launcher.RESOURCES, 
+                    "ObjectPool.UnknownHandlerMode", handlerMode);
         }
 
+        // There can't be more requests in flight than handlers
+        MAX_REQUESTS_IN_POOL = Math.max(MAX_REQUESTS_IN_POOL, MAX_REQUEST_HANDLERS_IN_POOL);
+        MAX_RESPONSES_IN_POOL = Math.max(MAX_RESPONSES_IN_POOL, MAX_REQUEST_HANDLERS_IN_POOL);
+
+        // Build the initial pool of handler threads
+        this.unusedRequestHandlerThreads = new ConcurrentLinkedQueue();
+        this.allRequestHandlerThreads = new ConcurrentHashMap();
+        this.queuedRequests = new ArrayBlockingQueue(Math.max(1, MAX_QUEUED_REQUESTS));
+        this.resumedRequests = new ConcurrentLinkedQueue();
+        this.handlerCount = new AtomicInteger(0);
+        this.unusedHandlerCount = new AtomicInteger(0);
+        this.threadIndex = new AtomicInteger(0);
+        this.rejectedCount = new AtomicLong(0);
+        this.timerWheel = new TimerWheel();
+        this.asyncIoThreads = new ThreadPoolExecutor(MAX_ASYNC_IO_THREADS,
+                MAX_ASYNC_IO_THREADS, ASYNC_IO_THREAD_IDLE_TIME, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue(), new ThreadFactory() {
+                    private AtomicInteger asyncIoThreadIndex = new AtomicInteger(0);
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "WinstoneAsyncIo-"
+                                + this.asyncIoThreadIndex.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.asyncIoThreads.allowCoreThreadTimeOut(true);
+        this.effectiveKeepAliveTimeout = -1;
+        this.effectiveKeepAliveTimeoutLogged = -1;
+
         // Start the base set of handler threads
         for (int n = 0; n < STARTUP_REQUEST_HANDLERS_IN_POOL; n++) {
-            this.unusedRequestHandlerThreads
-                    .add(new RequestHandlerThread(this, 
-                            this.threadIndex++, this.simulateModUniqueId,
-                            this.saveSessions));
+            this.handlerCount.incrementAndGet();
+            offerUnusedRequestHandler(newRequestHandler());
         }
 
         // Initialise the request/response pools
@@ -106,6 +200,9 @@ public class ObjectPool implements Runnable {
             try {
                 Thread.sleep(FLUSH_PERIOD);
                 removeUnusedRequestHandlers();
+                logRejectedConnections();
+                this.timerWheel.logExpiries();
+                logKeepAliveTimeout();
             } catch (InterruptedException err) {
                 interrupted = true;
             }
@@ -114,114 +211,425 @@ public class ObjectPool implements Runnable {
     }
     
     private void removeUnusedRequestHandlers() {
-        // Check max idle requestHandler count
-        synchronized (this.requestHandlerSemaphore) {
-            // If we have too many idle request handlers
-            while (this.unusedRequestHandlerThreads.size() > MAX_IDLE_REQUEST_HANDLERS_IN_POOL) {
-                RequestHandlerThread rh = (RequestHandlerThread) this.unusedRequestHandlerThreads.get(0);
-                rh.destroy();
-                this.unusedRequestHandlerThreads.remove(rh);
+        // If we have too many idle request handlers
+        while (this.unusedHandlerCount.get() > MAX_IDLE_REQUEST_HANDLERS_IN_POOL) {
+            RequestHandlerThread rh = pollUnusedRequestHandler();
+            if (rh == null) {
+                break;
             }
+            this.handlerCount.decrementAndGet();
+            this.allRequestHandlerThreads.remove(rh);
+            rh.destroy();
+        }
+    }
+
+    private void logRejectedConnections() {
+        long rejected = this.rejectedCount.get();
+        if (rejected != this.rejectedCountLogged) {
+            Logger.log(Logger.WARNING, Launcher.RESOURCES, 
+                    "ObjectPool.RejectedConnections", new String[] {
+                            "" + (rejected - this.rejectedCountLogged), "" + rejected});
+            this.rejectedCountLogged = rejected;
+        }
+    }
+
+    private void logKeepAliveTimeout() {
+        int timeout = this.effectiveKeepAliveTimeout;
+        if (timeout != this.effectiveKeepAliveTimeoutLogged) {
+            Logger.log(Logger.DEBUG, Launcher.RESOURCES, 
+                    "ObjectPool.KeepAliveTimeout", new String[] {
+                            "" + timeout, getHandlerCounts()[0], 
+                            "" + MAX_REQUEST_HANDLERS_IN_POOL});
+            this.effectiveKeepAliveTimeoutLogged = timeout;
         }
     }
 
     public void destroy() {
-        synchronized (this.requestHandlerSemaphore) {
-            Collection usedHandlers = new ArrayList(this.usedRequestHandlerThreads);
-            for (Iterator i = usedHandlers.iterator(); i.hasNext();)
-                releaseRequestHandler((RequestHandlerThread) i.next());
-            Collection unusedHandlers = new ArrayList(this.unusedRequestHandlerThreads);
-            for (Iterator i = unusedHandlers.iterator(); i.hasNext();)
-                ((RequestHandlerThread) i.next()).destroy();
-            this.unusedRequestHandlerThreads.clear();
+        Collection handlers = new ArrayList(this.allRequestHandlerThreads.values());
+        for (Iterator i = handlers.iterator(); i.hasNext();) {
+            ((RequestHandlerThread) i.next()).destroy();
+        }
+        this.unusedRequestHandlerThreads.clear();
+        for (QueuedRequest queued = (QueuedRequest) this.queuedRequests.poll(); 
+                queued != null; queued = (QueuedRequest) this.queuedRequests.poll()) {
+            closeQuietly(queued.socket);
+        }
+        for (QueuedRequest resumed = (QueuedRequest) this.resumedRequests.poll(); 
+                resumed != null; resumed = (QueuedRequest) this.resumedRequests.poll()) {
+            closeQuietly(resumed.socket);
         }
         if (this.thread != null) {
             this.thread.interrupt();
         }
+        this.timerWheel.destroy();
+        this.asyncIoThreads.shutdownNow();
     }
 
     /**
      * Once the socket request comes in, this method is called. It reserves a
      * request handler, then delegates the socket to that class. When it
      * finishes, the handler is released back into the pool.
+     * 
+     * If the pool is at its limit, the socket is queued for the next handler
+     * to finish. If the queue is full, the socket is either closed after the
+     * queue timeout, or the caller blocks until there is room, depending on
+     * the reject policy. So this is only for the blocking acceptors - a
+     * caller that mustn't wait uses offerRequest() instead.
      */
     public void handleRequest(Socket socket, Listener listener)
             throws IOException, InterruptedException {
-        RequestHandlerThread rh = null;
-        synchronized (this.requestHandlerSemaphore) {
-            // If we have any spare, get it from the pool
-            int unused = this.unusedRequestHandlerThreads.size();
-            if (unused > 0) {
-                rh = (RequestHandlerThread) this.unusedRequestHandlerThreads.remove(unused - 1);
-                this.usedRequestHandlerThreads.add(rh);
-                Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
-                        "ObjectPool.UsingRHPoolThread", new String[] {
-                                "" + this.usedRequestHandlerThreads.size(),
-                                "" + this.unusedRequestHandlerThreads.size() });
-            }
+        if (offerRequest(socket, listener)) {
+            return;
+        }
 
-            // If we are out (and not over our limit), allocate a new one
-            else if (this.usedRequestHandlerThreads.size() < MAX_REQUEST_HANDLERS_IN_POOL) {
-                rh = new RequestHandlerThread(this, 
-                        this.threadIndex++, this.simulateModUniqueId,
-                        this.saveSessions);
-                this.usedRequestHandlerThreads.add(rh);
-                Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
-                        "ObjectPool.NewRHPoolThread", new String[] {
-                                "" + this.usedRequestHandlerThreads.size(),
-                                "" + this.unusedRequestHandlerThreads.size() });
+        // The queue is full, so wait for room in it if the policy says so
+        boolean accepted = false;
+        if (!this.rejectPolicy.equals(REJECT_503)) {
+            QueuedRequest queued = new QueuedRequest(socket, listener);
+            Logger.log(Logger.WARNING, Launcher.RESOURCES,
+                    "ObjectPool.NoRHPoolThreadsRetry");
+            if (this.rejectPolicy.equals(REJECT_BLOCK)) {
+                this.queuedRequests.put(queued);
+                accepted = true;
+            } else {
+                accepted = this.queuedRequests.offer(queued, QUEUE_TIMEOUT,
+                        TimeUnit.MILLISECONDS);
             }
+        }
+        if (accepted) {
+            dispatchQueuedRequests();
+        } else {
+            rejectRequest(socket, listener);
+        }
+    }
 
-            // otherwise throw fail message - we've blown our limit
-            else {
-                // Possibly insert a second chance here ? Delay and one retry ?
-                // Remember to release the lock first
-                Logger.log(Logger.WARNING, Launcher.RESOURCES,
-                        "ObjectPool.NoRHPoolThreadsRetry");
-                // socket.close();
-                // throw new UnavailableException("NoHandlersAvailable");
+    /**
+     * Hands the socket to a handler, or queues it for the next one to come
+     * free, without ever waiting. Returns false if the queue is full, in
+     * which case the caller still owns the socket, and should try again later
+     * or give it to rejectRequest().
+     */
+    public boolean offerRequest(Socket socket, Listener listener) throws IOException {
+        // In virtual mode, start a fresh handler if we are under the limit
+        if (this.virtualThreadFactory != null) {
+            if (reserveRequestHandler()) {
+                newRequestHandler().commenceRequestHandling(socket, listener);
+                return true;
             }
         }
 
-        if (rh != null)
+        // If we have any spare, get it from the pool
+        RequestHandlerThread rh = pollUnusedRequestHandler();
+        if (rh != null) {
+            Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
+                    "ObjectPool.UsingRHPoolThread", getHandlerCounts());
+            rh.commenceRequestHandling(socket, listener);
+            return true;
+        }
+
+        // If we are out (and not over our limit), allocate a new one
+        if (reserveRequestHandler()) {
+            rh = newRequestHandler();
+            Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
+                    "ObjectPool.NewRHPoolThread", getHandlerCounts());
             rh.commenceRequestHandling(socket, listener);
-        else {
-            // Sleep for a set period and try again from the pool
-            Thread.sleep(RETRY_PERIOD);
-
-            synchronized (this.requestHandlerSemaphore) {
-                if (this.usedRequestHandlerThreads.size() < MAX_REQUEST_HANDLERS_IN_POOL) {
-                    rh = new RequestHandlerThread(this, 
-                            this.threadIndex++, this.simulateModUniqueId,
-                            this.saveSessions);
-                    this.usedRequestHandlerThreads.add(rh);
-                    Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
-                            "ObjectPool.NewRHPoolThread", new String[] {
-                                    "" + this.usedRequestHandlerThreads.size(),
-                                    "" + this.unusedRequestHandlerThreads.size() });
+            return true;
+        }
+
+        // otherwise queue it for the next handler to come free
+        if (!this.queuedRequests.offer(new QueuedRequest(socket, listener))) {
+            return false;
+        }
+        dispatchQueuedRequests();
+        return true;
+    }
+
+    /**
+     * Applies the reject policy to a socket no handler could take: answers it
+     * with a 503 or closes it
+     */
+    public void rejectRequest(Socket socket, Listener listener) throws IOException {
+        this.rejectedCount.incrementAndGet();
+        if (this.rejectPolicy.equals(REJECT_503)) {
+            // Shed load straight away - no waiting and no warning per socket
+            Logger.log(Logger.DEBUG, Launcher.RESOURCES, "ObjectPool.SheddingRequest");
+            listener.rejectSocket(socket);
+        } else {
+            Logger.log(Logger.WARNING, Launcher.RESOURCES,
+                    "ObjectPool.NoRHPoolThreads");
+            socket.close();
+        }
+    }
+
+    /**
+     * How long in ms a socket that offerRequest() couldn't place may wait
+     * before it is rejected: zero under the 503 policy, the queue timeout
+     * under the close policy, and -1 (no limit) under the block policy
+     */
+    public long getQueueWaitTimeout() {
+        if (this.rejectPolicy.equals(REJECT_503)) {
+            return 0;
+        } else if (this.rejectPolicy.equals(REJECT_BLOCK)) {
+            return -1;
+        } else {
+            return QUEUE_TIMEOUT;
+        }
+    }
+
+    /**
+     * Hands a suspended async request (whose complete or dispatch has been
+     * called) to a handler thread. Unlike new connections these are never
+     * rejected, and this never waits, as it is called from complete() and
+     * dispatch() on any thread (eg the async timeouts). If no handler is free,
+     * the request goes on its own unbounded queue, which handlers take from
+     * before the queue of new connections. The queue can't grow without
+     * limit: each entry is a suspended request that holds an open connection,
+     * so it is bounded by the connections the listeners have accepted. And
+     * while it isn't empty, no new connections are kept alive (see
+     * getKeepAliveTimeout()), so the handlers go to it first. Rejecting from
+     * it would throw away a response the application has already written.
+     */
+    public void resumeRequest(AsyncContext async) {
+        RequestHandlerThread rh = null;
+        if (this.virtualThreadFactory == null) {
+            rh = pollUnusedRequestHandler();
+        }
+        if ((rh == null) && reserveRequestHandler()) {
+            rh = newRequestHandler();
+        }
+        if (rh != null) {
+            rh.commenceResumedRequest(async);
+        } else {
+            this.resumedRequests.offer(new QueuedRequest(async));
+            dispatchQueuedRequests();
+        }
+    }
+
+    /**
+     * The connection deadlines of every listener (see ConnectionTimeouts)
+     */
+    public TimerWheel getTimerWheel() {
+        return this.timerWheel;
+    }
+
+    /**
+     * Runs a callback for an async request (its non-blocking io listeners or
+     * its timeout) on a bounded pool of daemon threads. Once they are all
+     * busy, callbacks wait their turn.
+     */
+    public void runAsyncCallback(Runnable task) {
+        this.asyncIoThreads.execute(task);
+    }
+
+    /**
+     * Scales the keep-alive timeout supplied down as the handlers get busy,
+     * because in pooled mode each idle keep-alive connection holds a handler
+     * that a new client could be using. Below the shrink load (a percentage
+     * of the handler limit) the full timeout is returned. From there it
+     * shrinks linearly to a second, and at the close load (or once
+     * connections are queued, or while draining) it returns zero, meaning the
+     * connection should be closed after the current request. It goes back up
+     * by itself as the handlers are released.
+     */
+    public int getKeepAliveTimeout(int keepAliveTimeout) {
+        int busy = this.handlerCount.get() - this.unusedHandlerCount.get();
+        long load = (busy * 100L) / Math.max(1, MAX_REQUEST_HANDLERS_IN_POOL);
+        int timeout = keepAliveTimeout;
+        if ((load >= KEEP_ALIVE_CLOSE_LOAD) || !this.queuedRequests.isEmpty()
+                || !this.resumedRequests.isEmpty() || this.draining) {
+            timeout = 0;
+        } else if ((load > KEEP_ALIVE_SHRINK_LOAD) && (keepAliveTimeout > MIN_KEEP_ALIVE_TIMEOUT)) {
+            timeout = (int) (keepAliveTimeout - ((keepAliveTimeout - MIN_KEEP_ALIVE_TIMEOUT)
+                    * (load - KEEP_ALIVE_SHRINK_LOAD)) / (KEEP_ALIVE_CLOSE_LOAD - KEEP_ALIVE_SHRINK_LOAD));
+        }
+        this.effectiveKeepAliveTimeout = timeout;
+        return timeout;
+    }
+
+    /**
+     * While draining (ie shutting down), connections are closed after the
+     * request in progress instead of being kept alive
+     */
+    public void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+    /**
+     * The keep-alive timeout in ms most recently handed out by
+     * getKeepAliveTimeout() (zero if connections are being closed after each
+     * request), or -1 if there haven't been any keep-alive connections yet
+     */
+    public int getEffectiveKeepAliveTimeout() {
+        return this.effectiveKeepAliveTimeout;
+    }
+
+    /**
+     * The number of seconds to send in Retry-After when shedding load
+     */
+    public int getRetryAfter() {
+        return RETRY_AFTER;
+    }
+
+    /**
+     * The number of connections closed or answered with a 503 because there
+     * was no handler available and the queue was full
+     */
+    public long getRejectedConnectionCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * The number of accepted connections waiting for a handler
+     */
+    public int getQueuedRequestCount() {
+        return this.queuedRequests.size();
+    }
+
+    /**
+     * Release the handler back into the pool
+     */
+    public void releaseRequestHandler(RequestHandlerThread rh) {
+        offerUnusedRequestHandler(rh);
+        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
+                "ObjectPool.ReleasingRHPoolThread", getHandlerCounts());
+        dispatchQueuedRequests();
+    }
+
+    /**
+     * Called when an unpooled (virtual thread) handler finishes its
+     * connection. The handler's slot is freed, and used for any queued socket.
+     */
+    public void releaseUnpooledRequestHandler(RequestHandlerThread rh) {
+        this.allRequestHandlerThreads.remove(rh);
+        this.handlerCount.decrementAndGet();
+        dispatchQueuedRequests();
+    }
+
+    /**
+     * Pairs queued sockets (resumed requests first) with idle handlers. This
+     * is called after anything is added to the handler or socket queues, so a
+     * socket can't be left waiting while a handler sits idle.
+     */
+    private void dispatchQueuedRequests() {
+        while (!this.resumedRequests.isEmpty() || !this.queuedRequests.isEmpty()) {
+            RequestHandlerThread rh = null;
+            if (this.virtualThreadFactory == null) {
+                rh = pollUnusedRequestHandler();
+            } else if (reserveRequestHandler()) {
+                rh = newRequestHandler();
+            }
+            if (rh == null) {
+                return;
+            }
+            QueuedRequest queued = (QueuedRequest) this.resumedRequests.poll();
+            if (queued == null) {
+                queued = (QueuedRequest) this.queuedRequests.poll();
+            }
+            if (queued == null) {
+                if (this.virtualThreadFactory == null) {
+                    offerUnusedRequestHandler(rh);
+                } else {
+                    releaseUnpooledRequestHandler(rh);
                 }
+            } else {
+                Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
+                        "ObjectPool.UsingRHPoolThread", getHandlerCounts());
+                queued.commence(rh);
             }
-            if (rh != null)
-                rh.commenceRequestHandling(socket, listener);
-            else {
-                Logger.log(Logger.WARNING, Launcher.RESOURCES,
-                        "ObjectPool.NoRHPoolThreads");
-                socket.close();
+        }
+    }
+
+    private RequestHandlerThread pollUnusedRequestHandler() {
+        RequestHandlerThread rh = (RequestHandlerThread) this.unusedRequestHandlerThreads.poll();
+        if (rh != null) {
+            this.unusedHandlerCount.decrementAndGet();
+        }
+        return rh;
+    }
+
+    private void offerUnusedRequestHandler(RequestHandlerThread rh) {
+        this.unusedHandlerCount.incrementAndGet();
+        this.unusedRequestHandlerThreads.offer(rh);
+    }
+
+    /**
+     * Reserves a slot for a new handler thread, if we are below the limit
+     */
+    private boolean reserveRequestHandler() {
+        while (true) {
+            int count = this.handlerCount.get();
+            if (count >= MAX_REQUEST_HANDLERS_IN_POOL) {
+                return false;
+            } else if (this.handlerCount.compareAndSet(count, count + 1)) {
+                return true;
             }
         }
     }
 
+    private RequestHandlerThread newRequestHandler() {
+        RequestHandlerThread rh = new RequestHandlerThread(this, 
+                this.threadIndex.getAndIncrement(), this.simulateModUniqueId,
+                this.saveSessions, this.virtualThreadFactory);
+        this.allRequestHandlerThreads.put(rh, rh);
+        return rh;
+    }
+
     /**
-     * Release the handler back into the pool
+     * Looks up Thread.ofVirtual().factory() by reflection, so that we still
+     * build and run on JDKs without virtual threads. Returns null if they are
+     * not available.
      */
-    public void releaseRequestHandler(RequestHandlerThread rh) {
-        synchronized (this.requestHandlerSemaphore) {
-            this.usedRequestHandlerThreads.remove(rh);
-            this.unusedRequestHandlerThreads.add(rh);
-            Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
-                    "ObjectPool.ReleasingRHPoolThread", new String[] {
-                            "" + this.usedRequestHandlerThreads.size(),
-                            "" + this.unusedRequestHandlerThreads.size() });
+    private static ThreadFactory getVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual", new Class[0])
+                    .invoke(null, new Object[0]);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory", new Class[0]).invoke(builder, new Object[0]);
+        } catch (Throwable err) {
+            return null;
+        }
+    }
+
+    private String[] getHandlerCounts() {
+        int unused = this.unusedHandlerCount.get();
+        return new String[] {"" + (this.handlerCount.get() - unused), "" + unused};
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException err) {
+        }
+    }
+
+    /**
+     * An accepted socket waiting for a handler thread
+     */
+    private static class QueuedRequest {
+        private Socket socket;
+        private Listener listener;
+        private AsyncContext resumed;
+
+        QueuedRequest(Socket socket, Listener listener) {
+            this.socket = socket;
+            this.listener = listener;
+        }
+
+        QueuedRequest(AsyncContext resumed) {
+            this(resumed.getSocket(), resumed.getListener());
+            this.resumed = resumed;
+        }
+
+        void commence(RequestHandlerThread rh) {
+            if (this.resumed == null) {
+                rh.commenceRequestHandling(this.socket, this.listener);
+            } else {
+                rh.commenceResumedRequest(this.resumed);
+            }
         }
     }
 
@@ -235,18 +643,18 @@ public class ObjectPool implements Runnable {
             int unused = this.unusedRequestPool.size();
             if (unused > 0) {
                 req = (WinstoneRequest) this.unusedRequestPool.remove(unused - 1);
-                this.usedRequestPool.add(req);
+                this.usedRequestCount++;
                 Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                         "ObjectPool.UsingRequestFromPool", ""
                                 + this.unusedRequestPool.size());
             }
             // If we are out, allocate a new one
-            else if (this.usedRequestPool.size() < MAX_REQUESTS_IN_POOL) {
+            else if (this.usedRequestCount < MAX_REQUESTS_IN_POOL) {
                 req = new WinstoneRequest();
-                this.usedRequestPool.add(req);
+                this.usedRequestCount++;
                 Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                         "ObjectPool.NewRequestForPool", ""
-                                + this.usedRequestPool.size());
+                                + this.usedRequestCount);
             } else
                 throw new WinstoneException(Launcher.RESOURCES
                         .getString("ObjectPool.PoolRequestLimitExceeded"));
@@ -257,7 +665,7 @@ public class ObjectPool implements Runnable {
     public void releaseRequestToPool(WinstoneRequest req) {
         req.cleanUp();
         synchronized (this.requestPoolSemaphore) {
-            this.usedRequestPool.remove(req);
+            this.usedRequestCount--;
             this.unusedRequestPool.add(req);
             Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                     "ObjectPool.RequestReleased", ""
@@ -265,6 +673,35 @@ public class ObjectPool implements Runnable {
         }
     }
 
+    /**
+     * Takes a suspended request and its response out of the pool's used
+     * counts, so that long-polls waiting on async requests don't use up the
+     * limit, which is sized for the handler threads. They are counted again
+     * by resumePooledRequest() when a handler picks the request back up.
+     */
+    public void suspendPooledRequest() {
+        synchronized (this.requestPoolSemaphore) {
+            this.usedRequestCount--;
+        }
+        synchronized (this.responsePoolSemaphore) {
+            this.usedResponseCount--;
+        }
+    }
+
+    /**
+     * Counts a resumed request and its response as used again. This doesn't
+     * check the limit, as the pair already exists and is going back to the
+     * pool once the handler is done with it.
+     */
+    public void resumePooledRequest() {
+        synchronized (this.requestPoolSemaphore) {
+            this.usedRequestCount++;
+        }
+        synchronized (this.responsePoolSemaphore) {
+            this.usedResponseCount++;
+        }
+    }
+
     /**
      * An attempt at pooling request objects for reuse.
      */
@@ -275,18 +712,18 @@ public class ObjectPool implements Runnable {
             int unused = this.unusedResponsePool.size();
             if (unused > 0) {
                 rsp = (WinstoneResponse) this.unusedResponsePool.remove(unused - 1);
-                this.usedResponsePool.add(rsp);
+                this.usedResponseCount++;
                 Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                         "ObjectPool.UsingResponseFromPool", ""
                                 + this.unusedResponsePool.size());
             }
             // If we are out, allocate a new one
-            else if (this.usedResponsePool.size() < MAX_RESPONSES_IN_POOL) {
+            else if (this.usedResponseCount < MAX_RESPONSES_IN_POOL) {
                 rsp = new WinstoneResponse();
-                this.usedResponsePool.add(rsp);
+                this.usedResponseCount++;
                 Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                         "ObjectPool.NewResponseForPool", ""
-                                + this.usedResponsePool.size());
+                                + this.usedResponseCount);
             } else
                 throw new WinstoneException(Launcher.RESOURCES
                         .getString("ObjectPool.PoolResponseLimitExceeded"));
@@ -297,7 +734,7 @@ public class ObjectPool implements Runnable {
     public void releaseResponseToPool(WinstoneResponse rsp) {
         rsp.cleanUp();
         synchronized (this.responsePoolSemaphore) {
-            this.usedResponsePool.remove(rsp);
+            this.usedResponseCount--;
             this.unusedResponsePool.add(rsp);
             Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                     "ObjectPool.ResponseReleased", ""
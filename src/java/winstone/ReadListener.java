@@ -0,0 +1,36 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.IOException;
+
+/**
+ * Called back as the body of an async request arrives, so it can be read
+ * without blocking (see WinstoneInputStream.setReadListener()).
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public interface ReadListener {
+    /**
+     * Called when the stream can be read without blocking. Read for as long
+     * as isReady() returns true: once it returns false, this is called again
+     * when more of the body has arrived.
+     */
+    public void onDataAvailable() throws IOException;
+
+    /**
+     * Called once, when the whole body has been read.
+     */
+    public void onAllDataRead() throws IOException;
+
+    /**
+     * Called if reading fails (eg the client goes away). The request is
+     * completed afterwards.
+     */
+    public void onError(Throwable err);
+}
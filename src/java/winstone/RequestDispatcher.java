@@ -334,8 +334,9 @@ public class RequestDispatcher implements javax.servlet.RequestDispatcher,
         } else {
             this.servletConfig.execute(request, response, this.webAppConfig.getContextPath() + this.requestURI);
         }
-        // Stop any output after the final filter has been executed (e.g. from forwarding servlet)
-        if (outsideFilter) {
+        // Stop any output after the final filter has been executed (e.g. from
+        // forwarding servlet), unless the request has gone async
+        if (outsideFilter && (getUnwrappedRequest(request).getAsyncContext() == null)) {
             WinstoneResponse rsp = getUnwrappedResponse(response);
             rsp.flushBuffer();
             rsp.getWinstoneOutputStream().setClosed(true);
@@ -12,6 +12,8 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ThreadFactory;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequestEvent;
@@ -36,6 +38,15 @@ public class RequestHandlerThread implements Runnable {
     private long requestStartTime;
     private boolean simulateModUniqueId;
     private boolean saveSessions;
+    private boolean pooled;
+    private ConnectionInputBuffer inputBuffer;
+    private ResponseBuffer commitBuffer;
+    private ConnectionTimeouts connectionTimeouts;
+    private ActiveRequests webAppRequests;
+    private ActiveRequests listenerRequests;
+    private AsyncContext resumedRequest;
+    private boolean suspended;
+    private volatile boolean destroyed;
 //    private Object processingMonitor = new Boolean(true);
 
     /**
@@ -44,6 +55,16 @@ public class RequestHandlerThread implements Runnable {
      */
     public RequestHandlerThread(ObjectPool objectPool, int threadIndex, 
             boolean simulateModUniqueId, boolean saveSessions) {
+        this(objectPool, threadIndex, simulateModUniqueId, saveSessions, null);
+    }
+
+    /**
+     * If a thread factory is supplied (eg for virtual threads), the handler is
+     * unpooled: it handles a single connection and then exits.
+     */
+    public RequestHandlerThread(ObjectPool objectPool, int threadIndex, 
+            boolean simulateModUniqueId, boolean saveSessions,
+            ThreadFactory threadFactory) {
         this.objectPool = objectPool;
         this.simulateModUniqueId = simulateModUniqueId;
         this.saveSessions = saveSessions;
@@ -51,8 +72,15 @@ public class RequestHandlerThread implements Runnable {
                 "RequestHandlerThread.ThreadName", "" + threadIndex);
 
         // allocate a thread to run on this object
-        this.thread = new Thread(this, threadName);
-        this.thread.setDaemon(true);
+        if (threadFactory == null) {
+            this.pooled = true;
+            this.thread = new Thread(this, threadName);
+            this.thread.setDaemon(true);
+        } else {
+            this.pooled = false;
+            this.thread = threadFactory.newThread(this);
+            this.thread.setName(threadName);
+        }
     }
 
     /**
@@ -66,14 +94,35 @@ public class RequestHandlerThread implements Runnable {
             InputStream inSocket = null;
             OutputStream outSocket = null;
             boolean iAmFirst = true;
+            AsyncContext resumed = null;
+            synchronized (this) {
+                resumed = this.resumedRequest;
+                this.resumedRequest = null;
+            }
+            this.suspended = false;
             try {
-                // Get input/output streams
-                inSocket = socket.getInputStream();
-                outSocket = socket.getOutputStream();
+                // Get input/output streams, with their deadlines (a resumed
+                // request brings its connection's along)
+                if (resumed != null) {
+                    this.connectionTimeouts = resumed.getConnectionTimeouts();
+                } else {
+                    this.connectionTimeouts = new ConnectionTimeouts(
+                            this.objectPool.getTimerWheel(), socket);
+                }
+                inSocket = this.connectionTimeouts.getInputStream();
+                outSocket = this.connectionTimeouts.getOutputStream();
 
-                // The keep alive loop - exiting from here means the connection has closed
+                // Finish off a suspended async request first, if we were
+                // woken up for one
                 boolean continueFlag = true;
-                while (continueFlag && !interrupted) {
+                if (resumed != null) {
+                    continueFlag = resumeRequest(resumed, inSocket);
+                    iAmFirst = false;
+                }
+
+                // The keep alive loop - exiting from here means the connection
+                // has closed (or has been suspended by an async request)
+                while (continueFlag && !interrupted && !this.suspended && !this.destroyed) {
                     try {
                         long requestId = System.currentTimeMillis();
                         this.listener.allocateRequestResponse(socket, inSocket,
@@ -135,6 +184,7 @@ public class RequestHandlerThread implements Runnable {
                             continue;
                         }
                         req.setWebAppConfig(webAppConfig);
+                        startCounting(webAppConfig);
 
                         // Now we've verified it's in the right webapp, send
                         // request in scope notify
@@ -149,49 +199,29 @@ public class RequestHandlerThread implements Runnable {
                         // Lookup a dispatcher, then process with it
                         processRequest(webAppConfig, req, rsp, 
                                 webAppConfig.getServletURIFromRequestURI(servletURI));
-                        writeToAccessLog(servletURI, req, rsp, webAppConfig);
-
-                        this.outData.finishResponse();
-                        this.inData.finishRequest();
-
-                        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
-                                "RequestHandlerThread.FinishRequest",
-                                "" + requestId);
-
-                        // Process keep-alive
-                        continueFlag = this.listener.processKeepAlive(req, rsp, inSocket);
-
-                        // Set last accessed time on session as start of this
-                        // request
-                        req.markSessionsAsRequestFinished(this.requestStartTime, this.saveSessions);
-
-                        // send request listener notifies
-                        for (int n = 0; n < reqLsnrs.length; n++) {
-                            ClassLoader cl = Thread.currentThread().getContextClassLoader();
-                            Thread.currentThread().setContextClassLoader(webAppConfig.getLoader());
-                            reqLsnrs[n].requestDestroyed(new ServletRequestEvent(webAppConfig, req));
-                            Thread.currentThread().setContextClassLoader(cl);                            
+                        if (!processAsync(servletURI, webAppConfig)) {
+                            continueFlag = finishRequest(servletURI, webAppConfig, 
+                                    inSocket, headerParseTime);
+                            Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
+                                    "RequestHandlerThread.FinishRequest", "" + requestId);
                         }
-
-                        req.setWebAppConfig(null);
-                        rsp.setWebAppConfig(null);
-                        req.setRequestAttributeListeners(null);
-
-                        this.listener.deallocateRequestResponse(this, req, rsp, inData, outData);
-                        Logger.log(Logger.SPEED, Launcher.RESOURCES, "RequestHandlerThread.RequestTime",
-                                new String[] { servletURI, "" + headerParseTime, 
-                                                "" + getRequestProcessTime() });
                     } catch (InterruptedIOException errIO) {
                         continueFlag = false;
                         Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                                 "RequestHandlerThread.SocketTimeout", errIO);
                     } catch (SocketException errIO) {
                         continueFlag = false;
+                    } catch (ClosedChannelException errIO) {
+                        continueFlag = false;
                     }
                 }
-                this.listener.deallocateRequestResponse(this, req, rsp, inData, outData);
-                this.listener.releaseSocket(this.socket, inSocket, outSocket); // shut sockets
+                stopCounting();
+                if (!this.suspended) {
+                    this.listener.deallocateRequestResponse(this, req, rsp, inData, outData);
+                    this.listener.releaseSocket(this.socket, inSocket, outSocket); // shut sockets
+                }
             } catch (Throwable err) {
+                stopCounting();
                 try {
                     this.listener.deallocateRequestResponse(this, req, rsp, inData, outData);
                 } catch (Throwable errClose) {
@@ -205,15 +235,30 @@ public class RequestHandlerThread implements Runnable {
                         "RequestHandlerThread.RequestError", err);
             }
 
+            // Clear the socket before going back to the pool, so we can tell
+            // when we've been assigned the next one
+            synchronized (this) {
+                this.socket = null;
+                this.listener = null;
+            }
+            this.connectionTimeouts = null;
+            if (!this.pooled) {
+                this.objectPool.releaseUnpooledRequestHandler(this);
+                break;
+            }
             this.objectPool.releaseRequestHandler(this);
 
             if (!interrupted) {
-                // Suspend this thread until we get assigned and woken up
+                // Suspend this thread until we get assigned and woken up. The
+                // assignment may already have happened during the release
                 Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                         "RequestHandlerThread.EnterWaitState");
                 try {
                     synchronized (this) {
-                        this.wait();
+                        while ((this.socket == null) && !this.destroyed) {
+                            this.wait();
+                        }
+                        interrupted = (this.socket == null);
                     }
                 } catch (InterruptedException err) {
                     interrupted = true;
@@ -264,23 +309,179 @@ public class RequestHandlerThread implements Runnable {
             }
 //            rsp.sendUntrappedError(err, req, rd != null ? rd.getName() : null);
         }
-        rsp.flushBuffer();
+    }
+
+    /**
+     * Finishes the response, then cleans up after the request. Returns true
+     * if the connection should be kept alive for another request.
+     */
+    private boolean finishRequest(String servletURI, WebAppConfiguration webAppConfig,
+            InputStream inSocket, long headerParseTime) 
+            throws IOException, InterruptedException {
+        WinstoneRequest req = this.req;
+        WinstoneResponse rsp = this.rsp;
+        rsp.finishBody();
         rsp.getWinstoneOutputStream().setClosed(true);
         req.discardRequestBody();
+        writeToAccessLog(servletURI, req, rsp, webAppConfig);
+
+        this.outData.finishResponse();
+        this.inData.finishRequest();
+        if (req.getAsyncContext() != null) {
+            req.getAsyncContext().fireComplete();
+        }
+
+        // Process keep-alive
+        boolean continueFlag = this.listener.processKeepAlive(req, rsp, inSocket);
+
+        // Set last accessed time on session as start of this
+        // request
+        req.markSessionsAsRequestFinished(this.requestStartTime, this.saveSessions);
+
+        // send request listener notifies
+        ServletRequestListener reqLsnrs[] = webAppConfig.getRequestListeners();
+        for (int n = 0; n < reqLsnrs.length; n++) {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(webAppConfig.getLoader());
+            reqLsnrs[n].requestDestroyed(new ServletRequestEvent(webAppConfig, req));
+            Thread.currentThread().setContextClassLoader(cl);                            
+        }
+
+        req.setWebAppConfig(null);
+        rsp.setWebAppConfig(null);
+        req.setRequestAttributeListeners(null);
+
+        this.listener.deallocateRequestResponse(this, req, rsp, this.inData, this.outData);
+        stopCounting();
+        Logger.log(Logger.SPEED, Launcher.RESOURCES, "RequestHandlerThread.RequestTime",
+                new String[] { servletURI, "" + headerParseTime, 
+                                "" + getRequestProcessTime() });
+        return continueFlag;
+    }
+
+    /**
+     * Counts the request as in progress on its webapp and listener, until
+     * stopCounting() is called
+     */
+    private void startCounting(WebAppConfiguration webAppConfig) {
+        this.webAppRequests = webAppConfig.getActiveRequests();
+        this.listenerRequests = this.listener.getActiveRequests();
+        this.webAppRequests.requestStarted();
+        this.listenerRequests.requestStarted();
+    }
+
+    private void stopCounting() {
+        if (this.webAppRequests != null) {
+            this.webAppRequests.requestFinished();
+            this.webAppRequests = null;
+        }
+        if (this.listenerRequests != null) {
+            this.listenerRequests.requestFinished();
+            this.listenerRequests = null;
+        }
+    }
+
+    /**
+     * Deals with a request that has called startAsync(). Returns true if the
+     * request has been suspended, in which case the connection, request and
+     * response now belong to its async context and this handler must let go
+     * of them. Otherwise any dispatches asked for are run here, and false is
+     * returned once the request is ready to be finished.
+     */
+    private boolean processAsync(String servletURI, WebAppConfiguration webAppConfig)
+            throws IOException, ServletException {
+        AsyncContext async = this.req.getAsyncContext();
+        while ((async != null) && async.isPending()) {
+            if (async.suspend(this.objectPool, this.socket, this.listener, servletURI,
+                    webAppConfig, this.requestStartTime, this.inputBuffer, this.commitBuffer,
+                    this.connectionTimeouts)) {
+                // The buffers (and the request's place in the active
+                // counts) now travel with the request, so start new ones.
+                // The request and response stop counting against the pool
+                // limit until they are resumed.
+                this.objectPool.suspendPooledRequest();
+                this.inputBuffer = null;
+                this.commitBuffer = null;
+                this.webAppRequests = null;
+                this.listenerRequests = null;
+                this.req = null;
+                this.rsp = null;
+                this.inData = null;
+                this.outData = null;
+                this.suspended = true;
+                return true;
+            }
+            async.finishAsyncIo();
+            String path = async.takeDispatch(
+                    webAppConfig.getServletURIFromRequestURI(servletURI));
+            if (path == null) {
+                break;
+            }
+            processRequest(webAppConfig, this.req, this.rsp, path);
+        }
+        if ((async != null) && async.isTimedOut() && !this.rsp.isCommitted()) {
+            this.rsp.sendError(WinstoneResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+        return false;
+    }
+
+    /**
+     * Picks up a suspended async request once it has been completed or
+     * dispatched. Returns true if the connection should be kept alive for
+     * another request.
+     */
+    private boolean resumeRequest(AsyncContext async, InputStream inSocket)
+            throws IOException, ServletException, InterruptedException {
+        WinstoneRequest req = async.getRequest();
+        WinstoneResponse rsp = async.getResponse();
+        this.objectPool.resumePooledRequest();
+        setRequest(req);
+        setResponse(rsp);
+        setInStream(req.getWinstoneInputStream());
+        setOutStream(rsp.getWinstoneOutputStream());
+        if (async.getInputBuffer() != null) {
+            this.inputBuffer = async.getInputBuffer();
+        }
+        if (async.getCommitBuffer() != null) {
+            this.commitBuffer = async.getCommitBuffer();
+        }
+        this.requestStartTime = async.getRequestStartTime();
+        this.webAppRequests = async.getWebAppConfig().getActiveRequests();
+        this.listenerRequests = this.listener.getActiveRequests();
+        this.listener.resumeSocket(this.socket, this);
+        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
+                "RequestHandlerThread.ResumingRequest", async.getServletURI());
+
+        if (processAsync(async.getServletURI(), async.getWebAppConfig())) {
+            return false;
+        }
+        return finishRequest(async.getServletURI(), async.getWebAppConfig(), 
+                inSocket, 0);
     }
 
     /**
      * Assign a socket to the handler
      */
     public void commenceRequestHandling(Socket socket, Listener listener) {
-        this.listener = listener;
-        this.socket = socket;
-        if (this.thread.isAlive())
-            synchronized (this) {
+        synchronized (this) {
+            this.listener = listener;
+            this.socket = socket;
+            if (this.thread.isAlive()) {
                 this.notifyAll();
+                return;
             }
-        else
-            this.thread.start();
+        }
+        this.thread.start();
+    }
+
+    /**
+     * Wake the handler up to finish off a suspended async request
+     */
+    public void commenceResumedRequest(AsyncContext async) {
+        synchronized (this) {
+            this.resumedRequest = async;
+        }
+        commenceRequestHandling(async.getSocket(), async.getListener());
     }
 
     public void setRequest(WinstoneRequest request) {
@@ -299,6 +500,36 @@ public class RequestHandlerThread implements Runnable {
         this.outData = outStream;
     }
 
+    /**
+     * The read, write and keep-alive deadlines of the current connection
+     */
+    public ConnectionTimeouts getConnectionTimeouts() {
+        return this.connectionTimeouts;
+    }
+
+    /**
+     * The handler's read buffer, created on first use and reused for each
+     * connection the handler serves
+     */
+    public ConnectionInputBuffer getInputBuffer() {
+        if (this.inputBuffer == null) {
+            this.inputBuffer = new ConnectionInputBuffer(
+                    ConnectionInputBuffer.DEFAULT_BUFFER_SIZE);
+        }
+        return this.inputBuffer;
+    }
+
+    /**
+     * The handler's buffer for building response heads, reused for each
+     * response it sends
+     */
+    public ResponseBuffer getCommitBuffer() {
+        if (this.commitBuffer == null) {
+            this.commitBuffer = new ResponseBuffer();
+        }
+        return this.commitBuffer;
+    }
+
     public void setRequestStartTime() {
         this.requestStartTime = System.currentTimeMillis();
     }
@@ -308,11 +539,15 @@ public class RequestHandlerThread implements Runnable {
     }
 
     /**
-     * Trigger the thread destruction for this handler
+     * Trigger the thread destruction for this handler. An idle handler exits
+     * straight away, and a busy one once its current request is finished. The
+     * thread isn't interrupted, because that would close a channel backed
+     * socket out from under the request.
      */
     public void destroy() {
-        if (this.thread.isAlive()) {
-            this.thread.interrupt();
+        synchronized (this) {
+            this.destroyed = true;
+            this.notifyAll();
         }
     }
     
@@ -0,0 +1,24 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request head doesn't fit in the maximum head size. This is
+ * the client's fault rather than the server's, so the listener answers it
+ * with a 431 and closes the connection, instead of treating it as a handler
+ * failure.
+ * 
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class RequestHeadTooLargeException extends IOException {
+    public RequestHeadTooLargeException(String message) {
+        super(message);
+    }
+}
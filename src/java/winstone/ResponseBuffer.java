@@ -0,0 +1,66 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A byte array output stream that can append ISO-8859-1 text without
+ * encoding it to a temporary array first, and can write out just the start
+ * of its contents. Used to build the status line, headers and first body
+ * bytes of a response so they can be sent in a single write.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class ResponseBuffer extends ByteArrayOutputStream {
+    public ResponseBuffer() {
+        super();
+    }
+
+    public ResponseBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Appends the text one byte per char (chars above 255 are truncated, as
+     * for any ISO-8859-1 header)
+     */
+    public synchronized void writeLatin1(String text) {
+        int length = text.length();
+        ensureCapacity(this.count + length);
+        text.getBytes(0, length, this.buf, this.count);
+        this.count += length;
+    }
+
+    /**
+     * Writes the first length bytes of the buffer
+     */
+    public synchronized void writeTo(OutputStream out, int length) throws IOException {
+        out.write(this.buf, 0, Math.min(length, this.count));
+    }
+
+    /**
+     * Writes the bytes from offset on to the channel, returning how many it
+     * took (which may be fewer if it is non-blocking)
+     */
+    public synchronized int writeTo(WritableByteChannel channel, int offset) throws IOException {
+        return channel.write(ByteBuffer.wrap(this.buf, offset, this.count - offset));
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > this.buf.length) {
+            byte newBuf[] = new byte[Math.max(size, this.buf.length * 2)];
+            System.arraycopy(this.buf, 0, newBuf, 0, this.count);
+            this.buf = newBuf;
+        }
+    }
+}
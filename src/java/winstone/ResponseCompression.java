@@ -0,0 +1,115 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+/**
+ * A webapp's settings for gzipping responses on the fly. The command line
+ * arguments give the defaults, and a webapp can override them with context
+ * params of the same name prefixed with "winstone." (eg
+ * winstone.gzipCompression in its web.xml).
+ *
+ * A response is compressed if it's a 200 whose content type is in the list
+ * and whose length is at least the minimum (or unknown, ie bigger than the
+ * buffer), and the client accepts gzip. The output stream does the work.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class ResponseCompression {
+    static final String CONTEXT_PARAM_PREFIX = "winstone.";
+    static final String DEFAULT_MIME_TYPES = "text/html,text/plain,text/css,text/xml,"
+            + "text/javascript,application/javascript,application/json,application/xml";
+
+    private boolean enabled;
+    private int minSize;
+    private Set mimeTypes;
+
+    public ResponseCompression(Map startupArgs, Map contextParams) {
+        Map args = new HashMap();
+        String names[] = new String[] { "gzipCompression", "gzipMinSize", "gzipMimeTypes" };
+        for (int n = 0; n < names.length; n++) {
+            String value = (String) contextParams.get(CONTEXT_PARAM_PREFIX + names[n]);
+            if (value == null) {
+                value = (String) startupArgs.get(names[n]);
+            }
+            if (value != null) {
+                args.put(names[n], value.trim());
+            }
+        }
+        this.enabled = WebAppConfiguration.booleanArg(args, "gzipCompression", false);
+        this.minSize = WebAppConfiguration.intArg(args, "gzipMinSize", 1024);
+        this.mimeTypes = new HashSet();
+        StringTokenizer st = new StringTokenizer(WebAppConfiguration.stringArg(
+                args, "gzipMimeTypes", DEFAULT_MIME_TYPES), ",", false);
+        while (st.hasMoreTokens()) {
+            String mimeType = st.nextToken().trim().toLowerCase();
+            if (!mimeType.equals("")) {
+                this.mimeTypes.add(mimeType);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * True if a body of this type and length (-1 if unknown) should be
+     * compressed for clients that accept it. A missing type counts as
+     * text/html, since that's what the response defaults to.
+     */
+    public boolean isCompressible(String contentType, long length) {
+        if (!this.enabled || ((length != -1) && (length < this.minSize))) {
+            return false;
+        }
+        String mimeType = "text/html";
+        if (contentType != null) {
+            int semicolon = contentType.indexOf(';');
+            mimeType = (semicolon == -1 ? contentType
+                    : contentType.substring(0, semicolon)).trim().toLowerCase();
+        }
+        return this.mimeTypes.contains(mimeType);
+    }
+
+    /**
+     * The q value the Accept-Encoding header gives the coding, directly or
+     * through "*", or 0 if it isn't acceptable
+     */
+    public static float getEncodingQuality(String acceptEncoding, String coding) {
+        if (acceptEncoding == null)
+            return 0;
+        float starQuality = 0;
+        StringTokenizer st = new StringTokenizer(acceptEncoding, ",", false);
+        while (st.hasMoreTokens()) {
+            String token = st.nextToken().trim();
+            float quality = 1;
+            int semicolon = token.indexOf(';');
+            if (semicolon != -1) {
+                String param = token.substring(semicolon + 1).trim();
+                token = token.substring(0, semicolon).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException err) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (token.equalsIgnoreCase(coding))
+                return quality;
+            else if (token.equals("*"))
+                starQuality = quality;
+        }
+        return starQuality;
+    }
+}
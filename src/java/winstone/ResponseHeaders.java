@@ -0,0 +1,257 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.util.Arrays;
+
+/**
+ * The headers of a response. The headers the container itself reads and
+ * writes on every request have a fixed slot each, so finding them is an array
+ * index rather than a search. Any other header (or a second value for a
+ * well-known header) goes in an overflow array, kept in the order added.
+ * Names are matched ignoring case.
+ *
+ * For iterating, entries 0 to KNOWN_COUNT - 1 are the slots (with a null
+ * value if unset) and the overflow entries follow them.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class ResponseHeaders {
+    public static final int SERVER = 0;
+    public static final int CONTENT_TYPE = 1;
+    public static final int CONTENT_LENGTH = 2;
+    public static final int CONTENT_LANGUAGE = 3;
+    public static final int TRANSFER_ENCODING = 4;
+    public static final int CONNECTION = 5;
+    public static final int DATE = 6;
+    public static final int LAST_MODIFIED = 7;
+    public static final int LOCATION = 8;
+    public static final int X_POWERED_BY = 9;
+    public static final int KNOWN_COUNT = 10;
+
+    static final String KNOWN_NAMES[] = { "Server", "Content-Type", "Content-Length",
+            "Content-Language", "Transfer-Encoding", "Connection", "Date",
+            "Last-Modified", "Location", "X-Powered-By" };
+
+    private static final int INITIAL_OVERFLOW_SIZE = 8;
+    private static final byte COLON_SPACE[] = { ':', ' ' };
+    private static final byte CR_LF[] = { '\r', '\n' };
+
+    private String knownNames[] = new String[KNOWN_COUNT];
+    private String knownValues[] = new String[KNOWN_COUNT];
+    private String names[] = new String[INITIAL_OVERFLOW_SIZE];
+    private String values[] = new String[INITIAL_OVERFLOW_SIZE];
+    private int count;
+
+    /**
+     * Returns the slot for the header name supplied, or -1 if it doesn't
+     * have one
+     */
+    public static int getSlot(String name) {
+        for (int n = 0; n < KNOWN_COUNT; n++) {
+            if (KNOWN_NAMES[n] == name) {
+                return n;
+            }
+        }
+        for (int n = 0; n < KNOWN_COUNT; n++) {
+            if (KNOWN_NAMES[n].equalsIgnoreCase(name)) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    public String get(int slot) {
+        return this.knownValues[slot];
+    }
+
+    /**
+     * Returns the first value for the header, or null if it isn't set
+     */
+    public String get(String name) {
+        int slot = getSlot(name);
+        if (slot != -1) {
+            return this.knownValues[slot];
+        }
+        int index = indexOf(name, 0);
+        return index == -1 ? null : this.values[index];
+    }
+
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    /**
+     * Adds a value, keeping any that are already set
+     */
+    public void add(String name, String value) {
+        int slot = getSlot(name);
+        if ((slot != -1) && (this.knownValues[slot] == null)) {
+            this.knownNames[slot] = name;
+            this.knownValues[slot] = value;
+        } else {
+            addOverflow(name, value);
+        }
+    }
+
+    /**
+     * Replaces any values already set with this one. A null value removes
+     * the header.
+     */
+    public void set(String name, String value) {
+        int slot = getSlot(name);
+        if (slot != -1) {
+            this.knownNames[slot] = (value == null) ? null : name;
+            this.knownValues[slot] = value;
+            removeOverflow(name);
+        } else {
+            int index = indexOf(name, 0);
+            if ((index == -1) || (value == null)) {
+                removeOverflow(name);
+                if (value != null) {
+                    addOverflow(name, value);
+                }
+            } else {
+                this.values[index] = value;
+                removeOverflow(name, index + 1);
+            }
+        }
+    }
+
+    /**
+     * Sets a well-known header, replacing any values already set
+     */
+    public void set(int slot, String value) {
+        if (this.knownNames[slot] == null) {
+            this.knownNames[slot] = KNOWN_NAMES[slot];
+        }
+        this.knownValues[slot] = value;
+        if (this.count > 0) {
+            removeOverflow(KNOWN_NAMES[slot]);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(this.knownNames, null);
+        Arrays.fill(this.knownValues, null);
+        Arrays.fill(this.names, 0, this.count, null);
+        Arrays.fill(this.values, 0, this.count, null);
+        this.count = 0;
+    }
+
+    /**
+     * The number of headers set
+     */
+    public int size() {
+        int size = this.count;
+        for (int n = 0; n < KNOWN_COUNT; n++) {
+            if (this.knownValues[n] != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * The number of entries to iterate over: the slots plus the overflow
+     */
+    public int getEntryCount() {
+        return KNOWN_COUNT + this.count;
+    }
+
+    public String getName(int entry) {
+        return entry < KNOWN_COUNT ? this.knownNames[entry]
+                : this.names[entry - KNOWN_COUNT];
+    }
+
+    /**
+     * The value of an entry, or null for an unset slot
+     */
+    public String getValue(int entry) {
+        return entry < KNOWN_COUNT ? this.knownValues[entry]
+                : this.values[entry - KNOWN_COUNT];
+    }
+
+    /**
+     * Writes the headers as "name: value" lines, ISO-8859-1 encoded
+     */
+    public void writeTo(ResponseBuffer out) {
+        for (int n = 0; n < getEntryCount(); n++) {
+            String value = getValue(n);
+            if (value != null) {
+                out.writeLatin1(getName(n));
+                out.write(COLON_SPACE, 0, COLON_SPACE.length);
+                out.writeLatin1(value);
+                out.write(CR_LF, 0, CR_LF.length);
+            }
+        }
+    }
+
+    public String toString() {
+        StringBuffer out = new StringBuffer("[");
+        for (int n = 0; n < getEntryCount(); n++) {
+            String value = getValue(n);
+            if (value != null) {
+                if (out.length() > 1) {
+                    out.append(", ");
+                }
+                out.append(getName(n)).append(": ").append(value);
+            }
+        }
+        return out.append("]").toString();
+    }
+
+    private int indexOf(String name, int fromIndex) {
+        for (int n = fromIndex; n < this.count; n++) {
+            if (this.names[n].equalsIgnoreCase(name)) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    private void addOverflow(String name, String value) {
+        if (this.count == this.names.length) {
+            String newNames[] = new String[this.count * 2];
+            String newValues[] = new String[this.count * 2];
+            System.arraycopy(this.names, 0, newNames, 0, this.count);
+            System.arraycopy(this.values, 0, newValues, 0, this.count);
+            this.names = newNames;
+            this.values = newValues;
+        }
+        this.names[this.count] = name;
+        this.values[this.count] = value;
+        this.count++;
+    }
+
+    private void removeOverflow(String name) {
+        removeOverflow(name, 0);
+    }
+
+    /**
+     * Removes the overflow entries from fromIndex on with the name supplied,
+     * keeping the order of the rest
+     */
+    private void removeOverflow(String name, int fromIndex) {
+        int kept = fromIndex;
+        for (int n = fromIndex; n < this.count; n++) {
+            if (!this.names[n].equalsIgnoreCase(name)) {
+                this.names[kept] = this.names[n];
+                this.values[kept] = this.values[n];
+                kept++;
+            }
+        }
+        Arrays.fill(this.names, kept, this.count, null);
+        Arrays.fill(this.values, kept, this.count, null);
+        this.count = kept;
+    }
+}
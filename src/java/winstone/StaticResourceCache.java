@@ -0,0 +1,209 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of small static files for the static resource servlet,
+ * keyed by canonical path. Each entry holds the file's bytes along with its
+ * ETag and Last-Modified header, rendered once when the file is loaded.
+ *
+ * The cache is bounded by the total bytes held, and evicts the least recently
+ * used entries first. Files bigger than the per-entry limit are never cached.
+ * An entry is checked against the file's last modified date and length on
+ * every hit, and reloaded if either has changed.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class StaticResourceCache {
+    private Map entries;
+    private long maxSize;
+    private long maxEntrySize;
+    private long size;
+    private long hitCount;
+    private long missCount;
+
+    public StaticResourceCache(long maxSize, long maxEntrySize) {
+        this.entries = new LinkedHashMap(16, 0.75f, true);
+        this.maxSize = maxSize;
+        this.maxEntrySize = Math.min(maxEntrySize, maxSize);
+    }
+
+    /**
+     * A strong ETag built from the file's length and last modified date, so
+     * that files served from disk get the same ETag as cached ones
+     */
+    public static String makeETag(long length, long lastModified) {
+        return makeETag(length, lastModified, null);
+    }
+
+    /**
+     * The ETag for a precompressed copy of a file, made from the copy's
+     * length and date, and tagged with its content coding so it can't be
+     * mistaken for the uncompressed file's (null for no coding)
+     */
+    public static String makeETag(long length, long lastModified, String contentCoding) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified)
+                + ((contentCoding == null) ? "" : "-" + contentCoding) + "\"";
+    }
+
+    /**
+     * Returns the cached copy of the file, loading it if it isn't cached or
+     * has changed. Returns null if the file is too big to cache (or changes
+     * while being read), in which case it should be served from disk.
+     */
+    public Entry get(File file, String canonicalPath, String mimeType)
+            throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            Entry entry = (Entry) this.entries.get(canonicalPath);
+            if (entry != null) {
+                if ((entry.lastModified == lastModified)
+                        && (entry.content.length == length)) {
+                    this.hitCount++;
+                    return entry;
+                }
+                remove(canonicalPath);
+            }
+            this.missCount++;
+        }
+        if (length > this.maxEntrySize) {
+            return null;
+        }
+
+        // Read outside the lock, so a slow disk doesn't hold up the hits
+        byte content[] = new byte[(int) length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                int count = in.read(content, read, content.length - read);
+                if (count == -1) {
+                    return null;
+                }
+                read += count;
+            }
+            if (in.read() != -1) {
+                return null;
+            }
+        } finally {
+            in.close();
+        }
+        if (file.lastModified() != lastModified) {
+            return null;
+        }
+
+        Entry entry = new Entry(content, lastModified, mimeType);
+        synchronized (this) {
+            remove(canonicalPath);
+            this.entries.put(canonicalPath, entry);
+            this.size += content.length;
+            for (Iterator i = this.entries.values().iterator();
+                    i.hasNext() && (this.size > this.maxSize); ) {
+                Entry eldest = (Entry) i.next();
+                this.size -= eldest.content.length;
+                i.remove();
+            }
+        }
+        return entry;
+    }
+
+    private void remove(String canonicalPath) {
+        Entry entry = (Entry) this.entries.remove(canonicalPath);
+        if (entry != null) {
+            this.size -= entry.content.length;
+        }
+    }
+
+    public synchronized void clear() {
+        this.entries.clear();
+        this.size = 0;
+    }
+
+    /**
+     * Total bytes of file content held
+     */
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    public synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * One cached file. Shared between requests, so the content must not be
+     * modified.
+     */
+    public static class Entry {
+        private byte content[];
+        private long lastModified;
+        private String lastModifiedHeader;
+        private String eTag;
+        private String mimeType;
+
+        // The file's precompressed copies, looked up by the static resource
+        // servlet. An entry is replaced when the file changes, so these go
+        // with it. Guarded by the entry.
+        Variants variants;
+
+        Entry(byte content[], long lastModified, String mimeType) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.lastModifiedHeader = DateService.formatHttpDate(lastModified);
+            this.eTag = makeETag(content.length, lastModified);
+            this.mimeType = mimeType;
+        }
+
+        public byte[] getContent() {
+            return this.content;
+        }
+
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        public String getLastModifiedHeader() {
+            return this.lastModifiedHeader;
+        }
+
+        public String getETag() {
+            return this.eTag;
+        }
+
+        public String getMimeType() {
+            return this.mimeType;
+        }
+    }
+
+    /**
+     * The precompressed copies (foo.js.gz and foo.js.br) of one file
+     */
+    static class Variants {
+        long sourceLastModified;
+        long checkedAt;
+        File gzip;
+        File brotli;
+    }
+}
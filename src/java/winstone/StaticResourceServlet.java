@@ -9,17 +9,19 @@ package winstone;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.StringTokenizer;
 
 import javax.servlet.ServletConfig;
@@ -42,14 +44,36 @@ public class StaticResourceServlet extends HttpServlet {
     final static String INCLUDE_SERVLET_PATH = "javax.servlet.include.servlet_path";
     final static String CACHED_RESOURCE_DATE_HEADER = "If-Modified-Since";
     final static String LAST_MODIFIED_DATE_HEADER = "Last-Modified";
+    final static String ETAG_HEADER = "ETag";
+    final static String IF_NONE_MATCH_HEADER = "If-None-Match";
     final static String RANGE_HEADER = "Range";
     final static String ACCEPT_RANGES_HEADER = "Accept-Ranges";
     final static String CONTENT_RANGE_HEADER = "Content-Range";
+    final static String CONTENT_LENGTH_HEADER = "Content-Length";
+    final static String IF_RANGE_HEADER = "If-Range";
+    final static String MULTIPART_BYTERANGES = "multipart/byteranges; boundary=";
+    final static String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    final static String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    final static String VARY_HEADER = "Vary";
+    final static long VARIANT_CHECK_INTERVAL = 10000;
+    final static int MAX_VARIANT_ENTRIES = 1024;
     final static String RESOURCE_FILE = "winstone.LocalStrings";
     private DateFormat sdfFileDate = new SimpleDateFormat("dd-MM-yyyy HH:mm");
     private File webRoot;
+    private String canonicalWebRoot;
+    private String canonicalWebInf;
+    private String canonicalMetaInf;
     private String prefix;
     private boolean directoryList;
+    private StaticResourceCache cache;
+    private Random boundaryGenerator = new Random();
+    // Sidecar lookups for files that aren't in the cache (cached files keep
+    // theirs on the cache entry), least recently used dropped first
+    private Map variants = new LinkedHashMap(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > MAX_VARIANT_ENTRIES;
+        }
+    };
 
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
@@ -59,6 +83,31 @@ public class StaticResourceServlet extends HttpServlet {
         this.directoryList = (dirList == null)
                 || dirList.equalsIgnoreCase("true")
                 || dirList.equalsIgnoreCase("yes");
+        try {
+            this.canonicalWebRoot = this.webRoot.getAbsoluteFile().getCanonicalPath();
+            this.canonicalWebInf = new File(this.webRoot, "WEB-INF").getAbsoluteFile().getCanonicalPath();
+            this.canonicalMetaInf = new File(this.webRoot, "META-INF").getAbsoluteFile().getCanonicalPath();
+        } catch (IOException err) {
+            throw new ServletException(err);
+        }
+
+        long cacheSize = parseSize(config.getInitParameter("cacheSize"), 4096);
+        long cacheMaxFileSize = parseSize(config.getInitParameter("cacheMaxFileSize"), 64);
+        if ((cacheSize > 0) && (cacheMaxFileSize > 0))
+            this.cache = new StaticResourceCache(cacheSize * 1024, cacheMaxFileSize * 1024);
+    }
+
+    private static long parseSize(String value, long defaultValue) {
+        return (value == null) ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    public void destroy() {
+        if (this.cache != null)
+            this.cache.clear();
+        synchronized (this.variants) {
+            this.variants.clear();
+        }
+        super.destroy();
     }
 
     public void doPost(HttpServletRequest request, HttpServletResponse response)
@@ -81,7 +130,6 @@ public class StaticResourceServlet extends HttpServlet {
         // URL decode path
         path = WinstoneRequest.decodeURLToken(path);
 
-        long cachedResDate = request.getDateHeader(CACHED_RESOURCE_DATE_HEADER);
         Logger.log(Logger.DEBUG, Launcher.RESOURCES,
                 "StaticResourceServlet.PathRequested", new String[] {
                         getServletConfig().getServletName(), path });
@@ -91,25 +139,29 @@ public class StaticResourceServlet extends HttpServlet {
                 this.webRoot, path);
 
         // Send a 404 if not found
-        if (!res.exists())
+        boolean exists = res.exists();
+        String canonicalPath = exists ? res.getAbsoluteFile().getCanonicalPath() : null;
+        if (!exists)
             response.sendError(HttpServletResponse.SC_NOT_FOUND, Launcher.RESOURCES
                     .getString("StaticResourceServlet.PathNotFound", path));
 
         // Check we are below the webroot
-        else if (!isDescendant(this.webRoot, res, this.webRoot)) {
+        else if (!isDescendant(this.webRoot, this.canonicalWebRoot, res, canonicalPath, this.webRoot)) {
             Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "StaticResourceServlet.OutsideWebroot",
-                    new String[] {res.getCanonicalPath(), this.webRoot.toString()});
+                    new String[] {canonicalPath, this.webRoot.toString()});
             response.sendError(HttpServletResponse.SC_FORBIDDEN, Launcher.RESOURCES
                     .getString("StaticResourceServlet.PathInvalid", path));
         }
 
         // Check we are not below the web-inf
-        else if (!isInclude && !isForward && isDescendant(new File(this.webRoot, "WEB-INF"), res, this.webRoot)) 
+        else if (!isInclude && !isForward && isDescendant(new File(this.webRoot, "WEB-INF"), 
+                this.canonicalWebInf, res, canonicalPath, this.webRoot)) 
             response.sendError(HttpServletResponse.SC_NOT_FOUND, Launcher.RESOURCES
                     .getString("StaticResourceServlet.PathInvalid", path));
 
         // Check we are not below the meta-inf
-        else if (!isInclude && !isForward && isDescendant(new File(this.webRoot, "META-INF"), res, this.webRoot)) 
+        else if (!isInclude && !isForward && isDescendant(new File(this.webRoot, "META-INF"), 
+                this.canonicalMetaInf, res, canonicalPath, this.webRoot)) 
             response.sendError(HttpServletResponse.SC_NOT_FOUND, Launcher.RESOURCES
                     .getString("StaticResourceServlet.PathInvalid", path));
 
@@ -130,33 +182,112 @@ public class StaticResourceServlet extends HttpServlet {
                 response.sendRedirect(this.prefix + path + "/");
         }
 
+        else
+            sendFile(request, response, res, canonicalPath, isInclude);
+    }
+
+    /**
+     * Sends a file, from the cache if it's small enough, answering
+     * conditional requests with a 304 where the client's copy is current,
+     * and range requests with just the parts asked for
+     */
+    private void sendFile(HttpServletRequest request, HttpServletResponse response,
+            File res, String canonicalPath, boolean isInclude) throws IOException {
+        String mimeType = getServletContext().getMimeType(
+                res.getName().toLowerCase());
+
+        StaticResourceCache.Entry cached = (this.cache == null) ? null
+                : this.cache.get(res, canonicalPath, mimeType);
+
+        // Swap in a precompressed copy if there is one the client accepts
+        String contentEncoding = null;
+        StaticResourceCache.Variants variants = isInclude ? null 
+                : getVariants(res, canonicalPath, cached);
+        if (variants != null) {
+            response.setHeader(VARY_HEADER, ACCEPT_ENCODING_HEADER);
+            String acceptEncoding = request.getHeader(ACCEPT_ENCODING_HEADER);
+            float brotliQuality = (variants.brotli == null) ? 0 
+                    : ResponseCompression.getEncodingQuality(acceptEncoding, "br");
+            float gzipQuality = (variants.gzip == null) ? 0 
+                    : ResponseCompression.getEncodingQuality(acceptEncoding, "gzip");
+            if ((brotliQuality > 0) && (brotliQuality >= gzipQuality)) {
+                contentEncoding = "br";
+                res = variants.brotli;
+            } else if (gzipQuality > 0) {
+                contentEncoding = "gzip";
+                res = variants.gzip;
+            }
+            if (contentEncoding != null) {
+                canonicalPath = canonicalPath + "." + contentEncoding;
+                cached = (this.cache == null) ? null
+                        : this.cache.get(res, canonicalPath, mimeType);
+            }
+        }
+
+        long length = (cached != null) ? cached.getContent().length : res.length();
+        long lastModified = (cached != null) ? cached.getLastModified() : res.lastModified();
+        String eTag = ((cached != null) && (contentEncoding == null)) ? cached.getETag()
+                : StaticResourceCache.makeETag(length, lastModified, contentEncoding);
+
+        // Ranges are ignored for includes, or if the If-Range validator is stale
+        List ranges = null;
+        if (!isInclude && isRangeCurrent(request, eTag, lastModified))
+            ranges = ByteRange.parseRanges(request.getHeader(RANGE_HEADER), length);
+
         // Send a 304 if not modified
-        else if (!isInclude && (cachedResDate != -1)
-                && (cachedResDate < (System.currentTimeMillis() / 1000L * 1000L))
-                && (cachedResDate >= (res.lastModified() / 1000L * 1000L))) {
-            String mimeType = getServletContext().getMimeType(
-                    res.getName().toLowerCase());
+        if (!isInclude && isNotModified(request, eTag, lastModified)) {
             if (mimeType != null)
                 response.setContentType(mimeType);
             response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader(ETAG_HEADER, eTag);
             response.setContentLength(0);
             response.flushBuffer();
+            return;
+        }
+
+        // None of the ranges are inside the file
+        if ((ranges != null) && ranges.isEmpty()) {
+            response.setHeader(CONTENT_RANGE_HEADER, "bytes */" + length);
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        OutputStream out = null;
+        Writer outWriter = null;
+        response.setHeader(LAST_MODIFIED_DATE_HEADER, (cached != null) ? 
+                cached.getLastModifiedHeader() : DateService.formatHttpDate(lastModified));
+        response.setHeader(ETAG_HEADER, eTag);
+        response.setHeader(ACCEPT_RANGES_HEADER, "bytes");
+        if (contentEncoding != null)
+            response.setHeader(CONTENT_ENCODING_HEADER, contentEncoding);
+
+        // Write out the resource from memory if not range or is included
+        if ((cached != null) && (ranges == null)) {
+            byte content[] = cached.getContent();
+            if (mimeType != null)
+                response.setContentType(mimeType);
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentLength(content.length);
+            try {
+                response.getOutputStream().write(content);
+            } catch (IllegalStateException err) {
+                response.getWriter().write(new String(content, 
+                        response.getCharacterEncoding()));
+            } catch (IllegalArgumentException err) {
+                response.getWriter().write(new String(content, 
+                        response.getCharacterEncoding()));
+            }
         }
 
         // Write out the resource if not range or is included
-        else if ((request.getHeader(RANGE_HEADER) == null) || isInclude) {
-            String mimeType = getServletContext().getMimeType(
-                    res.getName().toLowerCase());
+        else if (ranges == null) {
             if (mimeType != null)
                 response.setContentType(mimeType);
-            InputStream resStream = new FileInputStream(res);
+            FileInputStream resStream = new FileInputStream(res);
+            length = resStream.getChannel().size();
 
             response.setStatus(HttpServletResponse.SC_OK);
-            response.setContentLength((int) res.length());
-//            response.addHeader(ACCEPT_RANGES_HEADER, "bytes");
-            response.addDateHeader(LAST_MODIFIED_DATE_HEADER, res.lastModified());
-            OutputStream out = null;
-            Writer outWriter = null;
+            response.setHeader(CONTENT_LENGTH_HEADER, "" + length);
             try {
                 out = response.getOutputStream();
             } catch (IllegalStateException err) {
@@ -164,72 +295,190 @@ public class StaticResourceServlet extends HttpServlet {
             } catch (IllegalArgumentException err) {
                 outWriter = response.getWriter();
             }
-            byte buffer[] = new byte[4096];
-            int read = resStream.read(buffer);
-            while (read > 0) {
+            try {
                 if (out != null) {
-                    out.write(buffer, 0, read);
+                    writeRange(out, resStream.getChannel(), 0, length);
                 } else {
-                    outWriter.write(new String(buffer, 0, read, 
-                            response.getCharacterEncoding()));
+                    byte buffer[] = new byte[4096];
+                    int read = resStream.read(buffer);
+                    while (read > 0) {
+                        outWriter.write(new String(buffer, 0, read, 
+                                response.getCharacterEncoding()));
+                        read = resStream.read(buffer);
+                    }
                 }
-                read = resStream.read(buffer);
+            } finally {
+                resStream.close();
             }
-            resStream.close();
-        } else if (request.getHeader(RANGE_HEADER).startsWith("bytes=")) {
-            String mimeType = getServletContext().getMimeType(
-                    res.getName().toLowerCase());
-            if (mimeType != null)
-                response.setContentType(mimeType);
-            InputStream resStream = new FileInputStream(res);
+        }
 
-            List ranges = new ArrayList();
-            StringTokenizer st = new StringTokenizer(request.getHeader(
-                    RANGE_HEADER).substring(6).trim(), ",", false);
-            int totalSent = 0;
-            String rangeText = "";
-            while (st.hasMoreTokens()) {
-                String rangeBlock = st.nextToken();
-                int start = 0;
-                int end = (int) res.length();
-                int delim = rangeBlock.indexOf('-');
-                if (delim != 0)
-                    start = Integer.parseInt(rangeBlock.substring(0, delim)
-                            .trim());
-                if (delim != rangeBlock.length() - 1)
-                    end = Integer.parseInt(rangeBlock.substring(delim + 1)
-                            .trim());
-                totalSent += (end - start);
-                rangeText += "," + start + "-" + end;
-                ranges.add(start + "-" + end);
+        // Send the ranges asked for, seeking to each in turn
+        else {
+            FileInputStream resStream = (cached != null) ? null : new FileInputStream(res);
+            FileChannel channel = (resStream != null) ? resStream.getChannel() : null;
+            try {
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                if (ranges.size() == 1) {
+                    ByteRange range = (ByteRange) ranges.get(0);
+                    if (mimeType != null)
+                        response.setContentType(mimeType);
+                    response.setHeader(CONTENT_RANGE_HEADER, range.getContentRange(length));
+                    response.setHeader(CONTENT_LENGTH_HEADER, "" + range.getLength());
+                    out = response.getOutputStream();
+                    writePart(out, cached, channel, range);
+                } else {
+                    // Work out the part headers first, so we can send a length
+                    String boundary = Long.toHexString(this.boundaryGenerator.nextLong() 
+                            & Long.MAX_VALUE);
+                    byte partHeaders[][] = new byte[ranges.size()][];
+                    long totalLength = 0;
+                    for (int n = 0; n < partHeaders.length; n++) {
+                        ByteRange range = (ByteRange) ranges.get(n);
+                        partHeaders[n] = ("\r\n--" + boundary + "\r\n"
+                                + (mimeType != null ? "Content-Type: " + mimeType + "\r\n" : "")
+                                + "Content-Range: " + range.getContentRange(length)
+                                + "\r\n\r\n").getBytes("8859_1");
+                        totalLength += partHeaders[n].length + range.getLength();
+                    }
+                    byte lastBoundary[] = ("\r\n--" + boundary + "--\r\n").getBytes("8859_1");
+                    totalLength += lastBoundary.length;
+
+                    response.setContentType(MULTIPART_BYTERANGES + boundary);
+                    response.setHeader(CONTENT_LENGTH_HEADER, "" + totalLength);
+                    out = response.getOutputStream();
+                    for (int n = 0; n < partHeaders.length; n++) {
+                        out.write(partHeaders[n]);
+                        writePart(out, cached, channel, (ByteRange) ranges.get(n));
+                    }
+                    out.write(lastBoundary);
+                }
+            } finally {
+                if (resStream != null)
+                    resStream.close();
             }
-            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
-            response.addHeader(CONTENT_RANGE_HEADER, "bytes "
-                    + rangeText.substring(1) + "/" + res.length());
-            response.setContentLength(totalSent);
-
-            response.addHeader(ACCEPT_RANGES_HEADER, "bytes");
-            response.addDateHeader(LAST_MODIFIED_DATE_HEADER, res
-                    .lastModified());
-            OutputStream out = response.getOutputStream();
-            int bytesRead = 0;
-            for (Iterator i = ranges.iterator(); i.hasNext();) {
-                String rangeBlock = (String) i.next();
-                int delim = rangeBlock.indexOf('-');
-                int start = Integer.parseInt(rangeBlock.substring(0, delim));
-                int end = Integer.parseInt(rangeBlock.substring(delim + 1));
-                int read = 0;
-                while ((read != -1) && (bytesRead <= res.length())) {
-                    read = resStream.read();
-                    if ((bytesRead >= start) && (bytesRead < end))
-                        out.write(read);
-                    bytesRead++;
+        }
+    }
+
+    private void writePart(OutputStream out, StaticResourceCache.Entry cached,
+            FileChannel channel, ByteRange range) throws IOException {
+        if (cached != null)
+            out.write(cached.getContent(), (int) range.getStart(), (int) range.getLength());
+        else
+            writeRange(out, channel, range.getStart(), range.getLength());
+    }
+
+    /**
+     * Writes part of a file. Our own stream can have it sent without copying,
+     * others get it read from the position given, without reading up to it.
+     */
+    private void writeRange(OutputStream out, FileChannel channel, long position, 
+            long count) throws IOException {
+        if (out instanceof WinstoneOutputStream) {
+            ((WinstoneOutputStream) out).writeFile(channel, position, count);
+            return;
+        }
+        byte buffer[] = new byte[(int) Math.min(count, 8192)];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        while (count > 0) {
+            wrapped.clear();
+            wrapped.limit((int) Math.min(count, buffer.length));
+            int read = channel.read(wrapped, position);
+            if (read <= 0)
+                break;
+            out.write(buffer, 0, read);
+            position += read;
+            count -= read;
+        }
+    }
+
+    /**
+     * Looks for foo.js.gz and foo.js.br next to foo.js, returning null if
+     * neither exists (or is older than the file). The result is kept on the
+     * file's cache entry if it has one, since that is already checked against
+     * the file, or else in a bounded map. Either way it is rechecked every so
+     * often in case sidecars have been added or removed.
+     */
+    private StaticResourceCache.Variants getVariants(File res, String canonicalPath,
+            StaticResourceCache.Entry cached) {
+        long now = System.currentTimeMillis();
+        StaticResourceCache.Variants found = null;
+        if (cached != null) {
+            synchronized (cached) {
+                found = cached.variants;
+                if ((found == null) || (found.checkedAt + VARIANT_CHECK_INTERVAL < now)) {
+                    found = findVariants(res, cached.getLastModified(), now);
+                    cached.variants = found;
+                }
+            }
+        } else {
+            long lastModified = res.lastModified();
+            synchronized (this.variants) {
+                found = (StaticResourceCache.Variants) this.variants.get(canonicalPath);
+            }
+            if ((found == null) || (found.sourceLastModified != lastModified)
+                    || (found.checkedAt + VARIANT_CHECK_INTERVAL < now)) {
+                found = findVariants(res, lastModified, now);
+                synchronized (this.variants) {
+                    this.variants.put(canonicalPath, found);
                 }
             }
-            resStream.close();
-        } else
-            response
-                    .sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        }
+        return ((found.gzip == null) && (found.brotli == null)) ? null : found;
+    }
+
+    private static StaticResourceCache.Variants findVariants(File res, 
+            long lastModified, long now) {
+        StaticResourceCache.Variants found = new StaticResourceCache.Variants();
+        found.sourceLastModified = lastModified;
+        found.checkedAt = now;
+        found.gzip = findSidecar(res, ".gz", lastModified);
+        found.brotli = findSidecar(res, ".br", lastModified);
+        return found;
+    }
+
+    private static File findSidecar(File res, String extension, long lastModified) {
+        File sidecar = new File(res.getPath() + extension);
+        return (sidecar.isFile() && (sidecar.lastModified() >= lastModified)) 
+                ? sidecar : null;
+    }
+
+    /**
+     * False if an If-Range header names a different version of the file than
+     * this one, in which case the whole file gets sent. Only strong
+     * validators count (rfc 2616, 14.27).
+     */
+    private boolean isRangeCurrent(HttpServletRequest request, String eTag, long lastModified) {
+        String ifRange = request.getHeader(IF_RANGE_HEADER);
+        if (ifRange == null)
+            return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+            return ifRange.equals(eTag);
+        long date = DateService.parseHttpDate(ifRange);
+        return (date != -1) && ((date / 1000L) == (lastModified / 1000L));
+    }
+
+    /**
+     * True if the client's copy is current. If-None-Match wins over
+     * If-Modified-Since when both are sent (rfc 2616, 14.26).
+     */
+    private boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+        String ifNoneMatch = request.getHeader(IF_NONE_MATCH_HEADER);
+        if (ifNoneMatch != null) {
+            StringTokenizer st = new StringTokenizer(ifNoneMatch, ",", false);
+            while (st.hasMoreTokens()) {
+                String candidate = st.nextToken().trim();
+                if (candidate.startsWith("W/"))
+                    candidate = candidate.substring(2);
+                if (candidate.equals("*") || candidate.equals(eTag))
+                    return true;
+            }
+            return false;
+        }
+        long cachedResDate = request.getDateHeader(CACHED_RESOURCE_DATE_HEADER);
+        return (cachedResDate != -1)
+                && (cachedResDate < (System.currentTimeMillis() / 1000L * 1000L))
+                && (cachedResDate >= (lastModified / 1000L * 1000L));
     }
 
     /**
@@ -316,12 +565,24 @@ public class StaticResourceServlet extends HttpServlet {
     }
     
     public static boolean isDescendant(File parent, File child, File commonBase) throws IOException {
+        if (child.equals(parent)) {
+            return true;
+        } else {
+            return isDescendant(parent, parent.getAbsoluteFile().getCanonicalPath(), 
+                    child, child.getAbsoluteFile().getCanonicalPath(), commonBase);
+        }
+    }
+
+    /**
+     * As above, but with the canonical paths already worked out, so each
+     * request only has to resolve its own path once
+     */
+    static boolean isDescendant(File parent, String canonicalParent, File child, 
+            String canonicalChild, File commonBase) {
         if (child.equals(parent)) {
             return true;
         } else {
             // Start by checking canonicals
-            String canonicalParent = parent.getAbsoluteFile().getCanonicalPath();
-            String canonicalChild = child.getAbsoluteFile().getCanonicalPath();
             if (canonicalChild.startsWith(canonicalParent)) {
                 return true;
             }
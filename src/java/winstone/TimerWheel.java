@@ -0,0 +1,365 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A hashed timer wheel for the connection deadlines of every listener (and
+ * the timeouts of suspended async requests). Time is cut into ticks, and each
+ * pending timeout sits in the bucket for the tick it expires on (modulo the
+ * wheel size), in a doubly linked list. A single thread advances the wheel
+ * once per tick and expires the due entries of one bucket.
+ *
+ * Starting and cancelling a timeout never takes a lock, since they happen
+ * around every blocking read and write. They only set the timeout's deadline,
+ * and a timeout that isn't on the wheel yet is put on a queue for the wheel's
+ * thread to link in. The buckets are only touched by the wheel's thread, which
+ * drops cancelled timeouts and moves restarted ones to their new bucket when
+ * it comes across them. So a cancelled timeout stays linked (but harmless)
+ * until its bucket next comes round.
+ *
+ * Timeouts fire up to one tick late. Their tasks run on the wheel's thread,
+ * so they must be quick (eg closing a socket to unblock the thread reading
+ * it). Expiries are counted per kind, and logged by the object pool.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class TimerWheel implements Runnable {
+    public static final int READ = 0;
+    public static final int WRITE = 1;
+    public static final int KEEP_ALIVE = 2;
+    public static final int ASYNC = 3;
+    public static final int KIND_COUNT = 4;
+
+    private static final long DEFAULT_TICK_DURATION = 100;
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    // Deadlines are tick numbers, which start at 1, so these can't clash
+    private static final long IDLE = 0;
+    private static final long EXPIRED = -1;
+
+    private long tickDuration;
+    private Timeout buckets[];
+    private int mask;
+    private volatile long currentTick;
+    private long startTime;
+    private ConcurrentLinkedQueue newTimeouts;
+    private AtomicLongArray expiredCounts;
+    private long expiredCountsLogged[];
+    private Thread thread;
+
+    public TimerWheel() {
+        this(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * The wheel size is rounded up to a power of two, so a bucket is found by
+     * masking the tick number
+     */
+    public TimerWheel(long tickDuration, int wheelSize) {
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickDuration = Math.max(1, tickDuration);
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.newTimeouts = new ConcurrentLinkedQueue();
+        this.expiredCounts = new AtomicLongArray(KIND_COUNT);
+        this.expiredCountsLogged = new long[KIND_COUNT];
+        this.startTime = System.nanoTime();
+        this.thread = new Thread(this, "WinstoneTimerWheel");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Makes a timeout that runs the task when it expires. It does nothing
+     * until started.
+     */
+    public Timeout newTimeout(int kind, Runnable task) {
+        return new Timeout(kind, task);
+    }
+
+    public void destroy() {
+        Thread thread = this.thread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public void run() {
+        boolean interrupted = false;
+        while (!interrupted) {
+            long elapsed = (System.nanoTime() - this.startTime) / 1000000L;
+            List expired = advance(elapsed / this.tickDuration);
+            if (expired != null) {
+                for (int n = 0; n < expired.size(); n++) {
+                    Timeout timeout = (Timeout) expired.get(n);
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable err) {
+                        Logger.log(Logger.ERROR, Launcher.RESOURCES,
+                                "TimerWheel.TaskError", err);
+                    }
+                }
+            }
+            try {
+                Thread.sleep(this.tickDuration - (elapsed % this.tickDuration));
+            } catch (InterruptedException err) {
+                interrupted = true;
+            }
+        }
+        this.thread = null;
+    }
+
+    /**
+     * Links in the newly started timeouts, then expires everything due up to
+     * and including the tick supplied, and returns the expired timeouts (or
+     * null if there were none). The lock only keeps getPendingCount() out.
+     */
+    private synchronized List advance(long tick) {
+        linkNewTimeouts();
+        List expired = null;
+        while (this.currentTick < tick) {
+            long current = this.currentTick + 1;
+            this.currentTick = current;
+            int bucket = (int) (current & this.mask);
+            Timeout timeout = this.buckets[bucket];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (expire(timeout, current)) {
+                    this.expiredCounts.incrementAndGet(timeout.kind);
+                    if (expired == null) {
+                        expired = new ArrayList();
+                    }
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+        return expired;
+    }
+
+    private void linkNewTimeouts() {
+        for (Timeout timeout = (Timeout) this.newTimeouts.poll(); timeout != null;
+                timeout = (Timeout) this.newTimeouts.poll()) {
+            if (timeout.linked) {
+                unlink(timeout);
+            }
+            relink(timeout);
+        }
+    }
+
+    /**
+     * Deals with a linked timeout whose bucket has come round: expires it if
+     * it's due, moves it if it has been restarted for a different tick, and
+     * drops it if it has been cancelled. Returns true if it expired.
+     */
+    private boolean expire(Timeout timeout, long current) {
+        while (true) {
+            long deadline = timeout.deadline.get();
+            if (deadline <= IDLE) {
+                unlink(timeout);
+                relink(timeout);
+                return false;
+            } else if (deadline > current) {
+                if (deadline != timeout.linkedTick) {
+                    unlink(timeout);
+                    link(timeout, deadline);
+                }
+                return false;
+            } else if (timeout.deadline.compareAndSet(deadline, EXPIRED)) {
+                unlink(timeout);
+                relink(timeout);
+                return true;
+            }
+            // Restarted or cancelled while we looked, so look again
+        }
+    }
+
+    /**
+     * Takes an unlinked timeout off the wheel, unless it has been started
+     * again in the meantime, in which case it is linked for its new deadline
+     */
+    private void relink(Timeout timeout) {
+        long deadline = timeout.deadline.get();
+        if (deadline > IDLE) {
+            link(timeout, deadline);
+            return;
+        }
+        timeout.scheduled.set(false);
+
+        // A start() that saw it still scheduled left it to us to link
+        deadline = timeout.deadline.get();
+        if ((deadline > IDLE) && timeout.scheduled.compareAndSet(false, true)) {
+            link(timeout, deadline);
+        }
+    }
+
+    /**
+     * Links the timeout into the bucket for its deadline (or the next tick,
+     * if that has passed)
+     */
+    private void link(Timeout timeout, long deadline) {
+        long tick = Math.max(deadline, this.currentTick + 1);
+        int bucket = (int) (tick & this.mask);
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = this.buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        this.buckets[bucket] = timeout;
+        timeout.linked = true;
+        timeout.linkedTick = tick;
+
+        // A start() for a sooner tick that didn't see linkedTick yet leaves
+        // it to us to move
+        long latest = timeout.deadline.get();
+        if ((latest > IDLE) && (Math.max(latest, this.currentTick + 1) < tick)) {
+            unlink(timeout);
+            link(timeout, latest);
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev == null) {
+            this.buckets[timeout.bucket] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.linked = false;
+        timeout.linkedTick = 0;
+    }
+
+    /**
+     * Logs the expiries of each kind since the last call, if there were any.
+     * Called periodically by the object pool.
+     */
+    public void logExpiries() {
+        String counts[] = new String[KIND_COUNT * 2];
+        boolean changed = false;
+        for (int n = 0; n < KIND_COUNT; n++) {
+            long count = this.expiredCounts.get(n);
+            counts[n * 2] = "" + (count - this.expiredCountsLogged[n]);
+            counts[n * 2 + 1] = "" + count;
+            changed |= (count != this.expiredCountsLogged[n]);
+            this.expiredCountsLogged[n] = count;
+        }
+        if (changed) {
+            Logger.log(Logger.DEBUG, Launcher.RESOURCES, "TimerWheel.Expiries", counts);
+        }
+    }
+
+    /**
+     * Total timeouts of this kind (READ, WRITE, KEEP_ALIVE or ASYNC) that have
+     * expired
+     */
+    public long getExpiredCount(int kind) {
+        return this.expiredCounts.get(kind);
+    }
+
+    /**
+     * Timeouts started and not yet expired or cancelled. This walks the whole
+     * wheel, so it's for tests and diagnostics only.
+     */
+    public synchronized int getPendingCount() {
+        Set pending = new HashSet();
+        for (int n = 0; n < this.buckets.length; n++) {
+            for (Timeout timeout = this.buckets[n]; timeout != null; timeout = timeout.next) {
+                if (timeout.deadline.get() > IDLE) {
+                    pending.add(timeout);
+                }
+            }
+        }
+        for (Iterator i = this.newTimeouts.iterator(); i.hasNext(); ) {
+            Timeout timeout = (Timeout) i.next();
+            if (timeout.deadline.get() > IDLE) {
+                pending.add(timeout);
+            }
+        }
+        return pending.size();
+    }
+
+    /**
+     * A deadline that can be started and cancelled any number of times. Only
+     * the most recent start counts.
+     */
+    public class Timeout {
+        private int kind;
+        private Runnable task;
+        private AtomicLong deadline;
+        private AtomicBoolean scheduled;
+
+        // Only changed by the wheel's thread
+        private boolean linked;
+        private volatile long linkedTick;
+        private int bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(int kind, Runnable task) {
+            this.kind = kind;
+            this.task = task;
+            this.deadline = new AtomicLong(IDLE);
+            this.scheduled = new AtomicBoolean(false);
+        }
+
+        public int getKind() {
+            return this.kind;
+        }
+
+        /**
+         * Starts (or restarts) the timeout, to expire after the delay in
+         * milliseconds
+         */
+        public void start(long delay) {
+            long ticks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+            long tick = currentTick + ticks;
+            this.deadline.set(tick);
+            if (!this.scheduled.get() && this.scheduled.compareAndSet(false, true)) {
+                newTimeouts.add(this);
+            } else if (tick < this.linkedTick) {
+                // Sooner than the bucket it's in, so it has to be moved now
+                newTimeouts.add(this);
+            }
+        }
+
+        /**
+         * Stops the timeout if it hasn't expired yet
+         */
+        public void cancel() {
+            long deadline = this.deadline.get();
+            while ((deadline > IDLE) && !this.deadline.compareAndSet(deadline, IDLE)) {
+                deadline = this.deadline.get();
+            }
+        }
+
+        /**
+         * True if the timeout expired since it was last started
+         */
+        public boolean isExpired() {
+            return this.deadline.get() == EXPIRED;
+        }
+    }
+}
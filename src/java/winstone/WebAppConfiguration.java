@@ -158,6 +158,8 @@ public class WebAppConfiguration implements ServletContext, Comparator {
     private String errorServletName;
     private JNDIManager jndiManager;
     private AccessLogger accessLogger;
+    private ActiveRequests activeRequests = new ActiveRequests();
+    private ResponseCompression responseCompression;
     private Map filterMatchCache;
     private boolean useSavedSessions;
     
@@ -803,12 +805,17 @@ public class WebAppConfiguration implements ServletContext, Comparator {
         if (this.errorServletName == null)
             this.errorServletName = ERROR_SERVLET_NAME;
 
+        // Gzip settings, which the webapp's context params can override
+        this.responseCompression = new ResponseCompression(startupArgs, this.initParameters);
+
         // If we don't have an instance of the default servlet, mount the inbuilt one    
         boolean useDirLists = booleanArg(startupArgs, "directoryListings", true);    
         Map staticParams = new Hashtable();
         staticParams.put("webRoot", webRoot);
         staticParams.put("prefix", this.prefix);
         staticParams.put("directoryList", "" + useDirLists);
+        staticParams.put("cacheSize", "" + intArg(startupArgs, "staticCacheSize", 4096));
+        staticParams.put("cacheMaxFileSize", "" + intArg(startupArgs, "staticCacheMaxFileSize", 64));
         
         if (this.servletInstances.get(this.defaultServletName) == null) {
             ServletConfiguration defaultServlet = new ServletConfiguration(
@@ -1058,6 +1065,20 @@ public class WebAppConfiguration implements ServletContext, Comparator {
         return this.contextName;
     }
 
+    /**
+     * When to gzip this webapp's responses
+     */
+    public ResponseCompression getResponseCompression() {
+        return this.responseCompression;
+    }
+
+    /**
+     * The requests in progress on this webapp
+     */
+    public ActiveRequests getActiveRequests() {
+        return this.activeRequests;
+    }
+
     public Class[] getErrorPageExceptions() {
         return this.errorPagesByExceptionKeysSorted;
     }
@@ -1349,6 +1370,98 @@ public class WebAppConfiguration implements ServletContext, Comparator {
         this.sessions.put(sessionId, session);
     }
 
+    /**
+     * Copies the sessions of the instance this one is replacing on a reload
+     * (see WinstoneSession.copyTo()), so that requests for them still find
+     * them once this instance is swapped in. The copies aren't activated
+     * until takeOverSessions(). Returns the change count of each old session
+     * that was copied, keyed by id, leaving out any a request was using at
+     * the time, since it may still change them.
+     */
+    public Map copySessions(WebAppConfiguration oldWebApp) {
+        Map copied = new HashMap();
+        Object oldSessions[] = oldWebApp.sessions.values().toArray();
+        for (int n = 0; n < oldSessions.length; n++) {
+            WinstoneSession session = (WinstoneSession) oldSessions[n];
+            try {
+                boolean unused = session.isUnusedByRequests();
+                int changeCount = session.getChangeCount();
+                WinstoneSession copy = session.copyTo(this);
+                this.sessions.put(copy.getId(), copy);
+                if (unused) {
+                    copied.put(copy.getId(), new Integer(changeCount));
+                }
+            } catch (Throwable err) {
+                Logger.log(Logger.WARNING, Launcher.RESOURCES,
+                        "WebAppConfig.SessionNotMigrated", session.getId(), err);
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Finishes moving the old instance's sessions over, once it has drained.
+     * Sessions created or changed there since copySessions() are copied
+     * again, unless a request here has already used the earlier copy, and
+     * copies of sessions invalidated there are dropped. Each old session is
+     * passivated before its copy is activated, and passivating takes it out
+     * of the old instance, so destroying that doesn't invalidate it.
+     */
+    public void takeOverSessions(WebAppConfiguration oldWebApp, Map copied) {
+        Object earlyCopies[] = this.sessions.values().toArray();
+        for (int n = 0; n < earlyCopies.length; n++) {
+            WinstoneSession copy = (WinstoneSession) earlyCopies[n];
+            if (oldWebApp.sessions.get(copy.getId()) != null) {
+                continue;
+            } else if (isUsedSinceCopy(copy)) {
+                copy.activate(this);
+            } else {
+                this.sessions.remove(copy.getId());
+            }
+        }
+
+        int migratedCount = 0;
+        Object oldSessions[] = oldWebApp.sessions.values().toArray();
+        for (int n = 0; n < oldSessions.length; n++) {
+            WinstoneSession session = (WinstoneSession) oldSessions[n];
+            WinstoneSession copy = (WinstoneSession) this.sessions.get(session.getId());
+            Integer copiedChangeCount = (Integer) copied.get(session.getId());
+            boolean stale = (copiedChangeCount == null)
+                    || (copiedChangeCount.intValue() != session.getChangeCount());
+            if ((copy == null) || (stale && !isUsedSinceCopy(copy))) {
+                try {
+                    WinstoneSession newCopy = session.copyTo(this);
+                    if (copy != null) {
+                        newCopy.setLastAccessedDate(Math.max(
+                                newCopy.getLastAccessedTime(), copy.getLastAccessedTime()));
+                    }
+                    copy = newCopy;
+                    this.sessions.put(copy.getId(), copy);
+                } catch (Throwable err) {
+                    Logger.log(Logger.WARNING, Launcher.RESOURCES,
+                            "WebAppConfig.SessionNotMigrated", session.getId(), err);
+                    if (copy == null) {
+                        continue;
+                    }
+                }
+            } else if (stale) {
+                Logger.log(Logger.WARNING, Launcher.RESOURCES,
+                        "WebAppConfig.SessionChangedTwice", session.getId());
+            }
+            session.passivate();
+            copy.activate(this);
+            migratedCount++;
+        }
+        if (oldSessions.length > 0) {
+            Logger.log(Logger.DEBUG, Launcher.RESOURCES, "WebAppConfig.SessionsMigrated",
+                    new String[] { "" + migratedCount, "" + oldSessions.length });
+        }
+    }
+
+    private static boolean isUsedSinceCopy(WinstoneSession copy) {
+        return !copy.isUnusedByRequests() || (copy.getChangeCount() > 0);
+    }
+
     public void invalidateExpiredSessions() {
         Object allSessions[] = this.sessions.values().toArray();
         int expiredCount = 0;
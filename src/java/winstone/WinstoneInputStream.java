@@ -7,7 +7,7 @@
 package winstone;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -18,11 +18,21 @@ import java.io.InputStream;
  * @version $Id$
  */
 public class WinstoneInputStream extends javax.servlet.ServletInputStream {
-    final int BUFFER_SIZE = 4096;
+    final int LINE_BUFFER_SIZE = 256;
+    final int MAX_CHUNK_LINE = 1024;
     private InputStream inData;
-    private Integer contentLength;
+    private int contentLength;
     private int readSoFar;
-    private ByteArrayOutputStream dump;
+
+    // Chunked decoding state: bytes left in the current chunk, and whether
+    // the last (zero size) chunk has been read
+    private boolean chunked;
+    private int chunkRemaining;
+    private boolean firstChunk;
+    private boolean lastChunk;
+
+    // Set while the request is in async mode
+    private AsyncIo asyncIo;
     
     /**
      * Constructor
@@ -30,7 +40,7 @@ public class WinstoneInputStream extends javax.servlet.ServletInputStream {
     public WinstoneInputStream(InputStream inData) {
         super();
         this.inData = inData;
-        this.dump = new ByteArrayOutputStream();
+        this.contentLength = -1;
     }
 
     public WinstoneInputStream(byte inData[]) {
@@ -42,45 +52,294 @@ public class WinstoneInputStream extends javax.servlet.ServletInputStream {
     }
 
     public void setContentLength(int length) {
-        this.contentLength = new Integer(length);
+        this.contentLength = length;
         this.readSoFar = 0;
     }
 
+    /**
+     * Switches on chunked transfer-encoding decoding for the request body
+     */
+    public void setChunked() {
+        this.chunked = true;
+        this.chunkRemaining = 0;
+        this.firstChunk = true;
+        this.lastChunk = false;
+        this.contentLength = -1;
+    }
+
+    public boolean isChunked() {
+        return this.chunked;
+    }
+
+    void setAsyncIo(AsyncIo asyncIo) {
+        this.asyncIo = asyncIo;
+    }
+
+    /**
+     * Switches to non-blocking reads, with the listener called back as the
+     * body arrives. Only allowed once the request is in async mode.
+     */
+    public void setReadListener(ReadListener listener) {
+        if (this.asyncIo == null) {
+            throw new IllegalStateException(Launcher.RESOURCES.getString(
+                    "AsyncContext.NotStarted"));
+        }
+        this.asyncIo.setReadListener(listener);
+    }
+
+    /**
+     * True if a read won't block. In non-blocking mode, reading when this is
+     * false is an error, and the read listener is called back once it isn't.
+     */
+    public boolean isReady() {
+        return (this.asyncIo == null) || this.asyncIo.isReadReady();
+    }
+
+    /**
+     * True once the whole request body has been read
+     */
+    public boolean isFinished() {
+        if (this.chunked) {
+            return this.lastChunk;
+        } else if (this.contentLength == -1) {
+            return false;
+        } else {
+            return this.readSoFar >= this.contentLength;
+        }
+    }
+
+    /**
+     * True if the next read can be answered from the bytes already in the
+     * connection's buffer (or the body is finished). For chunked bodies this
+     * includes the next chunk's size line, and the trailer after the last
+     * chunk.
+     */
+    boolean isReadBuffered() {
+        if (isFinished()) {
+            return true;
+        }
+        ConnectionInputBuffer buffer = (ConnectionInputBuffer) this.inData;
+        if (!this.chunked || (this.chunkRemaining > 0)) {
+            return buffer.getBufferedCount() > 0;
+        }
+
+        byte buf[] = buffer.getBuffer();
+        int limit = buffer.getLimit();
+        int n = buffer.getPosition();
+        if (!this.firstChunk) {
+            n = nextLine(buf, n, limit);
+        }
+        int sizeStart = n;
+        n = nextLine(buf, n, limit);
+        if ((n == -1) || !isLastChunkSize(buf, sizeStart, n)) {
+            return n != -1;
+        }
+        // Last chunk: the trailer runs up to a blank line
+        while (n != -1) {
+            int lineStart = n;
+            n = nextLine(buf, n, limit);
+            if ((n == lineStart + 1) || ((n == lineStart + 2) && (buf[lineStart] == '\r'))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index just past the line starting at the index supplied, or
+     * -1 if the line isn't complete (or the start is -1)
+     */
+    private static int nextLine(byte buf[], int start, int limit) {
+        if (start == -1) {
+            return -1;
+        }
+        for (int n = start; n < limit; n++) {
+            if (buf[n] == '\n') {
+                return n + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isLastChunkSize(byte buf[], int start, int end) {
+        boolean digits = false;
+        for (int n = start; n < end; n++) {
+            if (buf[n] == '0') {
+                digits = true;
+            } else if ((buf[n] == ';') || (buf[n] == '\r') || (buf[n] == '\n')) {
+                break;
+            } else if ((buf[n] != ' ') && (buf[n] != '\t')) {
+                return false;
+            }
+        }
+        return digits;
+    }
+
+    /**
+     * In non-blocking mode, reads are only allowed if they won't block
+     */
+    private void checkReady() {
+        if ((this.asyncIo != null) && this.asyncIo.isNonBlocking()
+                && !this.asyncIo.isReadReady()) {
+            throw new IllegalStateException(Launcher.RESOURCES.getString(
+                    "WinstoneInputStream.NotReady"));
+        }
+    }
+
     public int read() throws IOException {
-        if (this.contentLength == null) {
+        checkReady();
+        if (this.chunked) {
+            if (!nextChunk()) {
+                return -1;
+            }
             int data = this.inData.read();
-            this.dump.write(data);
-//            System.out.println("Char: " + (char) data);
+            if (data != -1) {
+                this.chunkRemaining--;
+            }
             return data;
-        } else if (this.contentLength.intValue() > this.readSoFar) {
-            this.readSoFar++;
+        } else if (this.contentLength == -1) {
+            return this.inData.read();
+        } else if (this.contentLength > this.readSoFar) {
             int data = this.inData.read();
-            this.dump.write(data);
-//            System.out.println("Char: " + (char) data);
+            if (data != -1) {
+                this.readSoFar++;
+            }
             return data;
         } else
             return -1;
     }
 
+    /**
+     * Bulk read from the underlying (buffered) stream, never reading past
+     * the end of the request body.
+     */
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        checkReady();
+        if (this.chunked) {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int count = this.inData.read(b, off, Math.min(len, this.chunkRemaining));
+            if (count > 0) {
+                this.chunkRemaining -= count;
+            }
+            return count;
+        } else if (this.contentLength != -1) {
+            int remaining = this.contentLength - this.readSoFar;
+            if (remaining <= 0) {
+                return -1;
+            }
+            len = Math.min(len, remaining);
+        }
+        int count = this.inData.read(b, off, len);
+        if ((count > 0) && (this.contentLength != -1)) {
+            this.readSoFar += count;
+        }
+        return count;
+    }
+
+    /**
+     * Makes sure there are bytes left in the current chunk, reading the next
+     * chunk's size line if needed. Returns false once the last chunk (and
+     * any trailer lines after it) has been read.
+     */
+    private boolean nextChunk() throws IOException {
+        if (this.lastChunk) {
+            return false;
+        } else if (this.chunkRemaining > 0) {
+            return true;
+        }
+
+        // Skip the CRLF that ends the previous chunk's data
+        if (!this.firstChunk) {
+            readChunkLine();
+        }
+        this.firstChunk = false;
+
+        String sizeLine = readChunkLine();
+        int semicolon = sizeLine.indexOf(';');
+        if (semicolon != -1) {
+            sizeLine = sizeLine.substring(0, semicolon);
+        }
+        try {
+            this.chunkRemaining = Integer.parseInt(sizeLine.trim(), 16);
+        } catch (NumberFormatException err) {
+            throw new IOException(Launcher.RESOURCES.getString(
+                    "WinstoneInputStream.BadChunkSize", sizeLine));
+        }
+        if (this.chunkRemaining < 0) {
+            throw new IOException(Launcher.RESOURCES.getString(
+                    "WinstoneInputStream.BadChunkSize", sizeLine));
+        } else if (this.chunkRemaining == 0) {
+            // Last chunk: skip any trailer lines up to the blank line
+            while (readChunkLine().length() > 0)
+                ;
+            this.lastChunk = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a chunk size or trailer line (without the line end)
+     */
+    private String readChunkLine() throws IOException {
+        StringBuffer line = new StringBuffer();
+        int data = this.inData.read();
+        while ((data != -1) && (data != '\n')) {
+            if (data != '\r') {
+                if (line.length() >= MAX_CHUNK_LINE) {
+                    throw new IOException(Launcher.RESOURCES.getString(
+                            "WinstoneInputStream.BadChunkSize", line.toString()));
+                }
+                line.append((char) data);
+            }
+            data = this.inData.read();
+        }
+        if (data == -1) {
+            throw new EOFException(Launcher.RESOURCES.getString(
+                    "WinstoneInputStream.EndOfStream"));
+        }
+        return line.toString();
+    }
+
     public void finishRequest() {
-        // this.inData = null;
-        // byte content[] = this.dump.toByteArray();
-        // com.rickknowles.winstone.ajp13.Ajp13Listener.packetDump(content,
-        // content.length);
     }
 
     public int available() throws IOException {
-        return this.inData.available();
+        int available = this.inData.available();
+        if (this.chunked) {
+            return Math.min(available, this.chunkRemaining);
+        } else if (this.contentLength == -1) {
+            return available;
+        } else {
+            return Math.min(available, this.contentLength - this.readSoFar);
+        }
     }
 
     /**
      * Wrapper for the servletInputStream's readline method
      */
     public byte[] readLine() throws IOException {
-        // System.out.println("ReadLine()");
-        byte buffer[] = new byte[BUFFER_SIZE];
-        int charsRead = super.readLine(buffer, 0, BUFFER_SIZE);
-        if (charsRead == -1) {
+        byte buffer[] = new byte[LINE_BUFFER_SIZE];
+        int charsRead = 0;
+        int data = read();
+        while (data != -1) {
+            if (charsRead == buffer.length) {
+                byte newBuffer[] = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, newBuffer, 0, charsRead);
+                buffer = newBuffer;
+            }
+            buffer[charsRead++] = (byte) data;
+            if (data == '\n') {
+                break;
+            }
+            data = read();
+        }
+        if (charsRead == 0) {
             Logger.log(Logger.DEBUG, Launcher.RESOURCES,
                     "WinstoneInputStream.EndOfStream");
             return new byte[0];
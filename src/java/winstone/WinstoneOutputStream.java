@@ -9,6 +9,8 @@ package winstone;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.Stack;
 
@@ -23,18 +25,27 @@ import javax.servlet.http.Cookie;
 public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
     private static final int DEFAULT_BUFFER_SIZE = 8192;
     private static final byte[] CR_LF = "\r\n".getBytes();
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
+    private static final String HTTP11_STATUS_LINES[] = new String[600];
     protected OutputStream outStream;
     protected int bufferSize;
     protected int bufferPosition;
-    protected int bytesCommitted;
-    protected ByteArrayOutputStream buffer;
+    protected long bytesCommitted;
+    protected ResponseBuffer buffer;
+    protected ResponseBuffer commitBuffer;
     protected boolean committed;
     protected boolean bodyOnly;
     protected WinstoneResponse owner;
     protected boolean disregardMode = false;
     protected boolean closed = false;
     protected Stack includeByteStreams;
-    private int contentLengthFromHeader = -1;
+    private long contentLengthFromHeader = -1;
+    private boolean chunked;
+    private AsyncIo asyncIo;
+    private ConnectionTimeouts connectionTimeouts;
+    private GzipEncoder encoder;
+    private ResponseBuffer encodedBuffer;
+    private boolean closing;
     
     /**
      * Constructor
@@ -45,13 +56,63 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
         this.bufferSize = DEFAULT_BUFFER_SIZE;
         this.committed = false;
         // this.headersWritten = false;
-        this.buffer = new ByteArrayOutputStream();
+        this.buffer = new ResponseBuffer();
+    }
+
+    /**
+     * Supplies the buffer the response head is built in (normally the request
+     * handler's, so it is reused between requests)
+     */
+    public void setCommitBuffer(ResponseBuffer commitBuffer) {
+        this.commitBuffer = commitBuffer;
     }
 
     public void setResponse(WinstoneResponse response) {
         this.owner = response;
     }
 
+    public OutputStream getRawOutputStream() {
+        return this.outStream;
+    }
+
+    void setRawOutputStream(OutputStream outStream) {
+        this.outStream = outStream;
+    }
+
+    void setAsyncIo(AsyncIo asyncIo) {
+        this.asyncIo = asyncIo;
+    }
+
+    /**
+     * Supplied by listeners whose sockets can take file regions directly
+     * (see writeFile()). Others leave it unset, and files are copied.
+     */
+    public void setConnectionTimeouts(ConnectionTimeouts connectionTimeouts) {
+        this.connectionTimeouts = connectionTimeouts;
+    }
+
+    /**
+     * Switches to non-blocking writes, with the listener called back when
+     * the client can take more. Only allowed once the request is in async
+     * mode.
+     */
+    public void setWriteListener(WriteListener listener) {
+        if (this.asyncIo == null) {
+            throw new IllegalStateException(Launcher.RESOURCES.getString(
+                    "AsyncContext.NotStarted"));
+        }
+        this.asyncIo.setWriteListener(listener);
+    }
+
+    /**
+     * True if a write won't block. In non-blocking mode, writes made while
+     * this is false wait in memory, and the write listener is called back
+     * once they have been sent.
+     */
+    public boolean isReady() {
+        return (this.asyncIo == null) || this.asyncIo.isWriteReady();
+    }
+
     public int getBufferSize() {
         return this.bufferSize;
     }
@@ -68,11 +129,68 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
         return this.committed;
     }
 
-    public int getOutputStreamLength() {
+    /**
+     * Writes part of a file to the response. Where the connection allows it
+     * (plain http, blocking mode, no chunking or include buffering), this
+     * commits the headers and anything buffered, then has the OS send the
+     * file straight to the socket. Otherwise it is copied through the
+     * buffer like any other write.
+     */
+    public synchronized void writeFile(FileChannel file, long position, long count)
+            throws IOException {
+        if (this.disregardMode || this.closed) {
+            return;
+        } else if ((this.contentLengthFromHeader != -1) && 
+                (this.bytesCommitted >= this.contentLengthFromHeader)) {
+            return;
+        }
+        // Small files that fit in the buffer are cheaper to copy
+        if (this.bodyOnly || isIncluding() || (this.asyncIo != null)
+                || (this.connectionTimeouts == null)
+                || !this.connectionTimeouts.canTransferFiles()
+                || (!this.committed && (this.bufferPosition + count < this.bufferSize))) {
+            copyFile(file, position, count);
+            return;
+        }
+        // Committing sends the headers, and tells us if it's chunked
+        if (!this.committed || (this.bufferPosition > 0)) {
+            commit();
+        }
+        if (this.chunked || (this.encoder != null)) {
+            copyFile(file, position, count);
+            return;
+        }
+        if (this.contentLengthFromHeader != -1) {
+            count = Math.min(count, this.contentLengthFromHeader - this.bytesCommitted);
+        }
+        long sent = this.connectionTimeouts.transferFile(file, position, count);
+        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
+                "WinstoneOutputStream.TransferredBytes", "" + sent);
+        this.bytesCommitted += sent;
+    }
+
+    private void copyFile(FileChannel file, long position, long count)
+            throws IOException {
+        byte buffer[] = new byte[(int) Math.min(count, DEFAULT_BUFFER_SIZE)];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        while (count > 0) {
+            wrapped.clear();
+            wrapped.limit((int) Math.min(count, buffer.length));
+            int read = file.read(wrapped, position);
+            if (read <= 0) {
+                break;
+            }
+            write(buffer, 0, read);
+            position += read;
+            count -= read;
+        }
+    }
+
+    public long getOutputStreamLength() {
         return this.bytesCommitted + this.bufferPosition;
     }
 
-    public int getBytesCommitted() {
+    public long getBytesCommitted() {
         return this.bytesCommitted;
     }
     
@@ -136,62 +254,91 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
         }
     }
 
+    /**
+     * Sends the buffered body bytes. The first commit also sends the status
+     * line and headers: these are built together with the body bytes (and
+     * the chunk header if chunked) in the commit buffer, so the whole lot
+     * goes to the socket in a single write. When the stream is being closed,
+     * the terminating chunk is added to the same write. If the body is being
+     * gzipped, the buffered bytes are compressed first.
+     */
     public void commit() throws IOException {
         this.buffer.flush();
+        if (this.commitBuffer == null) {
+            this.commitBuffer = new ResponseBuffer();
+        }
+        ResponseBuffer out = this.commitBuffer;
+        out.reset();
 
         // If we haven't written the headers yet, write them out
         if (!this.committed && !this.bodyOnly) {
+            startCompression();
             this.owner.validateHeaders();
             this.committed = true;
-            String contentLengthHeader = this.owner.getHeader(WinstoneResponse.CONTENT_LENGTH_HEADER);
+            String contentLengthHeader = this.owner.getHeaders().get(ResponseHeaders.CONTENT_LENGTH);
             if (contentLengthHeader != null) {
-                this.contentLengthFromHeader = Integer.parseInt(contentLengthHeader);
+                this.contentLengthFromHeader = Long.parseLong(contentLengthHeader);
             }
+            this.chunked = this.owner.isChunked();
 
             Logger.log(Logger.DEBUG, Launcher.RESOURCES, "WinstoneOutputStream.CommittingOutputStream");
             
-            int statusCode = this.owner.getStatus();
-            String reason = Launcher.RESOURCES.getString("WinstoneOutputStream.reasonPhrase." + statusCode);
-            String statusLine = this.owner.getProtocol() + " " + statusCode + " " + 
-                    (reason == null ? "No reason" : reason);
-            this.outStream.write(statusLine.getBytes("8859_1"));
-            this.outStream.write(CR_LF);
+            String statusLine = getStatusLine(this.owner.getProtocol(), this.owner.getStatus());
+            out.writeLatin1(statusLine);
+            out.write(CR_LF);
             Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                     "WinstoneOutputStream.ResponseStatus", statusLine);
 
             // Write headers and cookies
-            for (Iterator i = this.owner.getHeaders().iterator(); i.hasNext();) {
-                String header = (String) i.next();
-                this.outStream.write(header.getBytes("8859_1"));
-                this.outStream.write(CR_LF);
-                Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
-                        "WinstoneOutputStream.Header", header);
+            ResponseHeaders headers = this.owner.getHeaders();
+            headers.writeTo(out);
+            if (Logger.isLogging(Logger.FULL_DEBUG)) {
+                for (int n = 0; n < headers.getEntryCount(); n++) {
+                    if (headers.getValue(n) != null) {
+                        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "WinstoneOutputStream.Header",
+                                headers.getName(n) + ": " + headers.getValue(n));
+                    }
+                }
             }
 
-            if (!this.owner.getHeaders().isEmpty()) {
+            if (!headers.isEmpty()) {
                 for (Iterator i = this.owner.getCookies().iterator(); i.hasNext();) {
                     Cookie cookie = (Cookie) i.next();
                     String cookieText = this.owner.writeCookie(cookie);
-                    this.outStream.write(cookieText.getBytes("8859_1"));
-                    this.outStream.write(CR_LF);
+                    out.writeLatin1(cookieText);
+                    out.write(CR_LF);
                     Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                             "WinstoneOutputStream.Header", cookieText);
                 }
             }
-            this.outStream.write(CR_LF);
-            this.outStream.flush();
-            // Logger.log(Logger.FULL_DEBUG,
-            // Launcher.RESOURCES.getString("HttpProtocol.OutHeaders") + out.toString());
-        }
-        byte content[] = this.buffer.toByteArray();
-//        winstone.ajp13.Ajp13Listener.packetDump(content, content.length);
-//        this.buffer.writeTo(this.outStream);
-        int commitLength = content.length;
+            out.write(CR_LF);
+        }
+        ResponseBuffer body = (this.encoder == null) ? this.buffer : encode(this.closing);
+        int commitLength = body.size();
         if (this.contentLengthFromHeader != -1) {
-            commitLength = Math.min(this.contentLengthFromHeader - this.bytesCommitted, content.length);
+            commitLength = (int) Math.min(this.contentLengthFromHeader - this.bytesCommitted, commitLength);
         }
-        if (commitLength > 0) {
-            this.outStream.write(content, 0, commitLength);
+        if ((commitLength > 0) && this.chunked) {
+            out.writeLatin1(Integer.toHexString(commitLength));
+            out.write(CR_LF);
+            body.writeTo(out, commitLength);
+            out.write(CR_LF);
+        } else if (out.size() == 0) {
+            // Nothing to prepend, so skip the copy
+            if (commitLength > 0) {
+                body.writeTo(this.outStream, commitLength);
+            }
+        } else if (commitLength > 0) {
+            body.writeTo(out, commitLength);
+        }
+        if (this.closing && this.chunked) {
+            out.write(LAST_CHUNK);
+            this.chunked = false;
+            this.closed = true;
+        }
+        if (out.size() > 0) {
+            out.writeTo(this.outStream);
+            out.reset();
         }
         this.outStream.flush();
 
@@ -201,9 +348,75 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 
         this.bytesCommitted += commitLength;
         this.buffer.reset();
+        body.reset();
         this.bufferPosition = 0;
     }
 
+    /**
+     * Asks the response if the body should be gzipped, and if so sets up the
+     * encoder. If the whole body is already buffered (the stream is being
+     * closed, or the buffer holds the declared length), it is compressed
+     * now, so the compressed length can be sent. Otherwise the body goes
+     * out chunked (or up to a connection close), compressed a commit at a
+     * time.
+     */
+    private void startCompression() throws IOException {
+        String lengthHeader = this.owner.getHeaders().get(ResponseHeaders.CONTENT_LENGTH);
+        long declaredLength = (lengthHeader == null) ? -1 : Long.parseLong(lengthHeader);
+        boolean complete = this.closing || 
+                ((declaredLength != -1) && (this.buffer.size() >= declaredLength));
+        if (!this.owner.startCompression(complete ? this.buffer.size() : -1)) {
+            return;
+        }
+        this.encodedBuffer = new ResponseBuffer();
+        this.encoder = new GzipEncoder(this.encodedBuffer);
+        if (complete) {
+            if ((declaredLength != -1) && (declaredLength < this.buffer.size())) {
+                this.buffer.writeTo(this.encoder, (int) declaredLength);
+                this.buffer.reset();
+            }
+            encode(true);
+            this.owner.setContentLength(this.encodedBuffer.size());
+        }
+    }
+
+    /**
+     * Compresses the buffered bytes, returning the buffer holding the
+     * compressed ones. Everything compressed so far is flushed out, so
+     * nothing is held back between commits. Finishing writes the gzip
+     * trailer, and gives the encoder's resources back.
+     */
+    private ResponseBuffer encode(boolean finish) throws IOException {
+        if (!this.encoder.isFinished()) {
+            this.buffer.writeTo(this.encoder);
+            if (finish) {
+                this.encoder.finish();
+                this.encoder.release();
+            } else {
+                this.encoder.flush();
+            }
+        }
+        return this.encodedBuffer;
+    }
+
+    /**
+     * Status lines for http/1.1 are cached, since they never change
+     */
+    private static String getStatusLine(String protocol, int statusCode) {
+        boolean cacheable = "HTTP/1.1".equals(protocol) && (statusCode >= 0)
+                && (statusCode < HTTP11_STATUS_LINES.length);
+        if (cacheable && (HTTP11_STATUS_LINES[statusCode] != null)) {
+            return HTTP11_STATUS_LINES[statusCode];
+        }
+        String reason = Launcher.RESOURCES.getString("WinstoneOutputStream.reasonPhrase." + statusCode);
+        String statusLine = protocol + " " + statusCode + " " + 
+                (reason == null ? "No reason" : reason);
+        if (cacheable) {
+            HTTP11_STATUS_LINES[statusCode] = statusLine;
+        }
+        return statusLine;
+    }
+
     public void reset() {
         if (isCommitted())
             throw new IllegalStateException(Launcher.RESOURCES
@@ -218,7 +431,26 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
         }
     }
 
+    /**
+     * Ajp13 has its own framing, so it overrides this to return false
+     */
+    public boolean supportsChunkedEncoding() {
+        return !this.bodyOnly;
+    }
+
+    /**
+     * Ends the response. For chunked responses this writes the terminating
+     * (zero length) chunk, unless closing the stream already sent it with
+     * the last data chunk.
+     */
     public void finishResponse() throws IOException {
+        if (this.encoder != null) {
+            this.encoder.release();
+        }
+        if (this.chunked) {
+            this.outStream.write(LAST_CHUNK);
+            this.chunked = false;
+        }
         this.outStream.flush();
         this.outStream = null;
     }
@@ -233,10 +465,11 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
     }
 
     public void close() throws IOException {
+        this.closing = true;
         if (!isCommitted() && !this.disregardMode && !this.closed &&
-                (this.owner.getHeader(WinstoneResponse.CONTENT_LENGTH_HEADER) == null)) {
+                (this.owner.getHeaders().get(ResponseHeaders.CONTENT_LENGTH) == null)) {
             if ((this.owner != null) && !this.bodyOnly) {
-                this.owner.setContentLength(getOutputStreamLength());
+                this.owner.setContentLength((int) getOutputStreamLength());
             }
         }
         flush();
@@ -7,6 +7,7 @@
 package winstone;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -15,13 +16,10 @@ import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,7 +32,6 @@ import java.util.Random;
 import java.util.Set;
 import java.util.Stack;
 import java.util.StringTokenizer;
-import java.util.TimeZone;
 
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletRequestAttributeEvent;
@@ -52,11 +49,8 @@ import javax.servlet.http.HttpSession;
  * @version $Id$
  */
 public class WinstoneRequest implements HttpServletRequest {
-    protected static DateFormat headerDF = new SimpleDateFormat(
-            "EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
     protected static Random rnd = null;
     static {
-        headerDF.setTimeZone(TimeZone.getTimeZone("GMT"));
         rnd = new Random(System.currentTimeMillis());
     }
 
@@ -68,10 +62,13 @@ public class WinstoneRequest implements HttpServletRequest {
     static final String HOST_HEADER = "Host";
     static final String IN_COOKIE_HEADER1 = "Cookie";
     static final String IN_COOKIE_HEADER2 = "Cookie2";
+    static final String TRANSFER_ENCODING_HEADER = "Transfer-Encoding";
+    static final String CHUNKED_ENCODING = "chunked";
     static final String METHOD_HEAD = "HEAD";
     static final String METHOD_GET = "GET";
     static final String METHOD_POST = "POST";
     static final String POST_PARAMETERS = "application/x-www-form-urlencoded";
+    static final int INITIAL_HEADER_COUNT = 16;
 
     protected Map attributes;
     protected Map parameters;
@@ -79,8 +76,14 @@ public class WinstoneRequest implements HttpServletRequest {
     protected Stack parametersStack;
 //    protected Map forwardedParameters;
 
-    protected String headers[];
+    // Headers in arrival order, with a case-insensitive hash of each name so
+    // lookups only compare names that are likely to match
+    protected String headerNames[];
+    protected String headerValues[];
+    protected int headerHashes[];
+    protected int headerCount;
     protected Cookie cookies[];
+    protected boolean cookiesParsed;
     
     protected String method;
     protected String scheme;
@@ -91,6 +94,7 @@ public class WinstoneRequest implements HttpServletRequest {
     protected String queryString;
     protected String protocol;
     protected int contentLength;
+    protected boolean chunkedBody;
     protected String contentType;
     protected String encoding;
     
@@ -105,9 +109,12 @@ public class WinstoneRequest implements HttpServletRequest {
     protected Map requestedSessionIds;
     protected Map currentSessionIds;
     protected String deadRequestedSessionId;
+    // Parsed from the headers on first use (null until then)
     protected List locales;
     protected String authorization;
     protected boolean isSecure;
+    protected WinstoneResponse response;
+    protected AsyncContext asyncContext;
     
     protected WinstoneInputStream inputData;
     protected BufferedReader inputReader;
@@ -129,13 +136,15 @@ public class WinstoneRequest implements HttpServletRequest {
     public WinstoneRequest() throws IOException {
         this.attributes = new Hashtable();
         this.parameters = new Hashtable();
-        this.locales = new ArrayList();
         this.attributesStack = new Stack();
         this.parametersStack = new Stack();
 //        this.forwardedParameters = new Hashtable();
         this.requestedSessionIds = new Hashtable();
         this.currentSessionIds = new Hashtable();
         this.usedSessions = new HashSet();
+        this.headerNames = new String[INITIAL_HEADER_COUNT];
+        this.headerValues = new String[INITIAL_HEADER_COUNT];
+        this.headerHashes = new int[INITIAL_HEADER_COUNT];
         this.contentLength = -1;
         this.isSecure = false;
         try {
@@ -158,8 +167,11 @@ public class WinstoneRequest implements HttpServletRequest {
         this.parametersStack.clear();
 //        this.forwardedParameters.clear();
         this.usedSessions.clear();
-        this.headers = null;
+        Arrays.fill(this.headerNames, 0, this.headerCount, null);
+        Arrays.fill(this.headerValues, 0, this.headerCount, null);
+        this.headerCount = 0;
         this.cookies = null;
+        this.cookiesParsed = false;
         this.method = null;
         this.scheme = null;
         this.serverName = null;
@@ -169,6 +181,7 @@ public class WinstoneRequest implements HttpServletRequest {
         this.queryString = null;
         this.protocol = null;
         this.contentLength = -1;
+        this.chunkedBody = false;
         this.contentType = null;
         this.encoding = null;
         this.inputData = null;
@@ -187,30 +200,54 @@ public class WinstoneRequest implements HttpServletRequest {
         this.requestedSessionIds.clear();
         this.currentSessionIds.clear();
         this.deadRequestedSessionId = null;
-        this.locales.clear();
+        this.locales = null;
         this.authorization = null;
         this.isSecure = false;
         this.authenticatedUser = null;
+        this.response = null;
+        this.asyncContext = null;
     }
 
     /**
-     * Steps through the header array, searching for the first header matching
+     * Returns the index of the first header at or after fromIndex with the
+     * name supplied (ignoring case), or -1 if there isn't one. Allocates
+     * nothing.
      */
-    private String extractFirstHeader(String name) {
-        for (int n = 0; n < this.headers.length; n++) {
-            if (this.headers[n].toUpperCase().startsWith(name.toUpperCase() + ':')) {
-                return this.headers[n].substring(name.length() + 1).trim(); // 1 for colon
+    private int findHeader(String name, int hash, int fromIndex) {
+        for (int n = fromIndex; n < this.headerCount; n++) {
+            if ((this.headerHashes[n] == hash)
+                    && this.headerNames[n].equalsIgnoreCase(name)) {
+                return n;
             }
         }
-        return null;
+        return -1;
     }
 
+    /**
+     * A hash of the name that ignores ASCII case, without building a lower
+     * case copy of it
+     */
+    static int headerHash(String name) {
+        int hash = 0;
+        for (int n = 0; n < name.length(); n++) {
+            char c = name.charAt(n);
+            if ((c >= 'A') && (c <= 'Z')) {
+                c += 'a' - 'A';
+            }
+            hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    /**
+     * The distinct header names, in the order they first arrived
+     */
     private Collection extractHeaderNameList() {
-        Collection headerNames = new HashSet();
-        for (int n = 0; n < this.headers.length; n++) {
-            String name = this.headers[n];
-            int colonPos = name.indexOf(':');
-            headerNames.add(name.substring(0, colonPos));
+        List headerNames = new ArrayList(this.headerCount);
+        for (int n = 0; n < this.headerCount; n++) {
+            if (findHeader(this.headerNames[n], this.headerHashes[n], 0) == n) {
+                headerNames.add(this.headerNames[n]);
+            }
         }
         return headerNames;
     }
@@ -268,13 +305,63 @@ public class WinstoneRequest implements HttpServletRequest {
     }
 
     public List getListLocales() {
+        if (this.locales == null) {
+            String header = getHeader(LOCALE_HEADER);
+            this.locales = (header == null) ? new ArrayList() : parseLocales(header);
+        }
         return this.locales;
     }
 
+    /**
+     * The Authorization header, unless one has been set explicitly
+     */
+    public String getAuthorization() {
+        if (this.authorization == null) {
+            this.authorization = getHeader(AUTHORIZATION_HEADER);
+        }
+        return this.authorization;
+    }
+
+    public WinstoneInputStream getWinstoneInputStream() {
+        return this.inputData;
+    }
+
     public void setInputStream(WinstoneInputStream inputData) {
         this.inputData = inputData;
     }
 
+    /**
+     * The response paired with this request, for async processing
+     */
+    public void setResponse(WinstoneResponse response) {
+        this.response = response;
+    }
+
+    /**
+     * Puts the request into async mode (see AsyncContext). When service()
+     * returns, the request is suspended rather than finished.
+     */
+    public AsyncContext startAsync() {
+        if (this.asyncContext == null) {
+            this.asyncContext = new AsyncContext(this, this.response);
+        } else {
+            this.asyncContext.restart();
+        }
+        return this.asyncContext;
+    }
+
+    public boolean isAsyncStarted() {
+        return (this.asyncContext != null) && this.asyncContext.isStarted();
+    }
+
+    /**
+     * The async context, if startAsync() has been called (it stays set after
+     * a dispatch, so its listeners hear about the completion)
+     */
+    public AsyncContext getAsyncContext() {
+        return this.asyncContext;
+    }
+
     public void setHostGroup(HostGroup hostGroup) {
         this.hostGroup = hostGroup;
     }
@@ -495,7 +582,7 @@ public class WinstoneRequest implements HttpServletRequest {
     }
     
     public void discardRequestBody() {
-        if (getContentLength() > 0) {
+        if ((getContentLength() > 0) || this.chunkedBody) {
             try {
                 Logger.log(Logger.DEBUG, Launcher.RESOURCES, "WinstoneResponse.ForceBodyParsing");
                 // If body not parsed
@@ -546,13 +633,26 @@ public class WinstoneRequest implements HttpServletRequest {
                             "WinstoneRequest.ParsingBodyParameters");
 
                     // Parse params
-                    byte paramBuffer[] = new byte[contentLength];
-                    int readCount = this.inputData.read(paramBuffer);
-                    if (readCount != contentLength)
-                        Logger.log(Logger.WARNING, Launcher.RESOURCES,
-                                "WinstoneRequest.IncorrectContentLength",
-                                new String[] { contentLength + "",
-                                        readCount + "" });
+                    byte paramBuffer[] = null;
+                    if (this.chunkedBody) {
+                        paramBuffer = readChunkedBody();
+                    } else {
+                        paramBuffer = new byte[contentLength];
+                        int readCount = 0;
+                        int count = this.inputData.read(paramBuffer);
+                        while ((count != -1) && (readCount + count < contentLength)) {
+                            readCount += count;
+                            count = this.inputData.read(paramBuffer, readCount,
+                                    contentLength - readCount);
+                        }
+                        if (count != -1)
+                            readCount += count;
+                        if (readCount != contentLength)
+                            Logger.log(Logger.WARNING, Launcher.RESOURCES,
+                                    "WinstoneRequest.IncorrectContentLength",
+                                    new String[] { contentLength + "",
+                                            readCount + "" });
+                    }
                     String paramLine = (this.encoding == null ? new String(
                             paramBuffer) : new String(paramBuffer,
                             this.encoding));
@@ -572,30 +672,68 @@ public class WinstoneRequest implements HttpServletRequest {
     }
 
     /**
-     * Go through the list of headers, and build the headers/cookies arrays for
-     * the request object.
+     * Adds a header (name and already trimmed value). Call processHeaders()
+     * once all the headers are in.
+     */
+    public void addHeader(String name, String value) {
+        if (this.headerCount == this.headerNames.length) {
+            String newNames[] = new String[this.headerCount * 2];
+            String newValues[] = new String[this.headerCount * 2];
+            int newHashes[] = new int[this.headerCount * 2];
+            System.arraycopy(this.headerNames, 0, newNames, 0, this.headerCount);
+            System.arraycopy(this.headerValues, 0, newValues, 0, this.headerCount);
+            System.arraycopy(this.headerHashes, 0, newHashes, 0, this.headerCount);
+            this.headerNames = newNames;
+            this.headerValues = newValues;
+            this.headerHashes = newHashes;
+        }
+        this.headerNames[this.headerCount] = name;
+        this.headerValues[this.headerCount] = value;
+        this.headerHashes[this.headerCount] = headerHash(name);
+        this.headerCount++;
+    }
+
+    /**
+     * Reads a chunked body through to its end
+     */
+    private byte[] readChunkedBody() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte buffer[] = new byte[2048];
+        int count = this.inputData.read(buffer);
+        while (count != -1) {
+            body.write(buffer, 0, count);
+            count = this.inputData.read(buffer);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Go through a list of "name: value" header lines, adding them to the
+     * request, then process them.
      */
     public void parseHeaders(List headerList) {
-        // Iterate through headers
-        List outHeaderList = new ArrayList();
-        List cookieList = new ArrayList();
         for (Iterator i = headerList.iterator(); i.hasNext();) {
             String header = (String) i.next();
             int colonPos = header.indexOf(':');
-            String name = header.substring(0, colonPos);
-            String value = header.substring(colonPos + 1).trim();
-
-            // Add it to out headers if it's not a cookie
-            outHeaderList.add(header);
-//            if (!name.equalsIgnoreCase(IN_COOKIE_HEADER1)
-//                    && !name.equalsIgnoreCase(IN_COOKIE_HEADER2))
-
-            if (name.equalsIgnoreCase(AUTHORIZATION_HEADER))
-                this.authorization = value;
-            else if (name.equalsIgnoreCase(LOCALE_HEADER))
-                this.locales = parseLocales(value);
-            else if (name.equalsIgnoreCase(CONTENT_LENGTH_HEADER))
+            addHeader(header.substring(0, colonPos).trim(),
+                    header.substring(colonPos + 1).trim());
+        }
+        processHeaders();
+    }
+
+    /**
+     * Go through the headers, and pick out the ones the request object needs
+     * (length, type, host, cookies, etc).
+     */
+    public void processHeaders() {
+        for (int n = 0; n < this.headerCount; n++) {
+            String name = this.headerNames[n];
+            String value = this.headerValues[n];
+
+            if (name.equalsIgnoreCase(CONTENT_LENGTH_HEADER))
                 this.contentLength = Integer.parseInt(value);
+            else if (name.equalsIgnoreCase(TRANSFER_ENCODING_HEADER))
+                this.chunkedBody = value.toLowerCase().endsWith(CHUNKED_ENCODING);
             else if (name.equalsIgnoreCase(HOST_HEADER)) {
                 int nextColonPos = value.indexOf(':');
                 if ((nextColonPos == -1) || (nextColonPos == value.length() - 1)) {
@@ -620,16 +758,82 @@ public class WinstoneRequest implements HttpServletRequest {
                     if (encodingClause.startsWith("charset="))
                         this.encoding = encodingClause.substring(8);
                 }
-            } else if (name.equalsIgnoreCase(IN_COOKIE_HEADER1)
-                    || name.equalsIgnoreCase(IN_COOKIE_HEADER2))
-                parseCookieLine(value, cookieList);
+            }
         }
-        this.headers = (String[]) outHeaderList.toArray(new String[0]);
-        if (cookieList.isEmpty()) {
-            this.cookies = null;
-        } else {
-            this.cookies = (Cookie[]) cookieList.toArray(new Cookie[0]);
+
+        // A chunked body overrides any content length sent with it
+        if (this.chunkedBody) {
+            this.contentLength = -1;
+        }
+        findSessionCookies();
+    }
+
+    /**
+     * Picks the session id cookies out of the cookie headers, without parsing
+     * the other cookies (see getCookies() for that).
+     */
+    private void findSessionCookies() {
+        for (int n = 0; n < this.headerCount; n++) {
+            String name = this.headerNames[n];
+            if (!name.equalsIgnoreCase(IN_COOKIE_HEADER1)
+                    && !name.equalsIgnoreCase(IN_COOKIE_HEADER2)) {
+                continue;
+            }
+            String value = this.headerValues[n];
+            int pos = value.indexOf(WinstoneSession.SESSION_COOKIE_NAME);
+            while (pos != -1) {
+                String sessionId = extractSessionCookie(value, pos);
+                if (sessionId != null) {
+                    registerSessionCookie(sessionId);
+                }
+                pos = value.indexOf(WinstoneSession.SESSION_COOKIE_NAME,
+                        pos + WinstoneSession.SESSION_COOKIE_NAME.length());
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the session cookie whose name starts at pos, or
+     * null if the name found there is only part of a longer name or value
+     */
+    private static String extractSessionCookie(String header, int pos) {
+        if (pos > 0) {
+            char before = header.charAt(pos - 1);
+            if ((before != ';') && (before != ',') && !Character.isWhitespace(before)) {
+                return null;
+            }
+        }
+        int n = pos + WinstoneSession.SESSION_COOKIE_NAME.length();
+        while ((n < header.length()) && Character.isWhitespace(header.charAt(n))) {
+            n++;
+        }
+        if ((n == header.length()) || (header.charAt(n) != '=')) {
+            return null;
+        }
+        int end = n + 1;
+        while ((end < header.length()) && (header.charAt(end) != ';')
+                && (header.charAt(end) != ',')) {
+            end++;
+        }
+        return extractFromQuotes(header.substring(n + 1, end).trim());
+    }
+
+    private void registerSessionCookie(String sessionId) {
+        // Find a context that manages this key
+        HostConfiguration hostConfig = this.hostGroup.getHostByName(this.serverName);
+        WebAppConfiguration ownerContext = hostConfig.getWebAppBySessionKey(sessionId);
+        if (ownerContext != null) {
+            this.requestedSessionIds.put(ownerContext.getContextPath(), sessionId);
+            this.currentSessionIds.put(ownerContext.getContextPath(), sessionId);
+        }
+        // If not found, it was probably dead
+        else {
+            this.deadRequestedSessionId = sessionId;
         }
+        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
+                "WinstoneRequest.SessionCookieFound", 
+                new String[] {sessionId, 
+                ownerContext == null ? "" : "prefix:" + ownerContext.getContextPath()});
     }
 
     private static String nextToken(StringTokenizer st) {
@@ -689,27 +893,6 @@ public class WinstoneRequest implements HttpServletRequest {
 
                 Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
                         "WinstoneRequest.CookieFound", thisCookie.toString());
-                if (thisCookie.getName().equals(WinstoneSession.SESSION_COOKIE_NAME)) {
-                    // Find a context that manages this key
-                    HostConfiguration hostConfig = this.hostGroup.getHostByName(this.serverName);
-                    WebAppConfiguration ownerContext = hostConfig.getWebAppBySessionKey(thisCookie.getValue());
-                    if (ownerContext != null) {
-                        this.requestedSessionIds.put(ownerContext.getContextPath(), 
-                                thisCookie.getValue());
-                        this.currentSessionIds.put(ownerContext.getContextPath(), 
-                                thisCookie.getValue());
-                    }
-                    // If not found, it was probably dead
-                    else {
-                        this.deadRequestedSessionId = thisCookie.getValue();
-                    }
-//                    this.requestedSessionId = thisCookie.getValue();
-//                    this.currentSessionId = thisCookie.getValue();
-                    Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES,
-                            "WinstoneRequest.SessionCookieFound", 
-                            new String[] {thisCookie.getValue(), 
-                            ownerContext == null ? "" : "prefix:" + ownerContext.getContextPath()});
-                }
             }
         }
     }
@@ -958,17 +1141,24 @@ public class WinstoneRequest implements HttpServletRequest {
         return this.contentLength;
     }
 
+    /**
+     * True if the request body was sent with chunked transfer-encoding
+     */
+    public boolean isChunkedBody() {
+        return this.chunkedBody;
+    }
+
     public String getContentType() {
         return this.contentType;
     }
 
     public Locale getLocale() {
-        return this.locales.isEmpty() ? Locale.getDefault()
-                : (Locale) this.locales.get(0);
+        List locales = getListLocales();
+        return locales.isEmpty() ? Locale.getDefault() : (Locale) locales.get(0);
     }
 
     public Enumeration getLocales() {
-        List sendLocales = this.locales;
+        List sendLocales = getListLocales();
         if (sendLocales.isEmpty())
             sendLocales.add(Locale.getDefault());
         return Collections.enumeration(sendLocales);
@@ -1141,6 +1331,19 @@ public class WinstoneRequest implements HttpServletRequest {
     }
 
     public Cookie[] getCookies() {
+        if (!this.cookiesParsed) {
+            List cookieList = new ArrayList();
+            for (int n = 0; n < this.headerCount; n++) {
+                String name = this.headerNames[n];
+                if (name.equalsIgnoreCase(IN_COOKIE_HEADER1)
+                        || name.equalsIgnoreCase(IN_COOKIE_HEADER2)) {
+                    parseCookieLine(this.headerValues[n], cookieList);
+                }
+            }
+            this.cookies = cookieList.isEmpty() ? null
+                    : (Cookie[]) cookieList.toArray(new Cookie[0]);
+            this.cookiesParsed = true;
+        }
         return this.cookies;
     }
 
@@ -1148,16 +1351,13 @@ public class WinstoneRequest implements HttpServletRequest {
         String dateHeader = getHeader(name);
         if (dateHeader == null) {
             return -1;
-        } else try {
-            Date date = null;
-            synchronized (headerDF) {
-                date = headerDF.parse(dateHeader);
-            }
-            return date.getTime();
-        } catch (java.text.ParseException err) {
+        }
+        long date = DateService.parseHttpDate(dateHeader);
+        if (date == -1) {
             throw new IllegalArgumentException(Launcher.RESOURCES.getString(
                     "WinstoneRequest.BadDate", dateHeader));
         }
+        return date;
     }
 
     public int getIntHeader(String name) {
@@ -1166,7 +1366,8 @@ public class WinstoneRequest implements HttpServletRequest {
     }
 
     public String getHeader(String name) {
-        return extractFirstHeader(name);
+        int index = findHeader(name, headerHash(name), 0);
+        return index == -1 ? null : this.headerValues[index];
     }
 
     public Enumeration getHeaderNames() {
@@ -1175,12 +1376,9 @@ public class WinstoneRequest implements HttpServletRequest {
 
     public Enumeration getHeaders(String name) {
         List headers = new ArrayList();
-        for (int n = 0; n < this.headers.length; n++)
-            if (this.headers[n].toUpperCase().startsWith(
-                    name.toUpperCase() + ':'))
-                headers
-                        .add(this.headers[n].substring(name.length() + 1)
-                                .trim()); // 1 for colon
+        int hash = headerHash(name);
+        for (int n = findHeader(name, hash, 0); n != -1; n = findHeader(name, hash, n + 1))
+            headers.add(this.headerValues[n]);
         return Collections.enumeration(headers);
     }
 
@@ -10,8 +10,6 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
@@ -19,7 +17,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.TimeZone;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
@@ -33,27 +30,24 @@ import javax.servlet.http.HttpServletResponse;
  *          Exp $
  */
 public class WinstoneResponse implements HttpServletResponse {
-    private static final DateFormat HTTP_DF = new SimpleDateFormat(
-            "EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-    private static final DateFormat VERSION0_DF = new SimpleDateFormat(
-            "EEE, dd-MMM-yy HH:mm:ss z", Locale.US);
-    static {
-        HTTP_DF.setTimeZone(TimeZone.getTimeZone("GMT"));
-        VERSION0_DF.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
-
     static final String CONTENT_LENGTH_HEADER = "Content-Length";
+    static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    static final String CONTENT_RANGE_HEADER = "Content-Range";
+    static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+    static final String VARY_HEADER = "Vary";
+    static final String ETAG_HEADER = "ETag";
+    static final String GZIP_ENCODING = "gzip";
     static final String CONTENT_TYPE_HEADER = "Content-Type";
+    static final String TRANSFER_ENCODING_HEADER = "Transfer-Encoding";
+    static final String CHUNKED_ENCODING = "chunked";
 
     // Response header constants
-    private static final String CONTENT_LANGUAGE_HEADER = "Content-Language";
     private static final String KEEP_ALIVE_HEADER = "Connection";
     private static final String KEEP_ALIVE_OPEN = "Keep-Alive";
     private static final String KEEP_ALIVE_CLOSE = "Close";
-    private static final String DATE_HEADER = "Date";
     private static final String LOCATION_HEADER = "Location";
     private static final String OUT_COOKIE_HEADER1 = "Set-Cookie";
-    private static final String X_POWERED_BY_HEADER = "X-Powered-By";
     private static final String X_POWERED_BY_HEADER_VALUE = Launcher.RESOURCES.getString("PoweredByHeader");
 
     private int statusCode;
@@ -62,7 +56,7 @@ public class WinstoneResponse implements HttpServletResponse {
     private WinstoneOutputStream outputStream;
     private PrintWriter outputWriter;
     
-    private List headers;
+    private ResponseHeaders headers;
     private String explicitEncoding;
     private String implicitEncoding;
     private List cookies;
@@ -71,13 +65,14 @@ public class WinstoneResponse implements HttpServletResponse {
     private String protocol;
     private String reqKeepAliveHeader;
     private Integer errorStatusCode;
+    private boolean chunked;
     
     /**
      * Constructor
      */
     public WinstoneResponse() {
         
-        this.headers = new ArrayList();
+        this.headers = new ResponseHeaders();
         this.cookies = new ArrayList();
 
         this.statusCode = SC_OK;
@@ -102,6 +97,7 @@ public class WinstoneResponse implements HttpServletResponse {
 
         this.statusCode = SC_OK;
         this.errorStatusCode = null;
+        this.chunked = false;
         this.locale = null; //Locale.getDefault();
         this.explicitEncoding = null;
         this.implicitEncoding = null;
@@ -162,7 +158,7 @@ public class WinstoneResponse implements HttpServletResponse {
         this.reqKeepAliveHeader = req.getHeader(KEEP_ALIVE_HEADER);
     }
 
-    public List getHeaders() {
+    public ResponseHeaders getHeaders() {
         return this.headers;
     }
 
@@ -227,42 +223,48 @@ public class WinstoneResponse implements HttpServletResponse {
      */
     public void validateHeaders() {        
         // Need this block for WebDAV support. "Connection:close" header is ignored
-        String lengthHeader = getHeader(CONTENT_LENGTH_HEADER);
+        String lengthHeader = this.headers.get(ResponseHeaders.CONTENT_LENGTH);
         if ((lengthHeader == null) && (this.statusCode >= 300)) {
-            int bodyBytes = this.outputStream.getOutputStreamLength();
+            long bodyBytes = this.outputStream.getOutputStreamLength();
             if (getBufferSize() > bodyBytes) {
                 Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, 
                         "WinstoneResponse.ForcingContentLength", "" + bodyBytes);
-                forceHeader(CONTENT_LENGTH_HEADER, "" + bodyBytes);
-                lengthHeader = getHeader(CONTENT_LENGTH_HEADER);
+                forceHeader(ResponseHeaders.CONTENT_LENGTH, "" + bodyBytes);
+                lengthHeader = this.headers.get(ResponseHeaders.CONTENT_LENGTH);
             }
         }
         
-        forceHeader(KEEP_ALIVE_HEADER, !closeAfterRequest() ? KEEP_ALIVE_OPEN : KEEP_ALIVE_CLOSE);
-        String contentType = getHeader(CONTENT_TYPE_HEADER);
+        // Still no length, so the body is being streamed: chunk it if we can
+        if ((lengthHeader == null) && canUseChunkedEncoding()) {
+            this.chunked = true;
+            forceHeader(ResponseHeaders.TRANSFER_ENCODING, CHUNKED_ENCODING);
+        }
+        
+        forceHeader(ResponseHeaders.CONNECTION, !closeAfterRequest() ? KEEP_ALIVE_OPEN : KEEP_ALIVE_CLOSE);
+        String contentType = this.headers.get(ResponseHeaders.CONTENT_TYPE);
         if (this.statusCode != SC_MOVED_TEMPORARILY) {
             if (contentType == null) {
                 // Bypass normal encoding
-                forceHeader(CONTENT_TYPE_HEADER, "text/html;charset=" + getCharacterEncoding());
+                forceHeader(ResponseHeaders.CONTENT_TYPE, "text/html;charset=" + getCharacterEncoding());
             } else if (contentType.startsWith("text/")) {
                 // replace charset in content
                 StringBuffer remainder = new StringBuffer();
                 getCharsetFromContentTypeHeader(contentType, remainder);
-                forceHeader(CONTENT_TYPE_HEADER, remainder.toString() + ";charset=" + getCharacterEncoding());
+                forceHeader(ResponseHeaders.CONTENT_TYPE, remainder.toString() + ";charset=" + getCharacterEncoding());
             }
         }
-        if (getHeader(DATE_HEADER) == null) {
-            forceHeader(DATE_HEADER, formatHeaderDate(new Date()));
+        if (this.headers.get(ResponseHeaders.DATE) == null) {
+            forceHeader(ResponseHeaders.DATE, DateService.getCurrentHttpDate());
         }
-        if (getHeader(X_POWERED_BY_HEADER) == null) {
-            forceHeader(X_POWERED_BY_HEADER, X_POWERED_BY_HEADER_VALUE);
+        if (this.headers.get(ResponseHeaders.X_POWERED_BY) == null) {
+            forceHeader(ResponseHeaders.X_POWERED_BY, X_POWERED_BY_HEADER_VALUE);
         }
         if (this.locale != null) {
             String lang = this.locale.getLanguage();
             if ((this.locale.getCountry() != null) && !this.locale.getCountry().equals("")) {
                 lang = lang + "-" + this.locale.getCountry();
             }
-            forceHeader(CONTENT_LANGUAGE_HEADER, lang);
+            forceHeader(ResponseHeaders.CONTENT_LANGUAGE, lang);
         }
         
         // If we don't have a webappConfig, exit here, cause we definitely don't
@@ -305,8 +307,10 @@ public class WinstoneResponse implements HttpServletResponse {
             }
         }
         
-        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "WinstoneResponse.HeadersPreCommit",
-                this.headers + "");
+        if (Logger.isLogging(Logger.FULL_DEBUG)) {
+            Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "WinstoneResponse.HeadersPreCommit",
+                    this.headers + "");
+        }
     }
 
     /**
@@ -356,17 +360,9 @@ public class WinstoneResponse implements HttpServletResponse {
             if (cookie.getMaxAge() > 0) {
                 long expiryMS = System.currentTimeMillis()
                         + (1000 * (long) cookie.getMaxAge());
-                String expiryDate = null;
-                synchronized (VERSION0_DF) {
-                    expiryDate = VERSION0_DF.format(new Date(expiryMS));
-                }
-                out.append("; Expires=").append(expiryDate);
+                out.append("; Expires=").append(DateService.formatCookieDate(expiryMS));
             } else if (cookie.getMaxAge() == 0) {
-                String expiryDate = null;
-                synchronized (VERSION0_DF) {
-                    expiryDate = VERSION0_DF.format(new Date(5000));
-                }
-                out.append("; Expires=").append(expiryDate);
+                out.append("; Expires=").append(DateService.formatCookieDate(5000));
             }
             if (cookie.getPath() != null)
                 out.append("; Path=").append(cookie.getPath());
@@ -376,13 +372,6 @@ public class WinstoneResponse implements HttpServletResponse {
         return out.toString();
     }
 
-    private static String formatHeaderDate(Date dateIn) {
-        String date = null;
-        synchronized (HTTP_DF) {
-            date = HTTP_DF.format(dateIn);
-        }
-        return date;
-    }
     
     /**
      * Quotes the necessary strings in a cookie header. The quoting is only
@@ -410,14 +399,87 @@ public class WinstoneResponse implements HttpServletResponse {
 
     private static final String specialCharacters = "()<>@,;:\\\"/[]?={} \t";
 
+    /**
+     * Called by the output stream just before the headers are sent, to decide
+     * whether to gzip the body (see ResponseCompression). The length is the
+     * body length if the whole body is buffered, or -1. If the body gets
+     * compressed, the headers are changed to match: the length is dropped
+     * (the output stream sets the compressed one if it knows it), ranges are
+     * no longer offered, and a strong ETag becomes weak.
+     */
+    boolean startCompression(long bodyLength) {
+        ResponseCompression compression = (this.webAppConfig == null) ? null 
+                : this.webAppConfig.getResponseCompression();
+        if ((compression == null) || !compression.isEnabled() || (this.req == null)
+                || (this.statusCode != SC_OK) || isIncluding()
+                || WinstoneRequest.METHOD_HEAD.equals(this.req.getMethod())
+                || (this.headers.get(CONTENT_ENCODING_HEADER) != null)
+                || (this.headers.get(CONTENT_RANGE_HEADER) != null)) {
+            return false;
+        }
+        String lengthHeader = this.headers.get(ResponseHeaders.CONTENT_LENGTH);
+        if (lengthHeader != null) {
+            bodyLength = Long.parseLong(lengthHeader);
+        }
+        if (!compression.isCompressible(getContentType(), bodyLength)) {
+            return false;
+        }
+
+        // Caches need to know the body depends on Accept-Encoding either way
+        String vary = this.headers.get(VARY_HEADER);
+        if (vary == null) {
+            this.headers.set(VARY_HEADER, ACCEPT_ENCODING_HEADER);
+        } else if (vary.toLowerCase().indexOf(ACCEPT_ENCODING_HEADER.toLowerCase()) == -1) {
+            this.headers.set(VARY_HEADER, vary + ", " + ACCEPT_ENCODING_HEADER);
+        }
+        if (ResponseCompression.getEncodingQuality(
+                this.req.getHeader(ACCEPT_ENCODING_HEADER), GZIP_ENCODING) <= 0) {
+            return false;
+        }
+
+        Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, 
+                "WinstoneResponse.Compressing", getContentType());
+        this.headers.set(CONTENT_LENGTH_HEADER, null);
+        this.headers.set(ACCEPT_RANGES_HEADER, null);
+        this.headers.set(CONTENT_ENCODING_HEADER, GZIP_ENCODING);
+        String eTag = this.headers.get(ETAG_HEADER);
+        if ((eTag != null) && eTag.startsWith("\"")) {
+            this.headers.set(ETAG_HEADER, "W/" + eTag);
+        }
+        return true;
+    }
+
+    /**
+     * Chunked encoding is only used on http/1.1 responses that have a body,
+     * when the output stream supports it (ie not for ajp13) and the servlet
+     * hasn't already asked for the connection to be closed.
+     */
+    private boolean canUseChunkedEncoding() {
+        String outKeepAliveHeader = this.headers.get(ResponseHeaders.CONNECTION);
+        return "HTTP/1.1".equals(this.protocol)
+                && this.outputStream.supportsChunkedEncoding()
+                && (this.statusCode >= 200)
+                && (this.statusCode != SC_NO_CONTENT)
+                && (this.statusCode != SC_NOT_MODIFIED)
+                && ((this.req == null) || !WinstoneRequest.METHOD_HEAD.equals(this.req.getMethod()))
+                && ((outKeepAliveHeader == null) || !outKeepAliveHeader.equalsIgnoreCase(KEEP_ALIVE_CLOSE));
+    }
+
+    /**
+     * True if the body is being sent with chunked transfer-encoding
+     */
+    public boolean isChunked() {
+        return this.chunked;
+    }
+
     /**
      * Based on request/response headers and the protocol, determine whether or
      * not this connection should operate in keep-alive mode.
      */
     public boolean closeAfterRequest() {
         String inKeepAliveHeader = this.reqKeepAliveHeader;
-        String outKeepAliveHeader = getHeader(KEEP_ALIVE_HEADER);
-        boolean hasContentLength = (getHeader(CONTENT_LENGTH_HEADER) != null);
+        String outKeepAliveHeader = this.headers.get(ResponseHeaders.CONNECTION);
+        boolean hasContentLength = (this.headers.get(ResponseHeaders.CONTENT_LENGTH) != null) || this.chunked;
         if (this.protocol.startsWith("HTTP/0"))
             return true;
         else if ((inKeepAliveHeader == null) && (outKeepAliveHeader == null))
@@ -438,6 +500,18 @@ public class WinstoneResponse implements HttpServletResponse {
         this.outputStream.flush();
     }
 
+    /**
+     * Final flush once the servlet is done. If nothing has been committed
+     * yet, the whole body is in the buffer, so the content length is set
+     * first (see WinstoneOutputStream.close()).
+     */
+    public void finishBody() throws IOException {
+        if (this.outputWriter != null) {
+            this.outputWriter.flush();
+        }
+        this.outputStream.close();
+    }
+
     public void setBufferSize(int size) {
         this.outputStream.setBufferSize(size);
     }
@@ -465,13 +539,13 @@ public class WinstoneResponse implements HttpServletResponse {
             StringBuffer remainderHeader = new StringBuffer();
             getCharsetFromContentTypeHeader(contentType, remainderHeader);
             if (remainderHeader.length() != 0) {
-                forceHeader(CONTENT_TYPE_HEADER, remainderHeader + ";charset=" + encoding);
+                forceHeader(ResponseHeaders.CONTENT_TYPE, remainderHeader + ";charset=" + encoding);
             }
         }
     }
     
     public String getContentType() {
-        return getHeader(CONTENT_TYPE_HEADER);
+        return this.headers.get(ResponseHeaders.CONTENT_TYPE);
     }
 
     public void setContentType(String type) {
@@ -562,14 +636,11 @@ public class WinstoneResponse implements HttpServletResponse {
     }
 
     public boolean containsHeader(String name) {
-        for (int n = 0; n < this.headers.size(); n++)
-            if (((String) this.headers.get(n)).startsWith(name))
-                return true;
-        return false;
+        return this.headers.contains(name);
     }
 
     public void addDateHeader(String name, long date) {
-        addHeader(name, formatHeaderDate(new Date(date)));
+        addHeader(name, DateService.formatHttpDate(date));
     } // df.format(new Date(date)));}
 
     public void addIntHeader(String name, int value) {
@@ -584,7 +655,7 @@ public class WinstoneResponse implements HttpServletResponse {
             Logger.log(Logger.DEBUG, Launcher.RESOURCES, "WinstoneResponse.HeaderAfterCommitted", 
                     new String[] {name, value});  
         } else if (value != null) {
-            if (name.equals(CONTENT_TYPE_HEADER)) {
+            if (ResponseHeaders.getSlot(name) == ResponseHeaders.CONTENT_TYPE) {
                 StringBuffer remainderHeader = new StringBuffer();
                 String headerEncoding = getCharsetFromContentTypeHeader(value, remainderHeader);
                 if (this.outputWriter != null) {
@@ -593,12 +664,12 @@ public class WinstoneResponse implements HttpServletResponse {
                     this.explicitEncoding = headerEncoding;
                 }
             }
-            this.headers.add(name + ": " + value);
+            this.headers.add(name, value);
         }
     }
 
     public void setDateHeader(String name, long date) {
-        setHeader(name, formatHeaderDate(new Date(date)));
+        setHeader(name, DateService.formatHttpDate(date));
     }
 
     public void setIntHeader(String name, int value) {
@@ -613,53 +684,22 @@ public class WinstoneResponse implements HttpServletResponse {
             Logger.log(Logger.DEBUG, Launcher.RESOURCES, "WinstoneResponse.HeaderAfterCommitted", 
                     new String[] {name, value});
         } else {
-            boolean found = false;
-            for (int n = 0; (n < this.headers.size()); n++) {
-                String header = (String) this.headers.get(n);
-                if (header.startsWith(name + ": ")) {
-                    if (found) {
-                        this.headers.remove(n);
-                        continue;
-                    }
-                    if (name.equals(CONTENT_TYPE_HEADER)) {
-                        if (value != null) {
-                            StringBuffer remainderHeader = new StringBuffer();
-                            String headerEncoding = getCharsetFromContentTypeHeader(
-                                    value, remainderHeader);
-                            if (this.outputWriter != null) {
-                                value = remainderHeader + ";charset=" + getCharacterEncoding();
-                            } else if (headerEncoding != null) {
-                                this.explicitEncoding = headerEncoding;
-                            }
-                        }
-                    }
-
-                    if (value != null) {
-                        this.headers.set(n, name + ": " + value);
-                    } else {
-                        this.headers.remove(n);
-                    }
-                    found = true;
+            if ((value != null) && (ResponseHeaders.getSlot(name) == ResponseHeaders.CONTENT_TYPE)) {
+                StringBuffer remainderHeader = new StringBuffer();
+                String headerEncoding = getCharsetFromContentTypeHeader(
+                        value, remainderHeader);
+                if (this.outputWriter != null) {
+                    value = remainderHeader + ";charset=" + getCharacterEncoding();
+                } else if (headerEncoding != null) {
+                    this.explicitEncoding = headerEncoding;
                 }
             }
-            if (!found) {
-                addHeader(name, value);
-            }
+            this.headers.set(name, value);
         }
     }
 
-    private void forceHeader(String name, String value) {
-        boolean found = false;
-        for (int n = 0; (n < this.headers.size()); n++) {
-            String header = (String) this.headers.get(n);
-            if (header.startsWith(name + ": ")) {
-                found = true;
-                this.headers.set(n, name + ": " + value);
-            }
-        }
-        if (!found) {
-            this.headers.add(name + ": " + value);
-        }
+    private void forceHeader(int slot, String value) {
+        this.headers.set(slot, value);
     }
     
     private String getCurrentEncoding() {
@@ -680,12 +720,7 @@ public class WinstoneResponse implements HttpServletResponse {
     }
     
     public String getHeader(String name) {
-        for (int n = 0; n < this.headers.size(); n++) {
-            String header = (String) this.headers.get(n);
-            if (header.startsWith(name + ": "))
-                return header.substring(name.length() + 2);
-        }
-        return null;
+        return this.headers.get(name);
     }
 
     public String encodeRedirectURL(String url) {
@@ -76,7 +76,7 @@ public class WinstoneResponseWriter extends PrintWriter {
         String contentLengthHeader = response.getHeader(WinstoneResponse.CONTENT_LENGTH_HEADER);
         if ((contentLengthHeader != null) && 
                 ((this.outputStream.getOutputStreamLength() + this.bytesBuffered) >= 
-                        Integer.parseInt(contentLengthHeader))) {
+                        Long.parseLong(contentLengthHeader))) {
             Logger.log(Logger.FULL_DEBUG, Launcher.RESOURCES, "WinstoneResponseWriter.AutoFlush",
                     new String[] {contentLengthHeader,
                     (this.outputStream.getOutputStreamLength() + this.bytesBuffered) + ""});
@@ -6,6 +6,8 @@
  */
 package winstone;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -13,6 +15,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -58,6 +61,7 @@ public class WinstoneSession implements HttpSession, Serializable {
     private boolean distributable;
     private Object sessionMonitor = new Boolean(true);
     private Set requestsUsingMe;
+    private int changeCount;
 
     /**
      * Constructor
@@ -119,6 +123,17 @@ public class WinstoneSession implements HttpSession, Serializable {
     public boolean isUnusedByRequests() {
         return this.requestsUsingMe.isEmpty();
     }
+
+    /**
+     * The number of attribute changes made to this instance (a copy starts
+     * again from 0), so a reload can tell if a session changed after it was
+     * copied
+     */
+    public int getChangeCount() {
+        synchronized (this.sessionMonitor) {
+            return this.changeCount;
+        }
+    }
     
     public boolean isExpired() {
         // check if it's expired yet
@@ -178,6 +193,7 @@ public class WinstoneSession implements HttpSession, Serializable {
             } else {
                 this.sessionData.put(name, value);
             }
+            this.changeCount++;
         }
 
         // valueUnbound must be after unbinding
@@ -218,6 +234,7 @@ public class WinstoneSession implements HttpSession, Serializable {
         synchronized (this.sessionMonitor) {
             value = this.sessionData.get(name);
             this.sessionData.remove(name);
+            this.changeCount++;
         }
 
         // Notify listeners
@@ -338,6 +355,41 @@ public class WinstoneSession implements HttpSession, Serializable {
         }
     }
     
+    /**
+     * Copies this session to the instance of its webapp that is replacing
+     * this one on a reload. The copy is serialized and read back with the new
+     * webapp's class loader (so attributes that aren't serializable are left
+     * behind). It gets the new webapp's listeners, but isn't activated: that
+     * waits until this session has been passivated.
+     */
+    public WinstoneSession copyTo(WebAppConfiguration webAppConfig) 
+            throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream objOut = new ObjectOutputStream(bytes);
+        synchronized (this.sessionMonitor) {
+            objOut.writeObject(this);
+        }
+        objOut.close();
+
+        final ClassLoader loader = webAppConfig.getLoader();
+        ObjectInputStream objIn = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())) {
+            protected Class resolveClass(ObjectStreamClass desc) 
+                    throws IOException, ClassNotFoundException {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                } catch (ClassNotFoundException err) {
+                    return super.resolveClass(desc);
+                }
+            }
+        };
+        WinstoneSession copy = (WinstoneSession) objIn.readObject();
+        objIn.close();
+        copy.setWebAppConfiguration(webAppConfig);
+        webAppConfig.setSessionListeners(copy);
+        return copy;
+    }
+
     /**
      * Save this session to the temp dir defined for this webapp
      */
@@ -443,8 +495,8 @@ public class WinstoneSession implements HttpSession, Serializable {
                                 "WinstoneSession.SkippingNonSerializable",
                                 new String[] { key,
                                         copy.get(key).getClass().getName() });
+                copy.remove(key);
             }
-            copy.remove(key);
         }
         out.writeInt(copy.size());
         for (Iterator i = copy.keySet().iterator(); i.hasNext();) {
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone;
+
+import java.io.IOException;
+
+/**
+ * Called back when the response of an async request can be written without
+ * blocking (see WinstoneOutputStream.setWriteListener()).
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public interface WriteListener {
+    /**
+     * Called when the stream can be written without blocking. Write for as
+     * long as isReady() returns true: once it returns false, this is called
+     * again when the client has taken what has been written so far.
+     */
+    public void onWritePossible() throws IOException;
+
+    /**
+     * Called if writing fails (eg the client goes away). The request is
+     * completed afterwards.
+     */
+    public void onError(Throwable err);
+}
@@ -11,12 +11,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Map;
 
 import winstone.AccessLogger;
+import winstone.DateService;
 import winstone.Logger;
 import winstone.WebAppConfiguration;
 import winstone.WinstoneRequest;
@@ -34,7 +32,6 @@ public class SimpleAccessLogger implements AccessLogger {
     public static final WinstoneResourceBundle ACCESSLOG_RESOURCES = 
             new WinstoneResourceBundle("winstone.accesslog.LocalStrings");
     
-    private static final DateFormat DF = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z");
     private static final String COMMON = "###ip### - ###user### ###time### \"###uriLine###\" ###status### ###size###";
     private static final String COMBINED = COMMON + " \"###referer###\" \"###userAgent###\"";
     private static final String RESIN = COMMON + " \"###userAgent###\"";
@@ -81,11 +78,8 @@ public class SimpleAccessLogger implements AccessLogger {
         String uriLine = request.getMethod() + " " + originalURL + " " + request.getProtocol();
         int status = response.getErrorStatusCode() == null ? response.getStatus() 
                 : response.getErrorStatusCode().intValue();
-        int size = response.getWinstoneOutputStream().getBytesCommitted();
-        String date = null;
-        synchronized (DF) {
-            date = DF.format(new Date());
-        }
+        long size = response.getWinstoneOutputStream().getBytesCommitted();
+        String date = DateService.getCurrentAccessLogDate();
         String logLine = WinstoneResourceBundle.globalReplace(this.pattern, new String[][] {
                 {"###ip###", request.getRemoteHost()},
                 {"###user###", nvl(request.getRemoteUser())},
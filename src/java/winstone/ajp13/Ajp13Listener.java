@@ -23,7 +23,10 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 
+import winstone.AcceptorStatistics;
+import winstone.ActiveRequests;
 import winstone.AuthenticationPrincipal;
+import winstone.ConnectionTimeouts;
 import winstone.HostGroup;
 import winstone.Launcher;
 import winstone.Listener;
@@ -62,6 +65,10 @@ public class Ajp13Listener implements Listener, Runnable {
     private int listenPort;
     private boolean interrupted;
     private String listenAddress;
+    private int acceptorThreads;
+    private AcceptorStatistics acceptorStatistics;
+    private ActiveRequests activeRequests = new ActiveRequests();
+    private ServerSocket serverSocket;
 
     /**
      * Constructor
@@ -75,34 +82,53 @@ public class Ajp13Listener implements Listener, Runnable {
                 "ajp13Port", "" + DEFAULT_PORT));
         this.listenAddress = WebAppConfiguration.stringArg(args,
                 "ajp13ListenAddress", null);
+        this.acceptorThreads = Math.max(1, WebAppConfiguration.intArg(args,
+                "ajp13AcceptorThreads", 1));
     }
 
     public boolean start() {
         if (this.listenPort < 0) {
             return false;
         } else {
+            try {
+                this.serverSocket = this.listenAddress == null ? new ServerSocket(
+                        this.listenPort, BACKLOG_COUNT) : new ServerSocket(
+                        this.listenPort, BACKLOG_COUNT, InetAddress
+                                .getByName(this.listenAddress));
+                this.serverSocket.setSoTimeout(LISTENER_TIMEOUT);
+            } catch (IOException err) {
+                Logger.log(Logger.ERROR, AJP_RESOURCES,
+                        "Ajp13Listener.ShutdownError", err);
+                return false;
+            }
             this.interrupted = false;
-            Thread thread = new Thread(this, Launcher.RESOURCES.getString(
-                    "Listener.ThreadName", new String[] { "ajp13",
-                            "" + this.listenPort }));
-            thread.setDaemon(true);
-            thread.start();
+            this.acceptorStatistics = new AcceptorStatistics("ajp13", this.acceptorThreads);
+            for (int n = 0; n < this.acceptorThreads; n++) {
+                String threadName = this.acceptorThreads == 1 
+                        ? Launcher.RESOURCES.getString("Listener.ThreadName", 
+                                new String[] { "ajp13", "" + this.listenPort })
+                        : Launcher.RESOURCES.getString("Listener.AcceptorThreadName",
+                                new String[] { "ajp13", "" + this.listenPort, "" + n });
+                Thread thread = new Thread(this, threadName);
+                thread.setDaemon(true);
+                thread.start();
+            }
             return true;
         }
     }
 
     /**
-     * The main run method. This handles the normal thread processing.
+     * The main run method. This handles the normal thread processing. Each
+     * acceptor thread runs this loop on the shared server socket.
      */
     public void run() {
+        int acceptor = this.acceptorStatistics.registerAcceptor();
+        ServerSocket ss = this.serverSocket;
         try {
-            ServerSocket ss = this.listenAddress == null ? new ServerSocket(
-                    this.listenPort, BACKLOG_COUNT) : new ServerSocket(
-                    this.listenPort, BACKLOG_COUNT, InetAddress
-                            .getByName(this.listenAddress));
-            ss.setSoTimeout(LISTENER_TIMEOUT);
-            Logger.log(Logger.INFO, AJP_RESOURCES, "Ajp13Listener.StartupOK",
-                    this.listenPort + "");
+            if (acceptor == 0) {
+                Logger.log(Logger.INFO, AJP_RESOURCES, "Ajp13Listener.StartupOK",
+                        this.listenPort + "");
+            }
 
             // Enter the main loop
             while (!interrupted) {
@@ -112,30 +138,60 @@ public class Ajp13Listener implements Listener, Runnable {
                     s = ss.accept();
                 } catch (java.io.InterruptedIOException err) {
                     s = null;
+                } catch (SocketException err) {
+                    // closed by destroy()
+                    if (this.interrupted) {
+                        break;
+                    }
+                    throw err;
                 }
 
                 // if we actually got a socket, process it. Otherwise go around
                 // again
-                if (s != null)
+                if (s != null) {
+                    this.acceptorStatistics.recordAccept(acceptor);
                     this.objectPool.handleRequest(s, this);
+                }
+                this.acceptorStatistics.checkReport(acceptor);
             }
-
-            // Close server socket
-            ss.close();
         } catch (Throwable err) {
             Logger.log(Logger.ERROR, AJP_RESOURCES,
                     "Ajp13Listener.ShutdownError", err);
         }
 
-        Logger.log(Logger.INFO, AJP_RESOURCES, "Ajp13Listener.ShutdownOK");
+        // Close server socket once the last acceptor is out
+        if (this.acceptorStatistics.unregisterAcceptor()) {
+            try {
+                ss.close();
+            } catch (IOException err) {
+            }
+            Logger.log(Logger.INFO, AJP_RESOURCES, "Ajp13Listener.ShutdownOK");
+        }
+    }
+
+    /**
+     * Per-acceptor accept counts and rates for this listener
+     */
+    public AcceptorStatistics getAcceptorStatistics() {
+        return this.acceptorStatistics;
+    }
+
+    public ActiveRequests getActiveRequests() {
+        return this.activeRequests;
     }
 
     /**
-     * Interrupts the listener thread. This will trigger a listener shutdown
-     * once the so timeout has passed.
+     * Interrupts the listener threads, and closes the server socket so that
+     * no more connections are accepted.
      */
     public void destroy() {
         this.interrupted = true;
+        try {
+            if (this.serverSocket != null) {
+                this.serverSocket.close();
+            }
+        } catch (IOException err) {
+        }
     }
 
     /**
@@ -153,13 +209,14 @@ public class Ajp13Listener implements Listener, Runnable {
         WinstoneRequest req = this.objectPool.getRequestFromPool();
         WinstoneResponse rsp = this.objectPool.getResponseFromPool();
         rsp.setRequest(req);
+        req.setResponse(rsp);
         req.setHostGroup(this.hostGroup);
         // rsp.updateContentTypeHeader("text/html");
 
-        if (iAmFirst || (KEEP_ALIVE_TIMEOUT == -1))
-            socket.setSoTimeout(CONNECTION_TIMEOUT);
-        else
-            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+        ConnectionTimeouts timeouts = handler.getConnectionTimeouts();
+        timeouts.setTimeouts(CONNECTION_TIMEOUT, CONNECTION_TIMEOUT);
+        if (!iAmFirst && (KEEP_ALIVE_TIMEOUT != -1))
+            timeouts.startKeepAlive(KEEP_ALIVE_TIMEOUT);
         Ajp13IncomingPacket headers = null;
         try {
             headers = new Ajp13IncomingPacket(inSocket, handler);
@@ -172,7 +229,7 @@ public class Ajp13Listener implements Listener, Runnable {
                 return;
             }
         } finally {
-            try {socket.setSoTimeout(CONNECTION_TIMEOUT);} catch (Throwable err) {}
+            timeouts.endKeepAlive();
         }
 
         if (headers.getPacketLength() > 0) {
@@ -266,6 +323,24 @@ public class Ajp13Listener implements Listener, Runnable {
         socket.close();
     }
 
+    /**
+     * AJP13 has no way to answer before the request packet is read, so just
+     * close and let the web server report the failure.
+     */
+    public void rejectSocket(Socket socket) throws IOException {
+        socket.close();
+    }
+
+    public void resumeSocket(Socket socket, RequestHandlerThread handler) {
+    }
+
+    public boolean startNonBlocking(Socket socket) {
+        return false;
+    }
+
+    public void watchSocket(Socket socket, boolean forWrite, Runnable callback) {
+    }
+
     /**
      * Extract the header details relating to socket stuff from the ajp13 header
      * packet
@@ -17,6 +17,7 @@ import java.util.Map;
 import javax.servlet.http.Cookie;
 
 import winstone.Logger;
+import winstone.ResponseHeaders;
 import winstone.WinstoneException;
 import winstone.WinstoneOutputStream;
 
@@ -37,6 +38,7 @@ public class Ajp13OutputStream extends WinstoneOutputStream {
     // byte CONTAINER_CPONG_REPLY = 0x09;
 
     static Map headerCodes = null;
+    static byte slotCodes[][] = new byte[ResponseHeaders.KNOWN_COUNT][];
 
     static {
         headerCodes = new Hashtable();
@@ -52,6 +54,15 @@ public class Ajp13OutputStream extends WinstoneOutputStream {
         headerCodes.put("server", new byte[] { (byte) 0xA0, 0x09 });
         headerCodes.put("status", new byte[] { (byte) 0xA0, 0x0A });
         headerCodes.put("www-authenticate", new byte[] { (byte) 0xA0, 0x0B });
+
+        // Index the codes for the response's well-known header slots too
+        for (Iterator i = headerCodes.keySet().iterator(); i.hasNext(); ) {
+            String name = (String) i.next();
+            int slot = ResponseHeaders.getSlot(name);
+            if (slot != -1) {
+                slotCodes[slot] = (byte[]) headerCodes.get(name);
+            }
+        }
     }
 
     private String headerEncoding;
@@ -72,16 +83,15 @@ public class Ajp13OutputStream extends WinstoneOutputStream {
             this.committed = true;
 
             ByteArrayOutputStream headerArrayStream = new ByteArrayOutputStream();
-            for (Iterator i = this.owner.getHeaders().iterator(); i.hasNext();) {
-                String header = (String) i.next();
-                int colonPos = header.indexOf(':');
-                if (colonPos == -1)
-                    throw new WinstoneException(Ajp13Listener.AJP_RESOURCES.getString(
-                            "Ajp13OutputStream.NoColonHeader", header));
-                String headerName = header.substring(0, colonPos).trim();
-                String headerValue = header.substring(colonPos + 1).trim();
-                byte headerCode[] = (byte[]) headerCodes.get(headerName
-                        .toLowerCase());
+            ResponseHeaders headers = this.owner.getHeaders();
+            for (int n = 0; n < headers.getEntryCount(); n++) {
+                String headerValue = headers.getValue(n);
+                if (headerValue == null) {
+                    continue;
+                }
+                String headerName = headers.getName(n);
+                byte headerCode[] = (n < ResponseHeaders.KNOWN_COUNT) ? slotCodes[n]
+                        : (byte[]) headerCodes.get(headerName.toLowerCase());
                 if (headerCode == null) {
                     headerArrayStream.write(getStringBlock(headerName));
                 } else {
@@ -119,7 +129,7 @@ public class Ajp13OutputStream extends WinstoneOutputStream {
             setIntBlock(this.owner.getStatus(), headerPacket, 5);
             setIntBlock(0, headerPacket, 7); // empty msg
             headerPacket[9] = (byte) 0x00;
-            setIntBlock(this.owner.getHeaders().size()
+            setIntBlock(headers.size()
                     + this.owner.getCookies().size(), headerPacket, 10);
 
             // Ajp13Listener.packetDump(headerPacket, headerPacket.length);
@@ -152,6 +162,13 @@ public class Ajp13OutputStream extends WinstoneOutputStream {
         this.bufferPosition = 0;
     }
 
+    /**
+     * The ajp13 body packets already frame the response
+     */
+    public boolean supportsChunkedEncoding() {
+        return false;
+    }
+
     public void finishResponse() throws IOException {
         // Send end response packet
         byte endResponse[] = new byte[] { 0x41, 0x42, 0x00, 0x02,
@@ -14,6 +14,7 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
 import org.w3c.dom.Node;
@@ -22,6 +23,7 @@ import winstone.AuthenticationHandler;
 import winstone.AuthenticationRealm;
 import winstone.Logger;
 import winstone.WebAppConfiguration;
+import winstone.WinstoneRequest;
 import winstone.WinstoneResourceBundle;
 
 /**
@@ -133,6 +135,23 @@ public abstract class BaseAuthenticationHandler implements
         return true;
     }
     
+    /**
+     * The request's Authorization header. Comes from the WinstoneRequest
+     * (directly or under a wrapper) if there is one, since that caches it and
+     * honours a value set explicitly.
+     */
+    protected String getAuthorization(HttpServletRequest request) {
+        if (request instanceof WinstoneRequest) {
+            return ((WinstoneRequest) request).getAuthorization();
+        } else if ((request instanceof HttpServletRequestWrapper)
+                && (((HttpServletRequestWrapper) request).getRequest() instanceof WinstoneRequest)) {
+            return ((WinstoneRequest) ((HttpServletRequestWrapper) request).getRequest())
+                    .getAuthorization();
+        } else {
+            return request.getHeader("Authorization");
+        }
+    }
+
     protected void setNoCache(HttpServletResponse response) {
         response.setHeader("Pragma", "No-cache");
         response.setHeader("Cache-Control", "No-cache");
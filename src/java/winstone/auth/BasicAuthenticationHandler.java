@@ -55,7 +55,7 @@ public class BasicAuthenticationHandler extends BaseAuthenticationHandler {
     protected boolean validatePossibleAuthenticationResponse(
             HttpServletRequest request, HttpServletResponse response,
             String pathRequested) throws IOException {
-        String authorization = request.getHeader("Authorization");
+        String authorization = getAuthorization(request);
         if ((authorization != null)
                 && authorization.toLowerCase().startsWith("basic")) {
             
@@ -76,7 +76,7 @@ public class DigestAuthenticationHandler extends BaseAuthenticationHandler {
     protected boolean validatePossibleAuthenticationResponse(
             HttpServletRequest request, HttpServletResponse response,
             String pathRequested) throws IOException {
-        String authorization = request.getHeader("Authorization");
+        String authorization = getAuthorization(request);
         if (authorization == null)
             return true;
 
@@ -10,21 +10,19 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
 import java.util.Vector;
 
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 
+import winstone.DateService;
 import winstone.Launcher;
 import winstone.Logger;
 import winstone.WinstoneException;
@@ -41,12 +39,6 @@ import winstone.WinstoneRequest;
  * @version $Id$
  */
 public class RetryRequestWrapper extends HttpServletRequestWrapper {
-    protected static final DateFormat headerDF = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-
-    static {
-        headerDF.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
-
     private final static String METHOD_HEAD = "GET";
     private final static String METHOD_GET = "GET";
     private final static String METHOD_POST = "POST";
@@ -192,13 +184,11 @@ public class RetryRequestWrapper extends HttpServletRequestWrapper {
             if (dateHeader == null) {
                 return -1;
             } else {
-                try {
-                    synchronized (headerDF) {
-                        return headerDF.parse(dateHeader).getTime();
-                    }
-                } catch (java.text.ParseException err) {
+                long date = DateService.parseHttpDate(dateHeader);
+                if (date == -1) {
                     throw new IllegalArgumentException("Illegal date format: " + dateHeader);
                 }
+                return date;
             }
         }
     }
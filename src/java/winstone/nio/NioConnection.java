@@ -0,0 +1,219 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import winstone.ConnectionInputBuffer;
+import winstone.TimerWheel;
+
+/**
+ * Holds the state of a single connection owned by the nio listener: the
+ * channel, the bytes read so far while the connection was parked on the
+ * selector, and the timeout that drops the connection if it sits idle there.
+ *
+ * The same read buffer is used by the selector thread while the connection
+ * is parked and by the request handler thread while a request is running, so
+ * pipelined bytes read by either are never lost.
+ *
+ * While a suspended request does non-blocking io, the connection is "watched":
+ * it is registered with the selector for the read and write callbacks asked
+ * for, rather than for the next request head.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class NioConnection {
+    private SocketChannel channel;
+    private ConnectionInputBuffer inputBuffer;
+    private TimerWheel.Timeout idleTimeout;
+    private long waitDeadline;
+    private boolean keepAlive;
+
+    // Readiness callbacks for a suspended request doing non-blocking io. The
+    // connection stays watched until the selector has dropped its key, so
+    // the channel can block again.
+    private boolean watched;
+    private Runnable readCallback;
+    private Runnable writeCallback;
+    private CountDownLatch unwatched;
+
+    public NioConnection(SocketChannel channel, int headBufferSize) {
+        this.channel = channel;
+        this.inputBuffer = new ConnectionInputBuffer(headBufferSize);
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    public Socket getSocket() {
+        return this.channel.socket();
+    }
+
+    public void setIdleTimeout(TimerWheel.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Starts the idle timeout, when the connection is put on the selector
+     */
+    public void startIdleTimeout(long millis) {
+        this.idleTimeout.start(millis);
+    }
+
+    /**
+     * Stops the idle timeout. Returns false if it had already expired, ie the
+     * connection has been closed.
+     */
+    public boolean cancelIdleTimeout() {
+        this.idleTimeout.cancel();
+        return !this.idleTimeout.isExpired();
+    }
+
+    /**
+     * When a connection waiting for a handler should be rejected, or -1 to
+     * wait as long as it takes
+     */
+    public long getWaitDeadline() {
+        return this.waitDeadline;
+    }
+
+    public void setWaitDeadline(long waitDeadline) {
+        this.waitDeadline = waitDeadline;
+    }
+
+    public boolean isKeepAlive() {
+        return this.keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Reads whatever is available from the channel into the buffer. Returns
+     * -1 if the client closed the connection.
+     */
+    public int readHead() throws IOException {
+        return this.inputBuffer.fill(this.channel);
+    }
+
+    public boolean isHeadBufferFull() {
+        return this.inputBuffer.isFull();
+    }
+
+    /**
+     * Checks whether the bytes buffered so far contain a whole request head.
+     */
+    public boolean isHeadComplete() {
+        return this.inputBuffer.findHeadEnd() != -1;
+    }
+
+    /**
+     * Called before handing the connection to a request handler.
+     */
+    public void beginRequest() {
+        this.keepAlive = false;
+    }
+
+    public synchronized void startWatching() {
+        this.watched = true;
+        this.unwatched = new CountDownLatch(1);
+    }
+
+    public synchronized boolean isWatched() {
+        return this.watched;
+    }
+
+    public synchronized void addWatch(boolean forWrite, Runnable callback) {
+        if (!this.watched) {
+            return;
+        } else if (forWrite) {
+            this.writeCallback = callback;
+        } else {
+            this.readCallback = callback;
+        }
+    }
+
+    /**
+     * The selection key interest ops for the callbacks waiting
+     */
+    public synchronized int getWatchOps() {
+        return (this.readCallback == null ? 0 : SelectionKey.OP_READ)
+                | (this.writeCallback == null ? 0 : SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Removes and returns the read or write callback, so each fires once
+     */
+    public synchronized Runnable takeCallback(boolean forWrite) {
+        Runnable callback = null;
+        if (forWrite) {
+            callback = this.writeCallback;
+            this.writeCallback = null;
+        } else {
+            callback = this.readCallback;
+            this.readCallback = null;
+        }
+        return callback;
+    }
+
+    /**
+     * Drops any callbacks. Returns false if the connection wasn't watched.
+     */
+    public synchronized boolean stopWatching() {
+        this.readCallback = null;
+        this.writeCallback = null;
+        return this.watched;
+    }
+
+    /**
+     * Called by the selector thread once it has dropped the connection's key
+     */
+    public void finishWatching() {
+        CountDownLatch latch = null;
+        synchronized (this) {
+            this.watched = false;
+            latch = this.unwatched;
+        }
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Waits (up to the timeout) for finishWatching()
+     */
+    public void awaitUnwatched(long timeout) {
+        CountDownLatch latch = null;
+        synchronized (this) {
+            latch = this.unwatched;
+        }
+        try {
+            if (latch != null) {
+                latch.await(timeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException err) {
+        }
+    }
+
+    /**
+     * Returns the connection's buffer, reading from the (now blocking) socket
+     * stream supplied once the buffered bytes are used up.
+     */
+    public ConnectionInputBuffer getInputBuffer(InputStream inSocket) {
+        this.inputBuffer.setInputStream(inSocket);
+        return this.inputBuffer;
+    }
+}
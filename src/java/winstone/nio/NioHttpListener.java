@@ -0,0 +1,559 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import winstone.ConnectionInputBuffer;
+import winstone.HostGroup;
+import winstone.HttpListener;
+import winstone.Launcher;
+import winstone.Logger;
+import winstone.ObjectPool;
+import winstone.RequestHandlerThread;
+import winstone.TimerWheel;
+import winstone.WebAppConfiguration;
+import winstone.WinstoneRequest;
+import winstone.WinstoneResourceBundle;
+import winstone.WinstoneResponse;
+
+/**
+ * A selector based http listener. Idle connections (ie new connections and
+ * connections between keep-alive requests) are parked on a selector instead of
+ * holding a request handler thread. A handler is only borrowed from the pool
+ * once a complete request head has been read, and the connection is handed
+ * back to the selector after each request.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class NioHttpListener extends HttpListener {
+    static final WinstoneResourceBundle NIO_RESOURCES = new WinstoneResourceBundle("winstone.nio.LocalStrings");
+    private static final long SELECT_PERIOD = 1000;
+    private static final long WAITING_SELECT_PERIOD = 10;
+    private static final int DEFAULT_HEAD_BUFFER_SIZE = 8192;
+    private static final long UNWATCH_TIMEOUT = 5000;
+
+    private int headBufferSize;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Map connections;
+    private List parkedConnections;
+    private Object parkedSemaphore = new Boolean(true);
+    private List watchedConnections;
+    private List unwatchedConnections;
+    private Object watchSemaphore = new Boolean(true);
+    private ThreadLocal currentConnection = new ThreadLocal();
+    private List waitingConnections;
+
+    /**
+     * Constructor
+     */
+    public NioHttpListener(Map args, ObjectPool objectPool, HostGroup hostGroup) throws IOException {
+        super(args, objectPool, hostGroup);
+        this.headBufferSize = WebAppConfiguration.intArg(args,
+                getConnectorName() + "HeadBufferSize", DEFAULT_HEAD_BUFFER_SIZE);
+
+        // The selector thread does all the accepting
+        this.acceptorThreads = 1;
+        this.connections = new Hashtable();
+        this.parkedConnections = new ArrayList();
+        this.watchedConnections = new ArrayList();
+        this.unwatchedConnections = new ArrayList();
+        this.waitingConnections = new ArrayList();
+    }
+
+    /**
+     * Disabled unless a port is specified
+     */
+    protected int getDefaultPort() {
+        return -1;
+    }
+
+    protected String getConnectorName() {
+        return "httpNio";
+    }
+
+    /**
+     * Opens the selector and a non-blocking server channel, returning the
+     * channel's socket so the base class can bind-check it at startup.
+     */
+    protected ServerSocket getServerSocket() throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.socket().bind(this.listenAddress == null
+                ? new InetSocketAddress(this.listenPort)
+                : new InetSocketAddress(this.listenAddress, this.listenPort),
+                BACKLOG_COUNT);
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        return this.serverChannel.socket();
+    }
+
+    /**
+     * The selector loop. This accepts new connections, reads request heads
+     * from parked connections, and dispatches any connection with a complete
+     * head to a request handler thread.
+     *
+     * This thread never waits for a handler. If the pool can't take a
+     * connection, it is kept here (and no more are accepted) until a handler
+     * comes free or the reject policy's wait runs out, checking again every
+     * few ms.
+     */
+    public void run() {
+        ServerSocketChannel ssc = this.serverChannel;
+        int acceptor = this.acceptorStatistics.registerAcceptor();
+        try {
+            Logger.log(Logger.INFO, Launcher.RESOURCES, "HttpListener.StartupOK",
+                    new String[] { getConnectorName().toUpperCase(),
+                            this.listenPort + "" });
+
+            while (!interrupted) {
+                this.selector.select(this.waitingConnections.isEmpty()
+                        ? SELECT_PERIOD : WAITING_SELECT_PERIOD);
+                List readyConnections = new ArrayList();
+                for (Iterator i = this.selector.selectedKeys().iterator(); i.hasNext(); ) {
+                    SelectionKey key = (SelectionKey) i.next();
+                    i.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        acceptConnections(ssc, acceptor);
+                    } else if (((NioConnection) key.attachment()).isWatched()) {
+                        fireWatches(key, (NioConnection) key.attachment());
+                    } else if (key.isReadable()) {
+                        NioConnection conn = (NioConnection) key.attachment();
+                        if (readHead(conn)) {
+                            key.cancel();
+                            readyConnections.add(conn);
+                        }
+                    }
+                }
+                registerParkedConnections(readyConnections);
+                registerWatches();
+
+                this.acceptorStatistics.checkReport(acceptor);
+
+                if (!readyConnections.isEmpty()) {
+                    // Flush the cancelled keys, so the channels can be switched
+                    // back to blocking mode for the handler threads
+                    this.selector.selectNow();
+                    for (Iterator i = readyConnections.iterator(); i.hasNext(); ) {
+                        addWaitingConnection((NioConnection) i.next());
+                    }
+                }
+                if (!this.waitingConnections.isEmpty()) {
+                    dispatchWaitingConnections(ssc);
+                }
+            }
+        } catch (Throwable err) {
+            Logger.log(Logger.ERROR, Launcher.RESOURCES, "HttpListener.ShutdownError",
+                    getConnectorName().toUpperCase(), err);
+        } finally {
+            this.acceptorStatistics.unregisterAcceptor();
+            shutdownSelector(ssc);
+        }
+
+        Logger.log(Logger.INFO, Launcher.RESOURCES, "HttpListener.ShutdownOK",
+                getConnectorName().toUpperCase());
+    }
+
+    /**
+     * Interrupts the selector thread.
+     */
+    public void destroy() {
+        // The selector thread closes the server channel itself
+        this.interrupted = true;
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void acceptConnections(ServerSocketChannel ssc, int acceptor) throws IOException {
+        SocketChannel channel = ssc.accept();
+        while (channel != null) {
+            this.acceptorStatistics.recordAccept(acceptor);
+            NioConnection conn = new NioConnection(channel, this.headBufferSize);
+            conn.setIdleTimeout(newIdleTimeout(conn));
+            try {
+                channel.configureBlocking(false);
+                conn.startIdleTimeout(CONNECTION_TIMEOUT);
+                this.connections.put(conn.getSocket(), conn);
+                channel.register(this.selector, SelectionKey.OP_READ, conn);
+            } catch (IOException err) {
+                closeConnection(conn);
+            }
+            channel = ssc.accept();
+        }
+    }
+
+    /**
+     * The timeout that closes the connection if it sits on the selector for
+     * too long. It runs on the pool's timer wheel, so the selector thread
+     * never has to scan for idle connections.
+     */
+    private TimerWheel.Timeout newIdleTimeout(final NioConnection conn) {
+        return this.objectPool.getTimerWheel().newTimeout(TimerWheel.KEEP_ALIVE,
+                new Runnable() {
+                    public void run() {
+                        Logger.log(Logger.FULL_DEBUG, NIO_RESOURCES,
+                                "NioHttpListener.IdleTimeout", "" + conn.getChannel());
+                        closeConnection(conn);
+
+                        // Let the selector drop the key, so the socket closes now
+                        Selector selector = NioHttpListener.this.selector;
+                        if (selector != null) {
+                            selector.wakeup();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Reads from a parked connection. Returns true if the connection should
+     * now be handed to a request handler, ie if the head is complete, or if
+     * the head buffer is full (in which case the handler reads the rest of
+     * the head from the socket).
+     */
+    private boolean readHead(NioConnection conn) {
+        try {
+            if (conn.readHead() == -1) {
+                closeConnection(conn);
+                return false;
+            }
+            return conn.isHeadComplete() || conn.isHeadBufferFull();
+        } catch (IOException err) {
+            closeConnection(conn);
+            return false;
+        }
+    }
+
+    /**
+     * Takes connections handed back by handler threads and puts them back on
+     * the selector. Connections that already hold a pipelined request are
+     * dispatched straight away. The others always get the full keep-alive
+     * timeout: unlike on the blocking listener, a parked connection holds no
+     * handler, so there's nothing to gain from dropping it when the handlers
+     * are busy.
+     */
+    private void registerParkedConnections(List readyConnections) {
+        List parked = null;
+        synchronized (this.parkedSemaphore) {
+            if (this.parkedConnections.isEmpty()) {
+                return;
+            }
+            parked = new ArrayList(this.parkedConnections);
+            this.parkedConnections.clear();
+        }
+        for (Iterator i = parked.iterator(); i.hasNext(); ) {
+            NioConnection conn = (NioConnection) i.next();
+            if (conn.isHeadComplete()) {
+                readyConnections.add(conn);
+            } else {
+                try {
+                    conn.startIdleTimeout(KEEP_ALIVE_TIMEOUT);
+                    conn.getChannel().register(this.selector, SelectionKey.OP_READ, conn);
+                } catch (IOException err) {
+                    closeConnection(conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the callbacks asked for by watchSocket(), and drops the keys
+     * of connections that resumeSocket() has taken back
+     */
+    private void registerWatches() throws IOException {
+        List watched = null;
+        List unwatched = null;
+        synchronized (this.watchSemaphore) {
+            if (this.watchedConnections.isEmpty() && this.unwatchedConnections.isEmpty()) {
+                return;
+            }
+            watched = new ArrayList(this.watchedConnections);
+            unwatched = new ArrayList(this.unwatchedConnections);
+            this.watchedConnections.clear();
+            this.unwatchedConnections.clear();
+        }
+        for (Iterator i = watched.iterator(); i.hasNext(); ) {
+            NioConnection conn = (NioConnection) i.next();
+            int ops = conn.getWatchOps();
+            if (conn.isWatched() && (ops != 0)) {
+                try {
+                    conn.getChannel().register(this.selector, ops, conn);
+                } catch (IOException err) {
+                    // Let the callbacks find out the channel is closed
+                    runCallback(conn.takeCallback(false));
+                    runCallback(conn.takeCallback(true));
+                }
+            }
+        }
+        if (!unwatched.isEmpty()) {
+            for (Iterator i = unwatched.iterator(); i.hasNext(); ) {
+                SelectionKey key = ((NioConnection) i.next()).getChannel().keyFor(this.selector);
+                if (key != null) {
+                    key.cancel();
+                }
+            }
+            // Flush the cancelled keys, so the channels can block again
+            this.selector.selectNow();
+            for (Iterator i = unwatched.iterator(); i.hasNext(); ) {
+                NioConnection conn = (NioConnection) i.next();
+                try {
+                    conn.getChannel().configureBlocking(true);
+                } catch (IOException err) {
+                    closeConnection(conn);
+                }
+                conn.finishWatching();
+            }
+        }
+    }
+
+    /**
+     * Runs the callbacks of a watched connection for the ops that are ready,
+     * keeping the key for any still waiting
+     */
+    private void fireWatches(SelectionKey key, NioConnection conn) {
+        int ready = key.readyOps();
+        Runnable read = ((ready & SelectionKey.OP_READ) == 0) ? null : conn.takeCallback(false);
+        Runnable write = ((ready & SelectionKey.OP_WRITE) == 0) ? null : conn.takeCallback(true);
+        key.interestOps(conn.getWatchOps());
+        runCallback(read);
+        runCallback(write);
+    }
+
+    private void runCallback(Runnable callback) {
+        if (callback != null) {
+            try {
+                callback.run();
+            } catch (Throwable err) {
+                Logger.log(Logger.ERROR, NIO_RESOURCES, "NioHttpListener.CallbackError", err);
+            }
+        }
+    }
+
+    /**
+     * Gets a connection with a complete head ready for a handler, and puts it
+     * at the back of the connections waiting for one
+     */
+    private void addWaitingConnection(NioConnection conn) {
+        if (!conn.cancelIdleTimeout()) {
+            // Timed out just as its head arrived, and already closed
+            return;
+        }
+        try {
+            conn.getChannel().configureBlocking(true);
+        } catch (IOException err) {
+            closeConnection(conn);
+            return;
+        }
+        conn.beginRequest();
+        long waitTimeout = this.objectPool.getQueueWaitTimeout();
+        conn.setWaitDeadline(waitTimeout < 0 ? -1 : System.currentTimeMillis() + waitTimeout);
+        this.waitingConnections.add(conn);
+    }
+
+    /**
+     * Offers the waiting connections to the pool in order, without waiting,
+     * and rejects any that have waited too long. New connections aren't
+     * accepted while any are left waiting.
+     */
+    private void dispatchWaitingConnections(ServerSocketChannel ssc) {
+        long now = System.currentTimeMillis();
+        for (Iterator i = this.waitingConnections.iterator(); i.hasNext(); ) {
+            NioConnection conn = (NioConnection) i.next();
+            Socket socket = conn.getSocket();
+            try {
+                if (this.objectPool.offerRequest(socket, this)) {
+                    i.remove();
+                } else if ((conn.getWaitDeadline() != -1) && (now >= conn.getWaitDeadline())) {
+                    i.remove();
+                    this.connections.remove(socket);
+                    this.objectPool.rejectRequest(socket, this);
+                }
+            } catch (Throwable err) {
+                Logger.log(Logger.ERROR, NIO_RESOURCES, "NioHttpListener.DispatchError", err);
+                i.remove();
+                closeConnection(conn);
+            }
+        }
+        SelectionKey acceptKey = ssc.keyFor(this.selector);
+        if (acceptKey != null) {
+            acceptKey.interestOps(this.waitingConnections.isEmpty() ? SelectionKey.OP_ACCEPT : 0);
+        }
+    }
+
+    private void closeConnection(NioConnection conn) {
+        conn.cancelIdleTimeout();
+        this.connections.remove(conn.getSocket());
+        try {
+            conn.getChannel().close();
+        } catch (IOException err) {
+        }
+    }
+
+    private void shutdownSelector(ServerSocketChannel ssc) {
+        if (ssc != null) {
+            try {
+                ssc.close();
+            } catch (IOException err) {
+            }
+        }
+        if (this.selector != null) {
+            for (Iterator i = this.selector.keys().iterator(); i.hasNext(); ) {
+                Object attachment = ((SelectionKey) i.next()).attachment();
+                if (attachment instanceof NioConnection) {
+                    closeConnection((NioConnection) attachment);
+                }
+            }
+            synchronized (this.parkedSemaphore) {
+                for (Iterator i = this.parkedConnections.iterator(); i.hasNext(); ) {
+                    closeConnection((NioConnection) i.next());
+                }
+                this.parkedConnections.clear();
+            }
+            for (Iterator i = this.waitingConnections.iterator(); i.hasNext(); ) {
+                closeConnection((NioConnection) i.next());
+            }
+            this.waitingConnections.clear();
+            try {
+                this.selector.close();
+            } catch (IOException err) {
+            }
+        }
+    }
+
+    /**
+     * Uses the connection's own buffer, which already holds the head bytes
+     * read by the selector thread.
+     */
+    protected ConnectionInputBuffer getInputBuffer(Socket socket,
+            InputStream inSocket, RequestHandlerThread handler, boolean iAmFirst) {
+        NioConnection conn = (NioConnection) this.connections.get(socket);
+        if (conn == null) {
+            return super.getInputBuffer(socket, inSocket, handler, iAmFirst);
+        } else {
+            this.currentConnection.set(conn);
+            return conn.getInputBuffer(inSocket);
+        }
+    }
+
+    /**
+     * Points the resuming handler thread at the connection, so the keep-alive
+     * decision is recorded against it. If the request was doing non-blocking
+     * io, this waits for the selector to let go of the channel, so it can
+     * block again.
+     */
+    public void resumeSocket(Socket socket, RequestHandlerThread handler) {
+        NioConnection conn = (NioConnection) this.connections.get(socket);
+        this.currentConnection.set(conn);
+        if ((conn != null) && conn.stopWatching()) {
+            synchronized (this.watchSemaphore) {
+                this.unwatchedConnections.add(conn);
+            }
+            this.selector.wakeup();
+            conn.awaitUnwatched(UNWATCH_TIMEOUT);
+        }
+    }
+
+    /**
+     * Switches the channel to non-blocking mode. It is only registered with
+     * the selector once a callback is asked for.
+     */
+    public boolean startNonBlocking(Socket socket) {
+        NioConnection conn = (NioConnection) this.connections.get(socket);
+        if ((conn == null) || this.interrupted) {
+            return false;
+        }
+        try {
+            conn.getChannel().configureBlocking(false);
+        } catch (IOException err) {
+            return false;
+        }
+        conn.startWatching();
+        return true;
+    }
+
+    public void watchSocket(Socket socket, boolean forWrite, Runnable callback) {
+        NioConnection conn = (NioConnection) this.connections.get(socket);
+        if (conn != null) {
+            conn.addWatch(forWrite, callback);
+            synchronized (this.watchSemaphore) {
+                this.watchedConnections.add(conn);
+            }
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Idle connections are parked on the selector rather than holding a
+     * handler, so they don't need closing as the handlers fill up. They are
+     * only closed after the request while draining.
+     */
+    protected int getKeepAliveTimeout() {
+        return this.objectPool.isDraining() ? 0 : KEEP_ALIVE_TIMEOUT;
+    }
+
+    /**
+     * Always ends the handler's keep-alive loop after one request. If the
+     * connection can be kept alive, it is marked so that releaseSocket()
+     * parks it on the selector instead of closing it.
+     */
+    public boolean processKeepAlive(WinstoneRequest request,
+            WinstoneResponse response, InputStream inSocket)
+            throws IOException, InterruptedException {
+        NioConnection conn = (NioConnection) this.currentConnection.get();
+        if (conn != null) {
+            conn.setKeepAlive(super.processKeepAlive(request, response, inSocket));
+        }
+        return false;
+    }
+
+    /**
+     * Parks keep-alive connections back on the selector, and closes the rest.
+     */
+    public void releaseSocket(Socket socket, InputStream inSocket,
+            OutputStream outSocket) throws IOException {
+        this.currentConnection.set(null);
+        NioConnection conn = (NioConnection) this.connections.get(socket);
+        if ((conn != null) && conn.isKeepAlive() && !this.interrupted) {
+            Logger.log(Logger.FULL_DEBUG, NIO_RESOURCES,
+                    "NioHttpListener.ParkingConnection", "" + conn.getChannel());
+            try {
+                conn.getChannel().configureBlocking(false);
+            } catch (IOException err) {
+                closeConnection(conn);
+                return;
+            }
+            synchronized (this.parkedSemaphore) {
+                this.parkedConnections.add(conn);
+            }
+            this.selector.wakeup();
+        } else {
+            if (conn != null) {
+                this.connections.remove(socket);
+            }
+            super.releaseSocket(socket, inSocket, outSocket);
+        }
+    }
+}
@@ -77,6 +77,14 @@ public class HttpsListener extends HttpListener {
         return "https";
     }
 
+    /**
+     * Writing a response would mean doing the SSL handshake on the accept
+     * thread, so just close.
+     */
+    public void rejectSocket(Socket socket) throws IOException {
+        socket.close();
+    }
+
     /**
      * Gets a server socket - this gets as SSL socket instead of the standard
      * socket returned in the base class.
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone.testApplication.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import winstone.AsyncContext;
+
+/**
+ * Test servlet that suspends the request and writes the response from
+ * another thread a little later (200ms, or the delay parameter in ms).
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class AsyncServlet extends HttpServlet {
+    protected void doGet(HttpServletRequest request,
+            final HttpServletResponse response) throws ServletException, IOException {
+        String delayParam = request.getParameter("delay");
+        final long delay = (delayParam == null) ? 200 : Long.parseLong(delayParam);
+        final AsyncContext async = AsyncContext.startAsync(request);
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(delay);
+                    ServletOutputStream out = response.getOutputStream();
+                    out.println("<html><body>Completed asynchronously</body></html>");
+                } catch (Throwable err) {
+                    err.printStackTrace();
+                } finally {
+                    async.complete();
+                }
+            }
+        }.start();
+    }
+}
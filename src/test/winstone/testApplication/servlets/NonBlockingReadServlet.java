@@ -0,0 +1,68 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone.testApplication.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import winstone.AsyncContext;
+import winstone.ReadListener;
+import winstone.WinstoneInputStream;
+
+/**
+ * Test servlet that reads the request body with non-blocking io, and
+ * returns the number of bytes read, after the number of padding bytes asked
+ * for in the query string (eg ?pad=1000), if any.
+ *
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class NonBlockingReadServlet extends HttpServlet {
+    protected void doPost(final HttpServletRequest request,
+            final HttpServletResponse response) throws ServletException, IOException {
+        final AsyncContext async = AsyncContext.startAsync(request);
+        final WinstoneInputStream in = (WinstoneInputStream) request.getInputStream();
+        in.setReadListener(new ReadListener() {
+            private byte buffer[] = new byte[1024];
+            private int count;
+
+            public void onDataAvailable() throws IOException {
+                while (in.isReady() && !in.isFinished()) {
+                    int read = in.read(this.buffer);
+                    if (read == -1) {
+                        break;
+                    }
+                    this.count += read;
+                }
+            }
+
+            public void onAllDataRead() throws IOException {
+                String query = request.getQueryString();
+                if ((query != null) && query.startsWith("pad=")) {
+                    byte padding[] = new byte[8192];
+                    java.util.Arrays.fill(padding, (byte) 'x');
+                    for (int left = Integer.parseInt(query.substring(4)); left > 0;
+                            left -= padding.length) {
+                        response.getOutputStream().write(padding, 0,
+                                Math.min(left, padding.length));
+                    }
+                }
+                response.getOutputStream().println("<html><body>Read "
+                        + this.count + " bytes</body></html>");
+                async.complete();
+            }
+
+            public void onError(Throwable err) {
+                err.printStackTrace();
+            }
+        });
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2003-2006 Rick Knowles <winstone-devel at lists sourceforge net>
+ * Distributed under the terms of either:
+ * - the common development and distribution license (CDDL), v1.0; or
+ * - the GNU Lesser General Public License, v2.1 or later
+ */
+package winstone.testApplication.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Test servlet that counts the requests made in the caller's session, and
+ * returns the count and the session id. A delay parameter makes it sleep for
+ * that many milliseconds before getting the session.
+ * 
+ * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
+ * @version $Id$
+ */
+public class SessionCountServlet extends HttpServlet {
+    protected void doGet(HttpServletRequest request,
+            HttpServletResponse response) throws ServletException, IOException {
+        String delay = request.getParameter("delay");
+        if (delay != null) {
+            try {
+                Thread.sleep(Long.parseLong(delay));
+            } catch (InterruptedException err) {
+            }
+        }
+        HttpSession session = request.getSession(true);
+        Integer count = (Integer) session.getAttribute("count");
+        count = new Integer(count == null ? 1 : count.intValue() + 1);
+        session.setAttribute("count", count);
+        ServletOutputStream out = response.getOutputStream();
+        out.println("session " + session.getId() + " count " + count);
+        out.flush();
+    }
+}
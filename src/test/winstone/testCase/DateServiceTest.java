@@ -0,0 +1,50 @@
+package winstone.testCase;
+
+import junit.framework.TestCase;
+import winstone.DateService;
+
+public class DateServiceTest extends TestCase {
+    public DateServiceTest(String name) {
+        super(name);
+    }
+
+    // Sun, 06 Nov 1994 08:49:37 GMT, the example date from rfc 2616
+    private static final long EXAMPLE_DATE = 784111777000L;
+
+    public void testRfc1123() throws Exception {
+        assertEquals("RFC 1123", EXAMPLE_DATE,
+                DateService.parseHttpDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals("RFC 1123 with spaces around it", EXAMPLE_DATE,
+                DateService.parseHttpDate("  Sun, 06 Nov 1994 08:49:37 GMT "));
+        assertEquals("Round trip", EXAMPLE_DATE,
+                DateService.parseHttpDate(DateService.formatHttpDate(EXAMPLE_DATE)));
+        assertEquals("Format", "Sun, 06 Nov 1994 08:49:37 GMT",
+                DateService.formatHttpDate(EXAMPLE_DATE + 999));
+    }
+
+    public void testRfc850() throws Exception {
+        assertEquals("RFC 850", EXAMPLE_DATE,
+                DateService.parseHttpDate("Sunday, 06-Nov-94 08:49:37 GMT"));
+        // Two digit years from 70 on are 1970 onwards, the rest 2000 onwards
+        assertEquals("RFC 850 after 2000", 1163494177000L,
+                DateService.parseHttpDate("Tuesday, 14-Nov-06 08:49:37 GMT"));
+        assertEquals("RFC 850 in 1970", 0L,
+                DateService.parseHttpDate("Thursday, 01-Jan-70 00:00:00 GMT"));
+    }
+
+    public void testAsctime() throws Exception {
+        assertEquals("asctime with a space padded day", EXAMPLE_DATE,
+                DateService.parseHttpDate("Sun Nov  6 08:49:37 1994"));
+        assertEquals("asctime with a two digit day", EXAMPLE_DATE + 10 * 86400000L,
+                DateService.parseHttpDate("Wed Nov 16 08:49:37 1994"));
+    }
+
+    public void testInvalidDates() throws Exception {
+        assertEquals("Garbage", -1, DateService.parseHttpDate("not a date"));
+        assertEquals("Empty", -1, DateService.parseHttpDate(""));
+        assertEquals("Wrong day of the week", -1,
+                DateService.parseHttpDate("Mon, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals("asctime with an unpadded day", -1,
+                DateService.parseHttpDate("Sun Nov 6 08:49:37 1994"));
+    }
+}
@@ -6,10 +6,22 @@
  */
 package winstone.testCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -84,6 +96,7 @@ public class HttpConnectorTest extends TestCase {
         args.put("webroot", "target/testwebapp");
         args.put("prefix", "/examples");
         args.put("httpPort", "10004");
+        args.put("httpAcceptorThreads", "3");
         args.put("ajp13Port", "-1");
         args.put("controlPort", "-1");
         args.put("debug", "8");
@@ -138,4 +151,940 @@ public class HttpConnectorTest extends TestCase {
         winstone.shutdown();
         Thread.sleep(500);
     }
+
+    /**
+     * Test the virtual thread handler mode (falls back to pooled handlers on
+     * JVMs without virtual threads)
+     */
+    public void testVirtualThreadConnection() throws IOException, 
+            SAXException, InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10007");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("handlerMode", "virtual");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        // Check for a simple connection, then a second on a new handler
+        WebConversation wc = new WebConversation();
+        WebRequest wreq = new GetMethodWebRequest(
+                "http://localhost:10007/examples/CountRequestsServlet");
+        for (int n = 0; n < 2; n++) {
+            WebResponse wresp = wc.getResponse(wreq);
+            InputStream content = wresp.getInputStream();
+            assertTrue("Loading CountRequestsServlet", content.available() > 0);
+            content.close();
+        }
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test that a saturated handler pool answers with a 503 under the 503
+     * reject policy
+     */
+    public void testOverloadRejection() throws IOException,
+            InterruptedException {
+        // Initialise container with one handler and a one-socket queue
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10008");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("handlerCountStartup", "1");
+        args.put("handlerCountMax", "1");
+        args.put("handlerQueueSize", "1");
+        args.put("handlerRejectPolicy", "503");
+        args.put("handlerRetryAfter", "7");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        // The first socket holds the only handler, the second is queued
+        Socket busy = new Socket("localhost", 10008);
+        Socket queued = new Socket("localhost", 10008);
+        Socket rejected = new Socket("localhost", 10008);
+        rejected.setSoTimeout(5000);
+        InputStream in = rejected.getInputStream();
+        StringBuffer response = new StringBuffer();
+        for (int read = in.read(); read != -1; read = in.read()) {
+            response.append((char) read);
+        }
+        assertTrue("503 status", response.toString().startsWith("HTTP/1.1 503 "));
+        assertTrue("Retry-After header", response.toString().indexOf("Retry-After: 7\r\n") != -1);
+        rejected.close();
+        queued.close();
+        busy.close();
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test the nio connector, sending two pipelined requests followed by a
+     * third on the same (parked) connection
+     */
+    public void testNioKeepAliveConnection() throws IOException,
+            InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "-1");
+        args.put("httpNioPort", "10006");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        String request = "GET /examples/ HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n";
+        Socket socket = new Socket("localhost", 10006);
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        out.write((request + request).getBytes("8859_1"));
+        out.flush();
+        assertEquals("Pipelined responses", 2, countResponses(in, 2));
+        Thread.sleep(200);
+        out.write(request.getBytes("8859_1"));
+        out.flush();
+        assertEquals("Response after parking", 1, countResponses(in, 1));
+        socket.close();
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test that a response flushed before its length is known is chunked, and
+     * that the connection stays open for a second request
+     */
+    public void testChunkedResponse() throws IOException, InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10009");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        // CountRequestsServlet flushes its output, so commits without a length
+        String request = "GET /examples/CountRequestsServlet HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n";
+        Socket socket = new Socket("localhost", 10009);
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        out.write((request + request).getBytes("8859_1"));
+        out.flush();
+        String received = readUntil(in, "0\r\n\r\n", 2);
+        assertTrue("Chunked header", received.indexOf("Transfer-Encoding: chunked") != -1);
+        assertTrue("Second response", received.indexOf("HTTP/1.1 200", 1) != -1);
+        assertTrue("Terminating chunk", received.endsWith("</html>\r\n\r\n0\r\n\r\n"));
+        socket.close();
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test that a chunked request body is decoded (and discarded) exactly, so
+     * the pipelined request after it on the same connection is still served
+     */
+    public void testChunkedRequest() throws IOException, InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10010");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        String post = "POST /examples/ HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nhello\r\n"
+                + "7;ext=1\r\n, world\r\n"
+                + "0\r\nX-Trailer: yes\r\n\r\n";
+        String get = "GET /examples/ HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n";
+        Socket socket = new Socket("localhost", 10010);
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        out.write((post + get).getBytes("8859_1"));
+        out.flush();
+        String received = readUntil(in, "HTTP/1.1 ", 2);
+        int second = received.indexOf("HTTP/1.1 ", 1);
+        assertTrue("Second response", second != -1);
+        assertTrue("Request after chunked body", 
+                received.substring(second).startsWith("HTTP/1.1 200"));
+        socket.close();
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test that a suspended request is finished by the servlet's own thread,
+     * and that the connection carries on with the next request afterwards
+     */
+    public void testAsyncRequest() throws IOException, InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10011");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        String async = "GET /examples/AsyncServlet HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n";
+        String get = "GET /examples/CountRequestsServlet HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n";
+        Socket socket = new Socket("localhost", 10011);
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        out.write((async + get).getBytes("8859_1"));
+        out.flush();
+        String received = readUntil(in, "</html>", 2);
+        assertTrue("Async response", received.startsWith("HTTP/1.1 200"));
+        int asyncBody = received.indexOf("Completed asynchronously");
+        int second = received.indexOf("HTTP/1.1 ", 1);
+        assertTrue("Async body", asyncBody != -1);
+        assertTrue("Second response after async", second > asyncBody);
+        assertTrue("Request after async", 
+                received.substring(second).startsWith("HTTP/1.1 200"));
+        socket.close();
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test that suspended async requests don't count against the request
+     * pool limit, so more of them can wait than the limit allows while new
+     * requests are still served
+     */
+    public void testManySuspendedRequests() throws IOException, InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10024");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("handlerCountMax", "50");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        // The pool limit is 1000 requests for up to 1000 handlers
+        byte async[] = ("GET /examples/AsyncServlet?delay=30000 HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n").getBytes("8859_1");
+        Socket suspended[] = new Socket[1050];
+        try {
+            for (int n = 0; n < suspended.length; n++) {
+                suspended[n] = new Socket("localhost", 10024);
+                suspended[n].getOutputStream().write(async);
+            }
+            Thread.sleep(2000);
+
+            Socket socket = new Socket("localhost", 10024);
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET /examples/CountRequestsServlet HTTP/1.1\r\n"
+                    + "Host: localhost\r\nConnection: close\r\n\r\n").getBytes("8859_1"));
+            String received = readUntil(socket.getInputStream(), "</html>", 1);
+            assertTrue("Request served", received.startsWith("HTTP/1.1 200"));
+            socket.close();
+        } finally {
+            for (int n = 0; n < suspended.length; n++) {
+                if (suspended[n] != null) {
+                    suspended[n].close();
+                }
+            }
+            winstone.shutdown();
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * Test that a body arriving in pieces is read by non-blocking callbacks
+     * on the nio connector, and that the connection goes back to keep-alive
+     * afterwards
+     */
+    /**
+     * Test that connections get closed after each request once the handler
+     * pool is near its limit
+     */
+    public void testKeepAliveUnderLoad() throws IOException, InterruptedException {
+        // Initialise container, with the current request's handler alone
+        // enough to reach the close load
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10013");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("handlerCountStartup", "1");
+        args.put("handlerCountMax", "2");
+        args.put("handlerKeepAliveCloseLoad", "50");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        String get = "GET /examples/CountRequestsServlet HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n";
+        Socket socket = new Socket("localhost", 10013);
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        out.write((get + get).getBytes("8859_1"));
+        out.flush();
+        String received = readUntil(in, "</html>", 1);
+        assertTrue("First response", received.startsWith("HTTP/1.1 200"));
+        assertTrue("Connection close header", 
+                received.toLowerCase().indexOf("connection: close") != -1);
+        StringBuffer rest = new StringBuffer();
+        for (int ch = in.read(); ch != -1; ch = in.read()) {
+            rest.append((char) ch);
+        }
+        assertTrue("Response after close", rest.toString().indexOf("HTTP/1.1") == -1);
+        socket.close();
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test that shutting down waits for a request in progress to finish
+     */
+    public void testShutdownDrain() throws IOException, InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10014");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        // The async servlet takes a while to finish, so shut down while it's
+        // still in progress
+        String async = "GET /examples/AsyncServlet HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n";
+        Socket socket = new Socket("localhost", 10014);
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        out.write(async.getBytes("8859_1"));
+        out.flush();
+        Thread.sleep(50);
+        winstone.shutdown();
+        assertTrue("Shut down before the response was sent", in.available() > 0);
+        String received = readUntil(in, "</html>", 1);
+        assertTrue("Response after shutdown", received.startsWith("HTTP/1.1 200"));
+        assertTrue("Async body", received.indexOf("Completed asynchronously") != -1);
+        socket.close();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test that a webapp reload swaps in a new instance without any requests
+     * failing in the meantime
+     */
+    public void testReloadWebApp() throws IOException, SAXException,
+            InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10015");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "10016");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        WebConversation wc = new WebConversation();
+        WebRequest wreq = new GetMethodWebRequest(
+                "http://localhost:10015/examples/CountRequestsServlet");
+        int count = 0;
+        for (int n = 0; n < 3; n++) {
+            count = getRequestCount(wc.getResponse(wreq));
+        }
+
+        // Ask for a reload, and keep sending requests until the count starts
+        // again on the new instance of the servlet
+        Socket control = new Socket("localhost", 10016);
+        OutputStream out = control.getOutputStream();
+        out.write(Launcher.RELOAD_TYPE);
+        ObjectOutputStream objOut = new ObjectOutputStream(out);
+        objOut.writeUTF("localhost");
+        objOut.writeUTF("/examples");
+        objOut.close();
+        control.close();
+        boolean reloaded = false;
+        for (int n = 0; (n < 100) && !reloaded; n++) {
+            WebResponse wresp = wc.getResponse(wreq);
+            assertEquals("Response during reload", 200, wresp.getResponseCode());
+            int newCount = getRequestCount(wresp);
+            reloaded = (newCount < count);
+            count = newCount;
+            Thread.sleep(50);
+        }
+        assertTrue("Webapp reloaded", reloaded);
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Reloads the webapp while requests in the old instance are still
+     * changing a session and creating another, and checks that both reach
+     * the new instance
+     */
+    public void testReloadKeepsSessionChanges() throws IOException,
+            InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10022");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "10023");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        final String existing[] = getSessionCount(10022, null, 0);
+        assertEquals("First count", "1", existing[1]);
+        final String during[][] = new String[2][];
+        Thread slowRequests[] = new Thread[2];
+        for (int n = 0; n < slowRequests.length; n++) {
+            final int index = n;
+            slowRequests[n] = new Thread() {
+                public void run() {
+                    try {
+                        during[index] = getSessionCount(10022, 
+                                index == 0 ? existing[0] : null, 1500);
+                    } catch (IOException err) {
+                    }
+                }
+            };
+            slowRequests[n].start();
+        }
+        Thread.sleep(300);
+
+        Socket control = new Socket("localhost", 10023);
+        OutputStream out = control.getOutputStream();
+        out.write(Launcher.RELOAD_TYPE);
+        ObjectOutputStream objOut = new ObjectOutputStream(out);
+        objOut.writeUTF("localhost");
+        objOut.writeUTF("/examples");
+        objOut.close();
+        control.close();
+        for (int n = 0; n < slowRequests.length; n++) {
+            slowRequests[n].join();
+        }
+        assertEquals("Changed during reload", "2", during[0][1]);
+        assertEquals("Created during reload", "1", during[1][1]);
+
+        // Give the reload time to finish taking over the sessions
+        Thread.sleep(1000);
+        assertEquals("Changed session after reload", "3", 
+                getSessionCount(10022, existing[0], 0)[1]);
+        assertEquals("Created session after reload", "2", 
+                getSessionCount(10022, during[1][0], 0)[1]);
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Requests the session count servlet, and returns the session id and
+     * count it sends back
+     */
+    private static String[] getSessionCount(int port, String sessionId, int delay)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:"
+                + port + "/examples/SessionCountServlet?delay=" + delay).openConnection();
+        if (sessionId != null) {
+            conn.setRequestProperty("Cookie", "JSESSIONID=" + sessionId);
+        }
+        String text = new String(readFully(conn.getInputStream()), "8859_1").trim();
+        int countStart = text.indexOf(" count ");
+        return new String[] { text.substring("session ".length(), countStart),
+                text.substring(countStart + " count ".length()) };
+    }
+
+    /**
+     * Downloads a static file too big for the cache twice, so it is sent with
+     * transferTo, and checks the bytes and that the connection carries on
+     */
+    public void testLargeStaticFile() throws IOException, InterruptedException {
+        File file = new File("target/testwebapp/transfer.bin");
+        byte content[] = new byte[200000];
+        for (int n = 0; n < content.length; n++)
+            content[n] = (byte) (n % 251);
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(content);
+        fileOut.close();
+
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10017");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        try {
+            for (int n = 0; n < 2; n++) {
+                HttpURLConnection conn = (HttpURLConnection) new URL(
+                        "http://localhost:10017/examples/transfer.bin").openConnection();
+                assertEquals("Status", 200, conn.getResponseCode());
+                assertEquals("Content length", content.length, conn.getContentLength());
+                assertTrue("Content of download " + n, 
+                        Arrays.equals(content, readFully(conn.getInputStream())));
+            }
+        } finally {
+            file.delete();
+            winstone.shutdown();
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * Serves a static file that has a gzipped copy next to it, checking the
+     * copy goes to clients that accept gzip with its own ETag, and that the
+     * ETag works for a conditional request
+     */
+    public void testPrecompressedStaticFile() throws IOException, InterruptedException {
+        File file = new File("target/testwebapp/sidecar.txt");
+        File gzipped = new File("target/testwebapp/sidecar.txt.gz");
+        byte content[] = "Served from the gzipped copy next to this file".getBytes("8859_1");
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(content);
+        fileOut.close();
+        fileOut = new FileOutputStream(gzipped);
+        GZIPOutputStream gzipOut = new GZIPOutputStream(fileOut);
+        gzipOut.write(content);
+        gzipOut.close();
+
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10027");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        try {
+            URL url = new URL("http://localhost:10027/examples/sidecar.txt");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            assertEquals("Plain status", 200, conn.getResponseCode());
+            assertNull("Plain encoding", conn.getHeaderField("Content-Encoding"));
+            assertEquals("Vary", "Accept-Encoding", conn.getHeaderField("Vary"));
+            String plainETag = conn.getHeaderField("ETag");
+            assertTrue("Plain content", Arrays.equals(content, readFully(conn.getInputStream())));
+
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals("Gzipped status", 200, conn.getResponseCode());
+            assertEquals("Gzipped encoding", "gzip", conn.getHeaderField("Content-Encoding"));
+            String gzipETag = conn.getHeaderField("ETag");
+            assertTrue("Gzipped ETag " + gzipETag, gzipETag.endsWith("-gzip\""));
+            assertFalse("Same ETags", gzipETag.equals(plainETag));
+            assertTrue("Gzipped content", Arrays.equals(content, 
+                    readFully(new GZIPInputStream(conn.getInputStream()))));
+
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            conn.setRequestProperty("If-None-Match", gzipETag);
+            assertEquals("Conditional status", 304, conn.getResponseCode());
+        } finally {
+            file.delete();
+            gzipped.delete();
+            winstone.shutdown();
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * Asks for one range and then two of a static file, checking the second
+     * comes back as multipart/byteranges
+     */
+    public void testRangeRequests() throws IOException, InterruptedException {
+        File file = new File("target/testwebapp/ranges.bin");
+        byte content[] = new byte[200000];
+        for (int n = 0; n < content.length; n++)
+            content[n] = (byte) ('a' + (n % 26));
+        FileOutputStream fileOut = new FileOutputStream(file);
+        fileOut.write(content);
+        fileOut.close();
+
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10018");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        try {
+            Socket socket = new Socket("localhost", 10018);
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(("GET /examples/ranges.bin HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Range: bytes=150000-150009\r\n\r\n").getBytes("8859_1"));
+            out.flush();
+            String received = readUntil(in, "ghijklmnop", 1);
+            assertTrue("Single range status", received.startsWith("HTTP/1.1 206"));
+            assertTrue("Content-Range", received.indexOf(
+                    "Content-Range: bytes 150000-150009/200000") != -1);
+            assertTrue("Range body", received.endsWith("\r\n\r\nghijklmnop"));
+
+            out.write(("GET /examples/ranges.bin HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Range: bytes=0-2,-3\r\n\r\n").getBytes("8859_1"));
+            out.flush();
+            received = readUntil(in, "--\r\n", 1);
+            assertTrue("Multiple range status", received.startsWith("HTTP/1.1 206"));
+            int boundaryPos = received.indexOf("multipart/byteranges; boundary=");
+            assertTrue("Multipart content type", boundaryPos != -1);
+            String boundary = received.substring(boundaryPos + 31, received.indexOf("\r\n", boundaryPos));
+            assertTrue("First part", received.indexOf("--" + boundary + "\r\n"
+                    + "Content-Range: bytes 0-2/200000\r\n\r\nabc\r\n") != -1);
+            assertTrue("Second part", received.indexOf("--" + boundary + "\r\n"
+                    + "Content-Range: bytes 199997-199999/200000\r\n\r\n" 
+                    + new String(content, 199997, 3, "8859_1") + "\r\n--" + boundary + "--\r\n") != -1);
+            socket.close();
+        } finally {
+            file.delete();
+            winstone.shutdown();
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * Fetches a small static file (compressed whole, so sent with a length)
+     * and a big one (compressed as it streams, so chunked) with gzip, then
+     * the small one again without
+     */
+    public void testGzipCompression() throws IOException, InterruptedException {
+        StringBuffer css = new StringBuffer();
+        for (int n = 0; n < 200; n++)
+            css.append(".rule").append(n).append(" { color: red; }\n");
+        byte small[] = css.toString().getBytes("8859_1");
+        byte big[] = new byte[100000];
+        for (int n = 0; n < big.length; n++)
+            big[n] = small[n % small.length];
+        File smallFile = new File("target/testwebapp/gzip.css");
+        File bigFile = new File("target/testwebapp/gzipBig.css");
+        FileOutputStream fileOut = new FileOutputStream(smallFile);
+        fileOut.write(small);
+        fileOut.close();
+        fileOut = new FileOutputStream(bigFile);
+        fileOut.write(big);
+        fileOut.close();
+
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10019");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("gzipCompression", "true");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(
+                    "http://localhost:10019/examples/gzip.css").openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals("Small encoding", "gzip", conn.getHeaderField("Content-Encoding"));
+            assertEquals("Small vary", "Accept-Encoding", conn.getHeaderField("Vary"));
+            assertTrue("Small compressed length", 
+                    (conn.getContentLength() > 0) && (conn.getContentLength() < small.length));
+            assertTrue("Small content", Arrays.equals(small, 
+                    readFully(new GZIPInputStream(conn.getInputStream()))));
+
+            conn = (HttpURLConnection) new URL(
+                    "http://localhost:10019/examples/gzipBig.css").openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals("Big encoding", "gzip", conn.getHeaderField("Content-Encoding"));
+            assertEquals("Big chunked", "chunked", conn.getHeaderField("Transfer-Encoding"));
+            assertTrue("Big content", Arrays.equals(big, 
+                    readFully(new GZIPInputStream(conn.getInputStream()))));
+
+            conn = (HttpURLConnection) new URL(
+                    "http://localhost:10019/examples/gzip.css").openConnection();
+            assertNull("Not accepted", conn.getHeaderField("Content-Encoding"));
+            assertEquals("Uncompressed length", small.length, conn.getContentLength());
+            assertTrue("Uncompressed content", Arrays.equals(small, readFully(conn.getInputStream())));
+        } finally {
+            smallFile.delete();
+            bigFile.delete();
+            winstone.shutdown();
+            Thread.sleep(500);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte buffer[] = new byte[8192];
+        int read = in.read(buffer);
+        while (read != -1) {
+            received.write(buffer, 0, read);
+            read = in.read(buffer);
+        }
+        in.close();
+        return received.toByteArray();
+    }
+
+    private static int getRequestCount(WebResponse wresp) throws IOException {
+        String text = wresp.getText();
+        int start = text.indexOf("via GET ") + 8;
+        return Integer.parseInt(text.substring(start, text.indexOf(" times", start)));
+    }
+
+    public void testNonBlockingRead() throws IOException, InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "-1");
+        args.put("httpNioPort", "10012");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        String post = "POST /examples/NonBlockingReadServlet HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Length: 10\r\n\r\n";
+        String get = "GET /examples/CountRequestsServlet HTTP/1.1\r\n"
+                + "Host: localhost\r\n\r\n";
+        Socket socket = new Socket("localhost", 10012);
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        out.write((post + "hello").getBytes("8859_1"));
+        out.flush();
+        Thread.sleep(300);
+        out.write(("world" + get).getBytes("8859_1"));
+        out.flush();
+        String received = readUntil(in, "</html>", 2);
+        assertTrue("Non-blocking read", received.indexOf("Read 10 bytes") != -1);
+        int second = received.indexOf("HTTP/1.1 ", 1);
+        assertTrue("Second response", second != -1);
+        assertTrue("Request after non-blocking read", 
+                received.substring(second).startsWith("HTTP/1.1 200"));
+        socket.close();
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test that a big response written in non-blocking mode to a client that
+     * isn't reading yet (so more is waiting than the limit) still arrives
+     * whole once the client reads
+     */
+    public void testNonBlockingBigWrite() throws IOException, InterruptedException {
+        // Initialise container
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "-1");
+        args.put("httpNioPort", "10021");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress("localhost", 10021));
+        socket.setSoTimeout(5000);
+        OutputStream out = socket.getOutputStream();
+        out.write(("POST /examples/NonBlockingReadServlet?pad=4000000 HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Connection: close\r\n"
+                + "Content-Length: 10\r\n\r\n"
+                + "helloworld").getBytes("8859_1"));
+        out.flush();
+        Thread.sleep(500);
+        String received = new String(readFully(socket.getInputStream()), "8859_1");
+        int bodyStart = received.indexOf("\r\n\r\n") + 4;
+        assertTrue("Status", received.startsWith("HTTP/1.1 200"));
+        assertTrue("Padding", received.indexOf("xxxxxxxx", bodyStart) != -1);
+        assertTrue("Whole body", received.length() - bodyStart > 4000000);
+        assertTrue("End of body", received.indexOf("Read 10 bytes</body></html>") != -1);
+        socket.close();
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Test that the nio selector thread doesn't wait for a handler when the
+     * pool is saturated, even under the block policy, and that the waiting
+     * connection is served once a handler comes free
+     */
+    public void testNioSaturatedPool() throws IOException, InterruptedException {
+        // Initialise container with one handler and a one-socket queue
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "-1");
+        args.put("httpNioPort", "10020");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("handlerCountStartup", "1");
+        args.put("handlerCountMax", "1");
+        args.put("handlerQueueSize", "1");
+        args.put("handlerRejectPolicy", "block");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+
+        // The first request (a POST, so a 405) holds the only handler while
+        // its body is discarded, the second is queued and the third is left with the selector
+        String get = "GET /examples/CountRequestsServlet HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Connection: close\r\n\r\n";
+        Socket busy = new Socket("localhost", 10020);
+        busy.setSoTimeout(5000);
+        busy.getOutputStream().write(("POST /examples/CountRequestsServlet HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Connection: close\r\n"
+                + "Content-Length: 10\r\n\r\n").getBytes("8859_1"));
+        Thread.sleep(200);
+        Socket queued = new Socket("localhost", 10020);
+        queued.setSoTimeout(5000);
+        queued.getOutputStream().write(get.getBytes("8859_1"));
+        Thread.sleep(200);
+        Socket waiting = new Socket("localhost", 10020);
+        waiting.setSoTimeout(5000);
+        waiting.getOutputStream().write(get.getBytes("8859_1"));
+        Thread.sleep(300);
+
+        Thread selector = null;
+        Thread threads[] = new Thread[Thread.activeCount() + 10];
+        int count = Thread.enumerate(threads);
+        for (int n = 0; n < count; n++) {
+            if (threads[n].getName().equals("ConnectorThread:[httpNio-10020]")) {
+                selector = threads[n];
+            }
+        }
+        assertNotNull("Selector thread", selector);
+        assertEquals("Selector thread state", Thread.State.RUNNABLE, selector.getState());
+
+        // Finishing the first request frees the handler for the others
+        busy.getOutputStream().write("0123456789".getBytes("8859_1"));
+        assertTrue("Busy response", readUntil(busy.getInputStream(), "</html>", 1)
+                .startsWith("HTTP/1.1 405"));
+        assertEquals("Queued response", 1, countResponses(queued.getInputStream(), 1));
+        assertEquals("Waiting response", 1, countResponses(waiting.getInputStream(), 1));
+        busy.close();
+        queued.close();
+        waiting.close();
+        winstone.shutdown();
+        Thread.sleep(500);
+    }
+
+    /**
+     * Reads until the marker supplied has been seen the expected number of
+     * times, or the socket times out
+     */
+    private String readUntil(InputStream in, String marker, int expected) throws IOException {
+        StringBuffer received = new StringBuffer();
+        int found = 0;
+        byte buffer[] = new byte[1024];
+        try {
+            while (found < expected) {
+                int read = in.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                received.append(new String(buffer, 0, read, "8859_1"));
+                found = 0;
+                for (int pos = received.indexOf(marker); pos != -1; 
+                        pos = received.indexOf(marker, pos + 1)) {
+                    found++;
+                }
+            }
+        } catch (java.net.SocketTimeoutException err) {
+        }
+        return received.toString();
+    }
+
+    /**
+     * Reads until the expected number of status lines have been seen, or the
+     * socket times out
+     */
+    private int countResponses(InputStream in, int expected) throws IOException {
+        StringBuffer received = new StringBuffer();
+        int found = 0;
+        byte buffer[] = new byte[1024];
+        try {
+            while (found < expected) {
+                int read = in.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                received.append(new String(buffer, 0, read, "8859_1"));
+                found = 0;
+                for (int pos = received.indexOf("HTTP/1.1 200"); pos != -1; 
+                        pos = received.indexOf("HTTP/1.1 200", pos + 1)) {
+                    found++;
+                }
+            }
+        } catch (java.net.SocketTimeoutException err) {
+        }
+        return found;
+    }
 }
@@ -0,0 +1,255 @@
+package winstone.testCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import winstone.ConnectionInputBuffer;
+import winstone.HttpHeadParser;
+import winstone.Launcher;
+import winstone.Logger;
+import winstone.RequestHeadTooLargeException;
+import winstone.WinstoneRequest;
+
+public class HttpHeadParserTest extends TestCase {
+    public HttpHeadParserTest(String name) {
+        super(name);
+    }
+
+    public void testSimpleHead() throws Exception {
+        String head = "GET /index.html HTTP/1.1\r\nHost: localhost\r\n"
+                + "Accept: text/html\r\n\r\n";
+        ConnectionInputBuffer in = newBuffer(new ByteArrayInputStream(bytes(head)), 64);
+        WinstoneRequest req = new WinstoneRequest();
+        assertEquals("URI", "/index.html", readAndParse(in, req));
+        assertEquals("Method", "GET", req.getMethod());
+        assertEquals("Protocol", "HTTP/1.1", req.getProtocol());
+        assertEquals("Host", "localhost", req.getHeader("Host"));
+        assertEquals("Accept", "text/html", req.getHeader("Accept"));
+        assertEquals("Nothing left over", 0, in.getBufferedCount());
+    }
+
+    /**
+     * The head arrives a few bytes at a time, with the CRLFs split between
+     * reads, so the scan for the end of the head has to carry on where it
+     * left off
+     */
+    public void testHeadSplitAcrossReads() throws Exception {
+        String head = "POST /form HTTP/1.0\r\nContent-Length: 4\r\n"
+                + "Content-Type: text/plain\r\n\r\nbody";
+        for (int chunk = 1; chunk < 8; chunk++) {
+            ConnectionInputBuffer in = newBuffer(new TrickleInputStream(bytes(head), chunk), 16);
+            WinstoneRequest req = new WinstoneRequest();
+            assertEquals("URI in chunks of " + chunk, "/form", readAndParse(in, req));
+            assertEquals("Method in chunks of " + chunk, "POST", req.getMethod());
+            assertEquals("Protocol in chunks of " + chunk, "HTTP/1.0", req.getProtocol());
+            assertEquals("Content-Length in chunks of " + chunk, "4", req.getHeader("Content-Length"));
+            assertEquals("Content-Type in chunks of " + chunk, "text/plain", req.getHeader("Content-Type"));
+            assertEquals("Body in chunks of " + chunk, "body", readRest(in));
+        }
+    }
+
+    /**
+     * Lowercase methods, protocols and header names are matched to the
+     * constants, and unknown ones are still parsed
+     */
+    public void testCaseAndUnknownNames() throws Exception {
+        String head = "get /a HTTP/1.1\r\nhost: example.com\r\nCONTENT-TYPE: text/xml\r\n"
+                + "X-Custom-Thing: some value \r\n\r\n";
+        ConnectionInputBuffer in = newBuffer(new ByteArrayInputStream(bytes(head)), 256);
+        WinstoneRequest req = new WinstoneRequest();
+        assertEquals("URI", "/a", readAndParse(in, req));
+        assertEquals("Lowercase method", "GET", req.getMethod());
+        assertEquals("Lowercase host", "example.com", req.getHeader("Host"));
+        assertEquals("Uppercase name", "text/xml", req.getHeader("Content-Type"));
+        assertEquals("Unknown header", "some value", req.getHeader("x-custom-thing"));
+
+        head = "propfind /dav http/1.1\r\nDepth: 1\r\n\r\n";
+        in = newBuffer(new ByteArrayInputStream(bytes(head)), 256);
+        req = new WinstoneRequest();
+        assertEquals("Unknown method URI", "/dav", readAndParse(in, req));
+        assertEquals("Unknown method", "PROPFIND", req.getMethod());
+        assertEquals("Lowercase protocol", "HTTP/1.1", req.getProtocol());
+        assertEquals("Unknown method header", "1", req.getHeader("Depth"));
+    }
+
+    public void testBareLineFeeds() throws Exception {
+        String head = "GET /lf HTTP/1.1\nHost: localhost\nCookie: a=b\n\nGET";
+        ConnectionInputBuffer in = newBuffer(new ByteArrayInputStream(bytes(head)), 64);
+        WinstoneRequest req = new WinstoneRequest();
+        assertEquals("URI", "/lf", readAndParse(in, req));
+        assertEquals("Protocol", "HTTP/1.1", req.getProtocol());
+        assertEquals("Host", "localhost", req.getHeader("Host"));
+        assertEquals("Cookie", "a=b", req.getHeader("Cookie"));
+        assertEquals("Left over", 3, in.getBufferedCount());
+    }
+
+    /**
+     * Two pipelined requests arrive in one read: the second one is left in
+     * the buffer after the first is parsed, and parsed from there without
+     * another read
+     */
+    public void testPipelinedHeads() throws Exception {
+        String heads = "GET /first HTTP/1.1\r\nHost: one\r\n\r\n"
+                + "\r\nHEAD /second HTTP/1.1\r\nHost: two\r\n\r\n";
+        TrickleInputStream socket = new TrickleInputStream(bytes(heads), heads.length());
+        ConnectionInputBuffer in = newBuffer(socket, 256);
+        WinstoneRequest req = new WinstoneRequest();
+        assertEquals("First URI", "/first", readAndParse(in, req));
+        assertEquals("First host", "one", req.getHeader("Host"));
+        assertTrue("Second head buffered", in.getBufferedCount() > 0);
+        assertTrue("Second head complete", in.findHeadEnd() != -1);
+
+        req = new WinstoneRequest();
+        assertEquals("Second URI", "/second", readAndParse(in, req));
+        assertEquals("Second method", "HEAD", req.getMethod());
+        assertEquals("Second host", "two", req.getHeader("Host"));
+        assertEquals("Nothing left over", 0, in.getBufferedCount());
+        assertEquals("Reads", 1, socket.readCount);
+    }
+
+    /**
+     * A head that never ends is read up to the maximum head size, then
+     * rejected with a RequestHeadTooLargeException (an IOException, so the
+     * listener can answer it rather than fail the handler), with the buffer
+     * grown to that size and no further
+     */
+    public void testHeadTooLarge() throws Exception {
+        StringBuffer head = new StringBuffer("GET /big HTTP/1.1\r\n");
+        while (head.length() <= ConnectionInputBuffer.MAX_HEAD_SIZE) {
+            head.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+        }
+        ConnectionInputBuffer in = newBuffer(new TrickleInputStream(
+                bytes(head.toString()), 1000), ConnectionInputBuffer.DEFAULT_BUFFER_SIZE);
+        try {
+            in.readHead();
+            fail("Head over the maximum size was accepted");
+        } catch (RequestHeadTooLargeException err) {
+        }
+        assertEquals("Buffer size", ConnectionInputBuffer.MAX_HEAD_SIZE, in.getBuffer().length);
+        assertEquals("Bytes buffered", ConnectionInputBuffer.MAX_HEAD_SIZE, in.getLimit());
+    }
+
+    public void testHeadJustUnderMaximum() throws Exception {
+        StringBuffer head = new StringBuffer("GET /big HTTP/1.1\r\n");
+        String header = "X-Padding: 0123456789012345678901234567890123456789\r\n";
+        while (head.length() + header.length() + 2 <= ConnectionInputBuffer.MAX_HEAD_SIZE) {
+            head.append(header);
+        }
+        head.append("\r\n");
+        ConnectionInputBuffer in = newBuffer(new TrickleInputStream(
+                bytes(head.toString()), 1000), ConnectionInputBuffer.DEFAULT_BUFFER_SIZE);
+        WinstoneRequest req = new WinstoneRequest();
+        assertEquals("URI", "/big", readAndParse(in, req));
+        assertNotNull("Padding", req.getHeader("X-Padding"));
+    }
+
+    /**
+     * Sends a head over the maximum to both listeners, and checks it gets a
+     * 431 rather than a reset, and that the server carries on
+     */
+    public void testHeadTooLargeResponse() throws Exception {
+        Map args = new HashMap();
+        args.put("webroot", "target/testwebapp");
+        args.put("prefix", "/examples");
+        args.put("httpPort", "10025");
+        args.put("httpNioPort", "10026");
+        args.put("ajp13Port", "-1");
+        args.put("controlPort", "-1");
+        args.put("debug", "8");
+        args.put("logThrowingLineNo", "true");
+        Logger.init(Logger.FULL_DEBUG, System.out, true);
+        Launcher winstone = new Launcher(args);
+        try {
+            StringBuffer head = new StringBuffer("GET /examples/CountRequestsServlet HTTP/1.1\r\n");
+            while (head.length() <= ConnectionInputBuffer.MAX_HEAD_SIZE + 1000) {
+                head.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+            }
+            head.append("\r\n");
+            int ports[] = new int[] { 10025, 10026 };
+            for (int n = 0; n < ports.length; n++) {
+                Socket socket = new Socket("localhost", ports[n]);
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(bytes(head.toString()));
+                String received = readRest(socket.getInputStream());
+                assertTrue("431 on port " + ports[n] + ": " + received,
+                        received.startsWith("HTTP/1.1 431 "));
+                assertTrue("Connection close on port " + ports[n],
+                        received.indexOf("Connection: close") != -1);
+                socket.close();
+
+                socket = new Socket("localhost", ports[n]);
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(bytes("GET /examples/CountRequestsServlet HTTP/1.1\r\n"
+                        + "Host: localhost\r\nConnection: close\r\n\r\n"));
+                assertTrue("Served after 431 on port " + ports[n],
+                        readRest(socket.getInputStream()).startsWith("HTTP/1.1 200"));
+                socket.close();
+            }
+        } finally {
+            winstone.shutdown();
+            Thread.sleep(500);
+        }
+    }
+
+    private static ConnectionInputBuffer newBuffer(InputStream socket, int size) {
+        ConnectionInputBuffer in = new ConnectionInputBuffer(size);
+        in.reset(socket);
+        return in;
+    }
+
+    private static String readAndParse(ConnectionInputBuffer in, WinstoneRequest req)
+            throws IOException {
+        int headEnd = in.readHead();
+        assertTrue("Head end found", headEnd != -1);
+        String uri = HttpHeadParser.parseHead(in.getBuffer(), in.getPosition(), headEnd, req);
+        in.consume(headEnd);
+        return uri;
+    }
+
+    private static String readRest(InputStream in) throws IOException {
+        StringBuffer rest = new StringBuffer();
+        for (int b = in.read(); b != -1; b = in.read()) {
+            rest.append((char) b);
+        }
+        return rest.toString();
+    }
+
+    private static byte[] bytes(String text) throws IOException {
+        return text.getBytes("8859_1");
+    }
+
+    /**
+     * Returns at most a few bytes from each read, like a slow socket
+     */
+    private static class TrickleInputStream extends InputStream {
+        private byte content[];
+        private int pos;
+        private int chunkSize;
+        int readCount;
+
+        TrickleInputStream(byte content[], int chunkSize) {
+            this.content = content;
+            this.chunkSize = chunkSize;
+        }
+
+        public int read() throws IOException {
+            return this.pos < this.content.length ? this.content[this.pos++] & 0xFF : -1;
+        }
+
+        public int read(byte b[], int off, int len) throws IOException {
+            if (this.pos == this.content.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(len, this.chunkSize), this.content.length - this.pos);
+            System.arraycopy(this.content, this.pos, b, off, count);
+            this.pos += count;
+            this.readCount++;
+            return count;
+        }
+    }
+}
@@ -7,9 +7,14 @@
 package winstone.testCase;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 import junit.framework.TestCase;
+import winstone.ByteRange;
+import winstone.ResponseCompression;
+import winstone.StaticResourceCache;
 import winstone.StaticResourceServlet;
 
 /**
@@ -49,4 +54,81 @@ public class StaticResourceServletTest extends TestCase {
                         new File(webroot, "/test/../WEB-INF/web.xml"), webroot)
                 .equals("/WEB-INF/web.xml"));
     }
+
+    public void testResourceCache() throws IOException {
+        File dir = File.createTempFile("winstoneCache", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            File small = writeFile(new File(dir, "small.css"), 100);
+            File other = writeFile(new File(dir, "other.js"), 100);
+            File big = writeFile(new File(dir, "big.png"), 300);
+            StaticResourceCache cache = new StaticResourceCache(200, 150);
+
+            StaticResourceCache.Entry entry = cache.get(small, small.getCanonicalPath(), "text/css");
+            assertNotNull("Small file not cached", entry);
+            assertEquals("Cached length", 100, entry.getContent().length);
+            assertEquals("ETag", StaticResourceCache.makeETag(100, small.lastModified()), entry.getETag());
+            assertEquals("Coded ETag", "\"64-3e8-gzip\"", StaticResourceCache.makeETag(100, 1000, "gzip"));
+            assertEquals("Uncoded ETag", "\"64-3e8\"", StaticResourceCache.makeETag(100, 1000, null));
+            assertSame("Second get not a hit", entry, cache.get(small, small.getCanonicalPath(), "text/css"));
+            assertEquals("Hit count", 1, cache.getHitCount());
+            assertNull("Big file cached", cache.get(big, big.getCanonicalPath(), "image/png"));
+
+            // Changing the file replaces the entry
+            writeFile(small, 120);
+            small.setLastModified(entry.getLastModified() + 5000);
+            StaticResourceCache.Entry changed = cache.get(small, small.getCanonicalPath(), "text/css");
+            assertEquals("Changed length", 120, changed.getContent().length);
+            assertFalse("ETag unchanged", changed.getETag().equals(entry.getETag()));
+
+            // Adding another file goes over the limit and evicts the small one
+            assertNotNull("Other file not cached", cache.get(other, other.getCanonicalPath(), "text/javascript"));
+            assertEquals("Entries after eviction", 1, cache.getEntryCount());
+            assertEquals("Size after eviction", 100, cache.getSize());
+        } finally {
+            File files[] = dir.listFiles();
+            for (int n = 0; n < files.length; n++)
+                files[n].delete();
+            dir.delete();
+        }
+    }
+
+    public void testParseRanges() {
+        long big = 5000000000L;
+        assertEquals("Single", "[0-99]", "" + ByteRange.parseRanges("bytes=0-99", 1000));
+        assertEquals("Open ended", "[900-999]", "" + ByteRange.parseRanges("bytes=900-", 1000));
+        assertEquals("Suffix", "[990-999]", "" + ByteRange.parseRanges("bytes=-10", 1000));
+        assertEquals("Suffix bigger than file", "[0-999]", "" + ByteRange.parseRanges("bytes=-5000", 1000));
+        assertEquals("End past the end", "[10-999]", "" + ByteRange.parseRanges("bytes=10-5000", 1000));
+        assertEquals("Merged and sorted", "[0-19, 50-59]", 
+                "" + ByteRange.parseRanges("bytes=50-59, 10-19,0-10", 1000));
+        assertEquals("Over 2GB", "[4000000000-" + (big - 1) + "]", 
+                "" + ByteRange.parseRanges("bytes=4000000000-", big));
+        assertEquals("Unsatisfiable", 0, ByteRange.parseRanges("bytes=1000-", 1000).size());
+        assertNull("Other unit", ByteRange.parseRanges("items=0-1", 1000));
+        assertNull("Backwards", ByteRange.parseRanges("bytes=20-10", 1000));
+        assertNull("Bad number", ByteRange.parseRanges("bytes=a-10", 1000));
+        List ranges = ByteRange.parseRanges("bytes=100-199", 1000);
+        assertEquals("Content-Range", "bytes 100-199/1000", 
+                ((ByteRange) ranges.get(0)).getContentRange(1000));
+    }
+
+    public void testEncodingQuality() {
+        assertEquals("No header", 0f, ResponseCompression.getEncodingQuality(null, "gzip"), 0);
+        assertEquals("Listed", 1f, ResponseCompression.getEncodingQuality("deflate, gzip", "gzip"), 0);
+        assertEquals("Not listed", 0f, ResponseCompression.getEncodingQuality("gzip, deflate", "br"), 0);
+        assertEquals("Q value", 0.5f, ResponseCompression.getEncodingQuality("br;q=0.5, gzip", "br"), 0);
+        assertEquals("Refused", 0f, ResponseCompression.getEncodingQuality("gzip;q=0", "gzip"), 0);
+        assertEquals("Star", 1f, ResponseCompression.getEncodingQuality("*", "br"), 0);
+        assertEquals("Star overridden", 0f, 
+                ResponseCompression.getEncodingQuality("*, br;q=0", "br"), 0);
+    }
+
+    private static File writeFile(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[length]);
+        out.close();
+        return file;
+    }
 }
@@ -0,0 +1,174 @@
+package winstone.testCase;
+
+import junit.framework.TestCase;
+import winstone.TimerWheel;
+
+public class TimerWheelTest extends TestCase {
+    public TimerWheelTest(String name) {
+        super(name);
+    }
+
+    public void testExpiryAndCancel() throws Exception {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        try {
+            final int fired[] = new int[1];
+            Runnable task = new Runnable() {
+                public void run() {
+                    synchronized (fired) {
+                        fired[0]++;
+                    }
+                }
+            };
+            TimerWheel.Timeout expiring = wheel.newTimeout(TimerWheel.READ, task);
+            TimerWheel.Timeout cancelled = wheel.newTimeout(TimerWheel.KEEP_ALIVE, task);
+
+            // Longer than a full turn of the wheel, so it has to wait a round
+            expiring.start(150);
+            cancelled.start(50);
+            assertEquals("Pending count", 2, wheel.getPendingCount());
+            cancelled.cancel();
+            assertEquals("Pending count after cancel", 1, wheel.getPendingCount());
+
+            Thread.sleep(80);
+            assertFalse("Expired too early", expiring.isExpired());
+            Thread.sleep(200);
+            assertTrue("Not expired", expiring.isExpired());
+            assertFalse("Cancelled timeout expired", cancelled.isExpired());
+            synchronized (fired) {
+                assertEquals("Tasks run", 1, fired[0]);
+            }
+            assertEquals("Read expiries", 1, wheel.getExpiredCount(TimerWheel.READ));
+            assertEquals("Keep-alive expiries", 0, wheel.getExpiredCount(TimerWheel.KEEP_ALIVE));
+            assertEquals("Pending count after expiry", 0, wheel.getPendingCount());
+
+            // Restarting clears the expiry
+            expiring.start(1000);
+            assertFalse("Still expired after restart", expiring.isExpired());
+            expiring.cancel();
+        } finally {
+            wheel.destroy();
+        }
+    }
+
+    /**
+     * Timeouts started once the tick count has gone round the wheel several
+     * times, and ones longer than several turns, still expire on time
+     */
+    public void testExpiryAcrossWrapAround() throws Exception {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        try {
+            final int fired[] = new int[1];
+            Runnable task = new Runnable() {
+                public void run() {
+                    synchronized (fired) {
+                        fired[0]++;
+                    }
+                }
+            };
+
+            // Let the wheel turn a few times first
+            Thread.sleep(300);
+            TimerWheel.Timeout shortTimeout = wheel.newTimeout(TimerWheel.READ, task);
+            TimerWheel.Timeout longTimeout = wheel.newTimeout(TimerWheel.WRITE, task);
+            shortTimeout.start(30);
+            longTimeout.start(350);
+
+            Thread.sleep(150);
+            assertTrue("Short timeout not expired", shortTimeout.isExpired());
+            assertFalse("Long timeout expired after a turn", longTimeout.isExpired());
+            Thread.sleep(150);
+            assertFalse("Long timeout expired too early", longTimeout.isExpired());
+            Thread.sleep(250);
+            assertTrue("Long timeout not expired", longTimeout.isExpired());
+            synchronized (fired) {
+                assertEquals("Tasks run", 2, fired[0]);
+            }
+            assertEquals("Pending count", 0, wheel.getPendingCount());
+        } finally {
+            wheel.destroy();
+        }
+    }
+
+    /**
+     * Restarting pushes the deadline back (or brings it forward), and only
+     * the most recent start counts
+     */
+    public void testRearming() throws Exception {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        try {
+            final int fired[] = new int[1];
+            Runnable task = new Runnable() {
+                public void run() {
+                    synchronized (fired) {
+                        fired[0]++;
+                    }
+                }
+            };
+            TimerWheel.Timeout timeout = wheel.newTimeout(TimerWheel.READ, task);
+
+            // Keep restarting it before it's due, as a busy connection would
+            for (int n = 0; n < 20; n++) {
+                timeout.start(60);
+                Thread.sleep(15);
+            }
+            assertFalse("Expired while being restarted", timeout.isExpired());
+            assertEquals("Pending count", 1, wheel.getPendingCount());
+            Thread.sleep(200);
+            assertTrue("Not expired once left alone", timeout.isExpired());
+
+            // A restart for sooner than the current deadline moves it forward
+            timeout.start(2000);
+            timeout.start(30);
+            Thread.sleep(150);
+            assertTrue("Shortened timeout not expired", timeout.isExpired());
+            synchronized (fired) {
+                assertEquals("Tasks run", 2, fired[0]);
+            }
+            assertEquals("Read expiries", 2, wheel.getExpiredCount(TimerWheel.READ));
+            assertEquals("Pending count after expiry", 0, wheel.getPendingCount());
+        } finally {
+            wheel.destroy();
+        }
+    }
+
+    /**
+     * Cancelling an expired timeout leaves it expired, and doesn't run the
+     * task again or stop it from being started again
+     */
+    public void testCancelAfterExpiry() throws Exception {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        try {
+            final int fired[] = new int[1];
+            Runnable task = new Runnable() {
+                public void run() {
+                    synchronized (fired) {
+                        fired[0]++;
+                    }
+                }
+            };
+            TimerWheel.Timeout timeout = wheel.newTimeout(TimerWheel.KEEP_ALIVE, task);
+            timeout.start(20);
+            Thread.sleep(150);
+            assertTrue("Not expired", timeout.isExpired());
+
+            timeout.cancel();
+            assertTrue("Cancel cleared the expiry", timeout.isExpired());
+            Thread.sleep(150);
+            synchronized (fired) {
+                assertEquals("Tasks run", 1, fired[0]);
+            }
+            assertEquals("Keep-alive expiries", 1, wheel.getExpiredCount(TimerWheel.KEEP_ALIVE));
+            assertEquals("Pending count", 0, wheel.getPendingCount());
+
+            timeout.start(20);
+            assertFalse("Still expired after restart", timeout.isExpired());
+            Thread.sleep(150);
+            assertTrue("Not expired after restart", timeout.isExpired());
+            synchronized (fired) {
+                assertEquals("Tasks run after restart", 2, fired[0]);
+            }
+        } finally {
+            wheel.destroy();
+        }
+    }
+}
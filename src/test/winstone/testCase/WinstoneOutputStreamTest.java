@@ -0,0 +1,66 @@
+package winstone.testCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import winstone.WinstoneOutputStream;
+import winstone.WinstoneRequest;
+import winstone.WinstoneResponse;
+
+public class WinstoneOutputStreamTest extends TestCase {
+    public WinstoneOutputStreamTest(String name) {
+        super(name);
+    }
+
+    /**
+     * Closing a chunked response sends the last data chunk and the
+     * terminating chunk in one write, and nothing written after that goes out
+     */
+    public void testLastChunkInClosingWrite() throws Exception {
+        WriteCountingOutputStream socket = new WriteCountingOutputStream();
+        WinstoneResponse rsp = new WinstoneResponse();
+        rsp.setProtocol("HTTP/1.1");
+        rsp.setRequest(new WinstoneRequest());
+        WinstoneOutputStream out = new WinstoneOutputStream(socket, false);
+        out.setResponse(rsp);
+        rsp.setOutputStream(out);
+
+        out.write("first".getBytes("8859_1"));
+        out.flush();
+        assertTrue("Chunked", rsp.isChunked());
+        int writesBeforeClose = socket.writeCount;
+        int bytesBeforeClose = socket.size();
+
+        out.write("last".getBytes("8859_1"));
+        rsp.finishBody();
+        out.write("ignored".getBytes("8859_1"));
+        out.flush();
+        out.finishResponse();
+        assertEquals("Writes for the last chunk", writesBeforeClose + 1, socket.writeCount);
+        String tail = new String(socket.toByteArray(), bytesBeforeClose,
+                socket.size() - bytesBeforeClose, "8859_1");
+        assertEquals("Last chunks", "4\r\nlast\r\n0\r\n\r\n", tail);
+    }
+
+    /**
+     * Counts the writes, as each one would be a separate socket write
+     */
+    private static class WriteCountingOutputStream extends ByteArrayOutputStream {
+        int writeCount;
+
+        public synchronized void write(int b) {
+            this.writeCount++;
+            super.write(b);
+        }
+
+        public synchronized void write(byte b[], int off, int len) {
+            this.writeCount++;
+            super.write(b, off, len);
+        }
+
+        public void write(byte b[]) throws IOException {
+            write(b, 0, b.length);
+        }
+    }
+}